@@ -2,17 +2,43 @@ package net.anfoya.java.net.filtered.easylist;
 
 import java.io.File;
 
+import net.anfoya.java.net.filtered.easylist.index.IndexType;
+import net.anfoya.java.net.filtered.easylist.model.Engine;
+import net.anfoya.java.net.filtered.easylist.proxy.ProxyMode;
 
 public class Config {
 	private static final String TEMP_FOLDER = System.getProperty("java.io.tmpdir") + File.separatorChar;
 	private static final String EASYLIST_EXCEPTIONS_FILEPATH = TEMP_FOLDER + "easylist_exceptions.bin";
 	private static final String EASYLIST_EXCLUSIONS_FILEPATH = TEMP_FOLDER + "easylist_exclusions.bin";
+	private static final String EASYLIST_COSMETICS_FILEPATH = TEMP_FOLDER + "easylist_cosmetics.bin";
+	private static final String EASYLIST_PROFILE_FILEPATH = TEMP_FOLDER + "easylist_profile.txt";
 	private static final String[] EASY_LIST_URLS = {
 		"https://easylist-downloads.adblockplus.org/easylist.txt"
 //		, "https://easylist-downloads.adblockplus.org/liste_fr.txt"
 //		, "https://easylist-downloads.adblockplus.org/easyprivacy.txt"
 //		, "https://easylist-downloads.adblockplus.org/malwaredomains_full.txt"
 	};
+	private static final String[] HOSTS_URLS = {
+//		"https://someonewhocares.org/hosts/zero/hosts"
+	};
+	// cache busters, their numeric value is left out of the verdict cache keys when no rule could see it
+	private static final String[] VOLATILE_PARAMETERS = {
+		"_", "cb", "ord", "rnd", "rand", "random", "r", "t", "ts", "timestamp", "time", "dt"
+		, "cachebuster", "cache_buster", "cachebust", "correlator", "nocache", "bust"
+	};
+	private static final IndexType INDEX_TYPE = IndexType.LITERAL;
+	private static final Engine ENGINE = Engine.REGEX;
+	private static final long SWEEP_PERIOD = 10 * 60 * 1000;
+	private static final boolean PROFILING = false;
+	private static final double BLOOM_FALSE_POSITIVE_RATE = 0.01;
+	// null for the default of the runtime
+	private static final ProxyMode PROXY_MODE = null;
+	private static final int PROXY_THREADS = 256;
+	private static final int PROXY_CONNECTIONS_PER_HOST = 6;
+
+	public String getDownloadFolder() {
+		return TEMP_FOLDER;
+	}
 
 	public String getExceptionsFilePath() {
 		return EASYLIST_EXCEPTIONS_FILEPATH;
@@ -22,7 +48,70 @@ public class Config {
 		return EASYLIST_EXCLUSIONS_FILEPATH;
 	}
 
+	public String getCosmeticsFilePath() {
+		return EASYLIST_COSMETICS_FILEPATH;
+	}
+
+	public String getProfileFilePath() {
+		return EASYLIST_PROFILE_FILEPATH;
+	}
+
 	public String[] getUrls() {
 		return EASY_LIST_URLS;
 	}
+
+	public String[] getHostsUrls() {
+		return HOSTS_URLS;
+	}
+
+	public String[] getVolatileParameters() {
+		return VOLATILE_PARAMETERS;
+	}
+
+	public IndexType getIndexType() {
+		return INDEX_TYPE;
+	}
+
+	public Engine getEngine() {
+		return ENGINE;
+	}
+
+	/**
+	 * @return period (ms) of the sweep dropping compiled regex of rules gone cold, 0 to keep them
+	 */
+	public long getSweepPeriod() {
+		return SWEEP_PERIOD;
+	}
+
+	/**
+	 * @return true to count checks, hits and time of each rule from start
+	 */
+	public boolean isProfiling() {
+		return PROFILING;
+	}
+
+	/**
+	 * @return false positive rate of the filter telling a URL matches no rule before its verdict is looked up, 0 to go without
+	 */
+	public double getBloomFalsePositiveRate() {
+		return BLOOM_FALSE_POSITIVE_RATE;
+	}
+
+	public ProxyMode getProxyMode() {
+		return PROXY_MODE == null? ProxyMode.getDefault(): PROXY_MODE;
+	}
+
+	/**
+	 * @return platform threads serving the connections of a proxy in THREAD mode when the runtime has no virtual thread
+	 */
+	public int getProxyThreads() {
+		return PROXY_THREADS;
+	}
+
+	/**
+	 * @return connections of a proxy in THREAD mode to an origin server, in use or idle
+	 */
+	public int getProxyConnectionsPerHost() {
+		return PROXY_CONNECTIONS_PER_HOST;
+	}
 }
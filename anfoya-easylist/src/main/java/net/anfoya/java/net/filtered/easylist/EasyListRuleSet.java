@@ -2,25 +2,56 @@ package net.anfoya.java.net.filtered.easylist;
 
 // https://adblockplus.org/en/filters
 
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.anfoya.java.cache.LocalCache;
-import net.anfoya.java.io.SerializedFile;
+import net.anfoya.java.net.filtered.easylist.index.IndexType;
+import net.anfoya.java.net.filtered.easylist.index.LegacyRuleFile;
+import net.anfoya.java.net.filtered.easylist.index.RuleFile;
+import net.anfoya.java.net.filtered.easylist.index.RuleIndex;
+import net.anfoya.java.net.filtered.easylist.loader.HostsLoader;
 import net.anfoya.java.net.filtered.easylist.loader.InternetLoader;
+import net.anfoya.java.net.filtered.easylist.loader.ListUpdate;
+import net.anfoya.java.net.filtered.easylist.model.Engine;
+import net.anfoya.java.net.filtered.easylist.model.RequestContext;
 import net.anfoya.java.net.filtered.easylist.model.Rule;
+import net.anfoya.java.net.filtered.easylist.model.RuleStats;
+import net.anfoya.java.net.filtered.easylist.model.RuleType;
+import net.anfoya.java.net.filtered.easylist.model.VersionedVerdict;
+import net.anfoya.java.net.filtered.easylist.parser.ParallelParser;
+import net.anfoya.java.net.filtered.easylist.parser.Parser;
+import net.anfoya.java.net.filtered.easylist.parser.ParserException;
+import net.anfoya.java.net.url.filter.ContentType;
 import net.anfoya.java.net.url.filter.RuleSet;
+import net.anfoya.java.net.url.filter.Verdict;
 import net.anfoya.java.util.concurrent.ThreadPool;
 import net.anfoya.java.util.concurrent.ThreadPool.PoolPriority;
 
@@ -28,9 +59,13 @@ public class EasyListRuleSet implements RuleSet {
 	private static final Logger LOGGER = LoggerFactory.getLogger(EasyListRuleSet.class);
 	private static final Config CONFIG = new Config();
 
-	// cache to store most commons URLs
-	private static final LocalCache<String, Boolean> URL_EXCEPTIONS_CACHE = new LocalCache<String, Boolean>("easylist_exceptions", 1500);
-	private static final LocalCache<String, Boolean> URL_EXCLUSIONS_CACHE = new LocalCache<String, Boolean>("easylist_exclusions", 1500);
+	// URLs of a batch evaluated in parallel from this count
+	private static final int PARALLEL_BATCH_SIZE = 64;
+
+	// cache to store most commons URLs, verdicts of another rule set version are recomputed
+	private static final LocalCache<String, VersionedVerdict> URL_VERDICT_CACHE = new LocalCache<String, VersionedVerdict>("easylist_verdicts", 1500);
+	// verdicts of requests with a context, keyed by context and URL, not revalidated
+	private static final LocalCache<String, VersionedVerdict> CONTEXT_VERDICT_CACHE = new LocalCache<String, VersionedVerdict>("easylist_context_verdicts", 1500);
 
 	// process time usage statistics
 	private static final AtomicLong PROCESS_TIME = new AtomicLong(0);
@@ -38,19 +73,26 @@ public class EasyListRuleSet implements RuleSet {
 	// hit statistics
 	private static final AtomicLong FILTER_HIT = new AtomicLong(0);
 	private static final AtomicLong CACHE_HIT = new AtomicLong(0);
+	// URLs the bloom filter told apart, neither evaluated nor cached
+	private static final AtomicLong BLOOM_HIT = new AtomicLong(0);
 	private static final AtomicLong NB_REQUEST = new AtomicLong(0);
 
+	private static final Timer TIMER = new Timer("easylist-loader", true);
+
 	static {
-		new Timer("easylist-loader", true).schedule(new TimerTask() {
+		RuleStats.setEnabled(CONFIG.isProfiling());
+		TIMER.schedule(new TimerTask() {
 			private long time = System.nanoTime();
 			@Override
 			public void run() {
 				final long time = System.nanoTime();
-				if (NB_REQUEST.get() != 0) {
-					LOGGER.info("filter {}%, cache {}%, cpu {}%"
-							, (int) FILTER_HIT.get() / (double)NB_REQUEST.get() * 100.0
-							, (int) CACHE_HIT.get() / (double)NB_REQUEST.get() * 100.0
-							, (int) PROCESS_TIME.getAndSet(0) / (time - this.time) * 100.0);
+				final long requests = NB_REQUEST.get();
+				if (requests != 0) {
+					LOGGER.info("filter {}%, bloom {}%, cache {}%, cpu {}%"
+							, (int) (100 * FILTER_HIT.get() / requests)
+							, (int) (100 * BLOOM_HIT.get() / requests)
+							, (int) (100 * CACHE_HIT.get() / requests)
+							, (int) (100 * PROCESS_TIME.getAndSet(0) / (time - this.time)));
 				}
 				this.time = time;
 			}
@@ -58,24 +100,53 @@ public class EasyListRuleSet implements RuleSet {
 	}
 
 	private final String[] internetUrls;
+	private final String[] hostsUrls;
 
-	private final Set<Rule> exceptions;
-	private final Set<Rule> exclusions;
+	// rules currently in use, swapped in one step
+	private final AtomicReference<RuleSnapshot> snapshot;
 
 	private boolean withException;
 
+	// drops the cold regex of the snapshot, null when disabled
+	private final TimerTask sweeper;
+
 	public EasyListRuleSet(final boolean withException) {
 		this.internetUrls = CONFIG.getUrls();
+		this.hostsUrls = CONFIG.getHostsUrls();
 
-		this.exceptions = new CopyOnWriteArraySet<Rule>();
-		this.exclusions = new CopyOnWriteArraySet<Rule>();
-
+		this.snapshot = new AtomicReference<RuleSnapshot>(RuleSnapshot.getEmpty(CONFIG.getEngine()));
 		this.withException = withException;
 
 		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-			URL_EXCEPTIONS_CACHE.save();
-			URL_EXCLUSIONS_CACHE.save();
+			URL_VERDICT_CACHE.save();
+			CONTEXT_VERDICT_CACHE.save();
 		}));
+
+		final long sweepPeriod = CONFIG.getSweepPeriod();
+		if (sweepPeriod > 0) {
+			// the task only holds the snapshot reference
+			final AtomicReference<RuleSnapshot> snapshot = this.snapshot;
+			sweeper = new TimerTask() {
+				@Override
+				public void run() {
+					final long start = System.currentTimeMillis();
+					final int count = snapshot.get().sweep();
+					LOGGER.info("dropped {} cold regex (in {}ms)", count, System.currentTimeMillis() - start);
+				}
+			};
+			TIMER.schedule(sweeper, sweepPeriod, sweepPeriod);
+		} else {
+			sweeper = null;
+		}
+	}
+
+	/**
+	 * stops sweeping the cold regex of this rule set, it still filters
+	 */
+	public void close() {
+		if (sweeper != null && sweeper.cancel()) {
+			TIMER.purge();
+		}
 	}
 
 	@Override
@@ -88,47 +159,65 @@ public class EasyListRuleSet implements RuleSet {
 		this.withException = withException;
 	}
 
+	public Engine getEngine() {
+		return snapshot.get().getEngine();
+	}
+
+	public void setEngine(final Engine engine) {
+		update(s -> s.withEngine(engine));
+	}
+
+	public RuleSnapshot getSnapshot() {
+		return snapshot.get();
+	}
+
 	public int getRuleCount() {
-		return exclusions.size() + exceptions.size();
+		return snapshot.get().getRuleCount();
 	}
 
 	public boolean isEmpty() {
 		return getRuleCount() == 0;
 	}
 
+	/**
+	 * rebuilds the rule set for a single rule, use addAll() or replaceAll() for more
+	 */
 	public void add(final Rule rule) {
-		switch (rule.getType()) {
-		case exception:
-			LOGGER.debug("added {}", rule);
-			exceptions.add(rule);
-			break;
-		case exclusion:
-			LOGGER.debug("added {}", rule);
-			exclusions.add(rule);
-			break;
-		case empty:
-			break;
-		}
+		LOGGER.debug("added {}", rule);
+		addAll(Collections.singleton(rule));
 	}
 
-	public void addAll(final EasyListRuleSet easyList) {
-		exceptions.addAll(easyList.exceptions);
-		exclusions.addAll(easyList.exclusions);
+	public void addAll(final Collection<Rule> rules) {
+		update(s -> new RuleSnapshot.Builder(s).addAll(rules).build());
 	}
 
-	public void replaceAll(final EasyListRuleSet easyList) {
-		exceptions.clear();
-		exclusions.clear();
-		addAll(easyList);
+	public void replaceAll(final Collection<Rule> rules) {
+		final RuleSnapshot next = new RuleSnapshot.Builder(getEngine()).addAll(rules).build();
+		update(s -> next);
+	}
+
+	private void update(final UnaryOperator<RuleSnapshot> function) {
+		RuleSnapshot previous, next;
+		do {
+			previous = snapshot.get();
+			next = function.apply(previous);
+		} while(!snapshot.compareAndSet(previous, next));
+
+		if (next.getVersion() != previous.getVersion()) {
+			revalidate(previous, next);
+		}
 	}
 
 	@Override
 	public void load() {
-		final SerializedFile<Set<Rule>> local = new SerializedFile<Set<Rule>>(CONFIG.getExceptionsFilePath());
+		final RuleFile exceptionsFile = new RuleFile(CONFIG.getExceptionsFilePath());
+		final RuleFile exclusionsFile = new RuleFile(CONFIG.getExclusionsFilePath());
+		final RuleFile cosmeticsFile = new RuleFile(CONFIG.getCosmeticsFilePath());
 		final Future<?> future = ThreadPool.getDefault().submit(PoolPriority.MAX, "load local rules", () -> {
 			final long start = System.currentTimeMillis();
-			exceptions.addAll(local.load());
-			exclusions.addAll(new SerializedFile<Set<Rule>>(CONFIG.getExclusionsFilePath()).load());
+			migrate(exceptionsFile, CONFIG.getIndexType(), getEngine());
+			migrate(exclusionsFile, CONFIG.getIndexType(), getEngine());
+			load(exceptionsFile, exclusionsFile, cosmeticsFile);
 			LOGGER.info("loaded {} local rules (in {}ms)", getRuleCount(), System.currentTimeMillis()-start);
 			return null;
 		});
@@ -139,90 +228,591 @@ public class EasyListRuleSet implements RuleSet {
 				LOGGER.error("loading rule sets", e);
 			}
 			loadCache();
-			if (local.isOlder(Calendar.DAY_OF_YEAR, 1)
-					|| exceptions.isEmpty()
-					|| exclusions.isEmpty()) {
+			final RuleSnapshot snapshot = this.snapshot.get();
+			if (exceptionsFile.isOlder(Calendar.DAY_OF_YEAR, 1)
+					|| snapshot.getExceptions().isEmpty()
+					|| snapshot.getExclusions().isEmpty()) {
 				loadInternet();
 			}
 		});
 	}
 
+	private void load(final RuleFile exceptionsFile, final RuleFile exclusionsFile, final RuleFile cosmeticsFile) throws IOException {
+		final Engine engine = getEngine();
+		final RuleFile.Content exceptions = exceptionsFile.load(CONFIG.getIndexType(), engine);
+		final RuleFile.Content exclusions = exclusionsFile.load(CONFIG.getIndexType(), engine);
+		// missing when saved by a previous version, the next download brings them
+		final List<Rule> cosmetics = cosmeticsFile.exists()
+				? cosmeticsFile.load(null, engine).getRules()
+				: new ArrayList<Rule>();
+		final RuleSnapshot loaded = RuleSnapshot.of(engine
+				, exceptions.getRules(), exceptions.getIndex()
+				, exclusions.getRules(), exclusions.getIndex()
+				, cosmetics);
+		// keep the stored indexes unless rules were added meanwhile
+		update(s -> s.isEmpty()
+				? loaded.withEngine(s.getEngine())
+				: new RuleSnapshot.Builder(s)
+						.addAll(loaded.getExceptions())
+						.addAll(loaded.getExclusions())
+						.addAll(loaded.getCosmetics())
+						.build());
+	}
+
+	/**
+	 * one time conversion of the rules serialized by previous versions, their file is kept if it fails
+	 * @return true if rules were migrated
+	 */
+	static boolean migrate(final RuleFile file, final IndexType indexType, final Engine engine) {
+		final LegacyRuleFile serialized = new LegacyRuleFile(file.getPath());
+		if (file.exists() || !serialized.exists()) {
+			return false;
+		}
+		try {
+			// parse again, older rules lack what the index needs
+			final Parser parser = new Parser();
+			final Set<Rule> rules = new LinkedHashSet<Rule>();
+			for(final String line: serialized.loadLines()) {
+				try {
+					final Rule parsed = parser.parse(line);
+					// element hiding rules used to become URL rules
+					if (parsed.getType() == RuleType.exception || parsed.getType() == RuleType.exclusion) {
+						rules.add(parsed);
+					}
+				} catch (final ParserException e) {
+					LOGGER.warn("skipping {}", line, e);
+				}
+			}
+			file.save(rules, indexType, engine);
+			LOGGER.info("migrated {} rules from {}", rules.size(), serialized);
+		} catch (final Exception e) {
+			LOGGER.warn("migrating {}", serialized, e);
+			return false;
+		}
+		serialized.clear();
+		return true;
+	}
+
 	private void loadCache() {
 		final long start = System.currentTimeMillis();
-		URL_EXCEPTIONS_CACHE.load();
-		URL_EXCLUSIONS_CACHE.load();
+		URL_VERDICT_CACHE.load();
+		CONTEXT_VERDICT_CACHE.load();
 		LOGGER.info("loaded {} URLs from cache (in {}ms)"
-				, URL_EXCEPTIONS_CACHE.size() + URL_EXCLUSIONS_CACHE.size()
+				, URL_VERDICT_CACHE.size() + CONTEXT_VERDICT_CACHE.size()
 				, System.currentTimeMillis() - start);
+		// verdicts of a rule set this run didn't load
+		final RuleSnapshot snapshot = this.snapshot.get();
+		revalidate(snapshot, snapshot);
+	}
+
+	// fixes the cached verdicts in background after a swap, looking only at the rules which changed
+	private void revalidate(final RuleSnapshot previous, final RuleSnapshot next) {
+		ThreadPool.getDefault().submit(PoolPriority.MIN, "revalidate easylist cache", () -> {
+			final long start = System.currentTimeMillis();
+			final int count = revalidate(URL_VERDICT_CACHE, previous, next);
+			LOGGER.info("revalidated {} cached URLs (in {}ms)", count, System.currentTimeMillis() - start);
+		});
+	}
+
+	/**
+	 * brings the verdicts of cache to the next version: a URL which wasn't excluded only needs the added exclusions,
+	 * a URL which was only needs a full check when one of the removed exclusions applies, and so on for exceptions
+	 * @return the number of verdicts revalidated
+	 */
+	static int revalidate(final LocalCache<String, VersionedVerdict> cache, final RuleSnapshot previous, final RuleSnapshot next) {
+		final Delta exclusions = new Delta(previous.getExclusions(), next.getExclusions(), next.getEngine());
+		final Delta exceptions = new Delta(previous.getExceptions(), next.getExceptions(), next.getEngine());
+		int count = 0;
+		for(final String key: cache.keySet()) {
+			final VersionedVerdict cached = cache.peek(key);
+			if (cached == null || cached.getVersion() == next.getVersion()
+					|| !next.getCanonicalizer().isValid(key)) {
+				// a key these rules can't stand for stays stale, it's never served
+				continue;
+			}
+			final String url = UrlCanonicalizer.toUrl(key);
+			final Verdict verdict;
+			if (cached.getVersion() != previous.getVersion()) {
+				verdict = classify(url, next);
+			} else if (cached.getVerdict() == Verdict.NONE) {
+				verdict = exclusions.getAdded().find(url) == null? Verdict.NONE: classifyException(url, next.getExceptionIndex(), RequestContext.UNKNOWN);
+			} else if (exclusions.getRemoved().find(url) != null && next.getExclusionIndex().find(url) == null) {
+				verdict = Verdict.NONE;
+			} else if (cached.getVerdict() == Verdict.BLOCKED) {
+				verdict = classifyException(url, exceptions.getAdded(), RequestContext.UNKNOWN);
+			} else {
+				verdict = exceptions.getRemoved().find(url) == null? Verdict.ALLOWED: classifyException(url, next.getExceptionIndex(), RequestContext.UNKNOWN);
+			}
+			cache.replace(key, new VersionedVerdict(verdict, next.getVersion()));
+			count++;
+		}
+		return count;
+	}
+
+	// indexes of the rules added and removed between two versions, built on first use
+	private static class Delta {
+		private final List<Rule> previous;
+		private final List<Rule> next;
+		private final Engine engine;
+		private RuleIndex added;
+		private RuleIndex removed;
+
+		public Delta(final List<Rule> previous, final List<Rule> next, final Engine engine) {
+			this.previous = previous;
+			this.next = next;
+			this.engine = engine;
+		}
+
+		public RuleIndex getAdded() {
+			if (added == null) {
+				added = CONFIG.getIndexType().build(minus(next, previous), engine);
+			}
+			return added;
+		}
+
+		public RuleIndex getRemoved() {
+			if (removed == null) {
+				removed = CONFIG.getIndexType().build(minus(previous, next), engine);
+			}
+			return removed;
+		}
+	}
+
+	// rules of a not in b, rules being compared by their line (options included)
+	private static List<Rule> minus(final List<Rule> a, final List<Rule> b) {
+		final Set<String> lines = new HashSet<String>();
+		for(final Rule rule: b) {
+			lines.add(rule.getLine());
+		}
+		final List<Rule> rules = new ArrayList<Rule>();
+		for(final Rule rule: a) {
+			if (!lines.contains(rule.getLine())) {
+				rules.add(rule);
+			}
+		}
+		return rules;
 	}
 
 	protected void loadInternet() {
-		final EasyListRuleSet internetList = new EasyListRuleSet(false);
+		final long start = System.currentTimeMillis();
+		// rules in use are patched with the changes of the lists unless there's none yet,
+		// the new rules are built aside and matches keep using the current ones until the swap
+		final RuleSnapshot current = snapshot.get();
+		final boolean incremental = !current.isEmpty();
+		final RuleSnapshot.Builder builder = incremental
+				? new RuleSnapshot.Builder(current)
+				: new RuleSnapshot.Builder(current.getEngine());
+		// lists are fetched and parsed at the same time, their changes applied in order
+		final Map<InternetLoader, Future<ListUpdate>> futures = new LinkedHashMap<InternetLoader, Future<ListUpdate>>();
 		for(final String url: internetUrls) {
 			try {
-				// add to incremental list
-				internetList.addAll(new InternetLoader(new URL(url)).load());
-				// set as current list
-				replaceAll(internetList);
+				final InternetLoader loader = new InternetLoader(new URL(url));
+				futures.put(loader, ThreadPool.getDefault().submit(PoolPriority.REG, "loading " + url, () -> loader.load(incremental)));
 			} catch (final Exception e) {
 				LOGGER.error("loading {}", url, e);
 			}
 		}
+		final List<Future<List<String>>> hostsFutures = new ArrayList<Future<List<String>>>();
+		for(final String url: hostsUrls) {
+			try {
+				final HostsLoader loader = new HostsLoader(new URL(url));
+				hostsFutures.add(ThreadPool.getDefault().submit(PoolPriority.REG, "loading " + url, () -> loader.loadLines()));
+			} catch (final Exception e) {
+				LOGGER.error("loading {}", url, e);
+			}
+		}
+
+		final Map<InternetLoader, ListUpdate> updates = new LinkedHashMap<InternetLoader, ListUpdate>();
+		long bytes = 0, parseTime = 0;
+		for(final Entry<InternetLoader, Future<ListUpdate>> entry: futures.entrySet()) {
+			try {
+				final ListUpdate update = entry.getValue().get();
+				updates.put(entry.getKey(), update);
+				bytes += update.getDownloadedBytes();
+				parseTime += update.getParseTime();
+			} catch (final InterruptedException | ExecutionException e) {
+				LOGGER.error("loading {}", entry.getKey(), e);
+				updates.put(entry.getKey(), ListUpdate.getNotModified(null, 0));
+			}
+		}
+		final List<List<String>> hostsLines = new ArrayList<List<String>>();
+		for(final Future<List<String>> future: hostsFutures) {
+			try {
+				hostsLines.add(future.get());
+			} catch (final InterruptedException | ExecutionException e) {
+				LOGGER.error("loading hosts", e);
+				hostsLines.add(null);
+			}
+		}
+		final boolean modified = apply(builder, updates.values(), hostsLines) || !incremental;
+		LOGGER.info("refreshed {} lists in {}ms, {} bytes downloaded, {}ms of parse time summed over threads"
+				, updates.size(), System.currentTimeMillis() - start, bytes, parseTime);
+		if (!modified) {
+			// up to date
+			final long now = System.currentTimeMillis();
+			new RuleFile(CONFIG.getExceptionsFilePath()).setLastModified(now);
+			new RuleFile(CONFIG.getExclusionsFilePath()).setLastModified(now);
+			new RuleFile(CONFIG.getCosmeticsFilePath()).setLastModified(now);
+			return;
+		}
+		if (builder.getRuleCount() == 0) {
+			LOGGER.warn("no rule loaded, keeping current rules");
+			return;
+		}
+
+		final RuleSnapshot next = builder.build();
+		update(s -> next);
 		save();
+		for(final Entry<InternetLoader, ListUpdate> entry: updates.entrySet()) {
+			try {
+				entry.getKey().save(entry.getValue());
+			} catch (final IOException e) {
+				LOGGER.error("saving {}", entry.getKey(), e);
+			}
+		}
+	}
+
+	/**
+	 * applies the refreshed lists to builder: the rules of their added lines and of the hosts not in it yet are added,
+	 * the rules whose line no list has any more are removed (a line of two lists stays until both drop it). Rules are
+	 * only removed when every list was read.
+	 * @param hostsLines lines of each hosts list, null for a list that couldn't be read
+	 * @return true if the rules changed
+	 */
+	static boolean apply(final RuleSnapshot.Builder builder, final Collection<ListUpdate> updates, final List<List<String>> hostsLines) {
+		boolean modified = false;
+		// every line of the lists, null when one is unknown
+		Set<String> listed = new HashSet<String>();
+		for(final ListUpdate update: updates) {
+			builder.addAll(update.getAddedRules());
+			modified |= update.isModified();
+			if (listed != null && update.getLines() != null) {
+				listed.addAll(update.getLines());
+			} else {
+				listed = null;
+			}
+		}
+
+		final Set<String> known = builder.getLines();
+		final ParallelParser parser = new ParallelParser();
+		for(final List<String> lines: hostsLines) {
+			if (lines == null) {
+				listed = null;
+				continue;
+			}
+			for(final String line: lines) {
+				if (known.add(line)) {
+					parser.add(line);
+				}
+			}
+			if (listed != null) {
+				listed.addAll(lines);
+			}
+		}
+		final List<Rule> hosts = parser.getRules();
+		builder.addAll(hosts);
+		modified |= !hosts.isEmpty();
+
+		if (listed == null) {
+			LOGGER.warn("a list couldn't be read, no rule removed");
+		} else {
+			final int count = builder.getRuleCount();
+			builder.retainLines(listed);
+			modified |= builder.getRuleCount() != count;
+		}
+		return modified;
 	}
 
 	private void save() {
+		final RuleSnapshot snapshot = this.snapshot.get();
 		try {
-			new SerializedFile<Set<Rule>>(CONFIG.getExceptionsFilePath()).save(exceptions);
+			new RuleFile(CONFIG.getExceptionsFilePath()).save(snapshot.getExceptions(), CONFIG.getIndexType(), snapshot.getEngine());
 		} catch (final IOException e) {
 			LOGGER.error("saving exceptions", e);
 		}
 		try {
-			new SerializedFile<Set<Rule>>(CONFIG.getExclusionsFilePath()).save(exclusions);
+			new RuleFile(CONFIG.getExclusionsFilePath()).save(snapshot.getExclusions(), CONFIG.getIndexType(), snapshot.getEngine());
 		} catch (final IOException e) {
 			LOGGER.error("saving exclusions", e);
 		}
+		try {
+			new RuleFile(CONFIG.getCosmeticsFilePath()).save(snapshot.getCosmetics(), null, snapshot.getEngine());
+		} catch (final IOException e) {
+			LOGGER.error("saving cosmetics", e);
+		}
+	}
+
+	/**
+	 * @return stylesheet hiding the page elements targeted by the element hiding rules applying on this host
+	 */
+	public String getHidingCss(final String host) {
+		return snapshot.get().getCosmeticIndex().getHidingCss(host);
+	}
+
+	/**
+	 * counts checks, hits and time of each rule from now on, or stops counting
+	 */
+	public void setProfiling(final boolean profiling) {
+		RuleStats.setEnabled(profiling);
 	}
 
+	public boolean isProfiling() {
+		return RuleStats.isEnabled();
+	}
+
+	/**
+	 * @return at most n rules which took the most time to check, since profiling started
+	 */
+	public List<Rule> getMostExpensiveRules(final int n) {
+		return snapshot.get().getTopRules(n, RuleStats::getNanos);
+	}
+
+	/**
+	 * @return at most n rules which matched the most, since profiling started
+	 */
+	public List<Rule> getMostHitRules(final int n) {
+		return snapshot.get().getTopRules(n, RuleStats::getHits);
+	}
+
+	public void saveProfile() throws IOException {
+		saveProfile(new File(CONFIG.getProfileFilePath()));
+	}
+
+	/**
+	 * writes the counters of every rule (unchecked ones too, candidates to pruning), most expensive first
+	 */
+	public void saveProfile(final File file) throws IOException {
+		final RuleSnapshot snapshot = this.snapshot.get();
+		final List<Rule> rules = snapshot.getTopRules(snapshot.getRuleCount(), RuleStats::getNanos);
+		final List<Rule> unchecked = new ArrayList<Rule>(snapshot.getExceptions());
+		unchecked.addAll(snapshot.getExclusions());
+		unchecked.removeIf(rule -> rule.getStats() != null);
+		rules.addAll(unchecked);
+
+		try (PrintWriter writer = new PrintWriter(new FileWriter(file))) {
+			writer.println("checks\thits\tnanos\ttype\tline");
+			for(final Rule rule: rules) {
+				final RuleStats stats = rule.getStats();
+				writer.format("%d\t%d\t%d\t%s\t%s%n"
+						, stats == null? 0: stats.getChecks()
+						, stats == null? 0: stats.getHits()
+						, stats == null? 0: stats.getNanos()
+						, rule.getType(), rule.getLine());
+			}
+		}
+		LOGGER.info("saved profile of {} rules ({} unchecked) to {}", rules.size(), unchecked.size(), file);
+	}
+
+	/**
+	 * not cached, classify() only checks exceptions of excluded URLs
+	 */
 	@Override
 	public boolean matchesException(final String url) {
-		return matches(url, URL_EXCEPTIONS_CACHE, exceptions);
+		return matches(UrlCanonicalizer.normalize(url), snapshot.get().getExceptionIndex(), RequestContext.UNKNOWN);
 	}
 
 	@Override
 	public boolean matchesExclusion(final String url) {
-		return matches(url, URL_EXCLUSIONS_CACHE, exclusions);
+		return classify(url) != Verdict.NONE;
+	}
+
+	@Override
+	public Verdict classify(final String url) {
+		return classify(UrlCanonicalizer.normalize(url), RequestContext.UNKNOWN, URL_VERDICT_CACHE, "");
 	}
 
-	private boolean matches(final String url, final LocalCache<String, Boolean> urlCache, final Set<Rule> rules) {
+	@Override
+	public Verdict classify(final String url, final String pageHost, final ContentType contentType) {
+		final String normalized = UrlCanonicalizer.normalize(url);
+		final RequestContext context = RequestContext.of(normalized, pageHost, contentType);
+		return context == RequestContext.UNKNOWN
+				? classify(normalized, RequestContext.UNKNOWN, URL_VERDICT_CACHE, "")
+				: classify(normalized, context, CONTEXT_VERDICT_CACHE, contentType + " " + context.getPageHost() + " ");
+	}
+
+	// only host anchored rules can apply to every URL of a host, no cache needed for a walk of its labels
+	@Override
+	public Verdict classifyHost(final String host) {
 		final long timer = System.nanoTime();
 		NB_REQUEST.incrementAndGet();
-		Boolean match = urlCache.get(url);
-		if (match != null) {
+		final RuleSnapshot snapshot = this.snapshot.get();
+		final String normalized = host.endsWith(".")? host.substring(0, host.length() - 1).toLowerCase(): host.toLowerCase();
+		Verdict verdict = Verdict.NONE;
+		final Rule rule = snapshot.getExclusionIndex().findHost(normalized);
+		if (rule != null) {
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("{} \"{}\" matches host \"{}\"", rule.getType(), rule.getEffectiveLine(), normalized);
+			}
+			verdict = withException && snapshot.getExceptionIndex().findHost(normalized) != null? Verdict.ALLOWED: Verdict.BLOCKED;
+		}
+		if (verdict.isBlocked()) {
+			FILTER_HIT.incrementAndGet();
+		}
+		PROCESS_TIME.addAndGet(System.nanoTime() - timer);
+
+		return verdict;
+	}
+
+	// the verdict of a URL comes from the verdicts of its key, or of its host and path without context
+	private Verdict classify(final String url, final RequestContext context, final LocalCache<String, VersionedVerdict> cache, final String keyPrefix) {
+		final long timer = System.nanoTime();
+		NB_REQUEST.incrementAndGet();
+		final RuleSnapshot snapshot = this.snapshot.get();
+		if (!snapshot.getExclusionFilter().mightMatch(url)) {
+			BLOOM_HIT.incrementAndGet();
+			PROCESS_TIME.addAndGet(System.nanoTime() - timer);
+			return Verdict.NONE;
+		}
+		final long version = snapshot.getVersion();
+		final UrlCanonicalizer canonicalizer = snapshot.getCanonicalizer();
+		final String pathKey = context == RequestContext.UNKNOWN? canonicalizer.getPathKey(url): null;
+		final VersionedVerdict pathCached = pathKey == null? null: cache.get(pathKey);
+		final String urlKey = canonicalizer.getKey(url);
+		final String key = urlKey == null? null: keyPrefix + urlKey;
+		final VersionedVerdict cached = pathCached != null && pathCached.getVersion() == version? pathCached: key == null? null: cache.get(key);
+		Verdict verdict;
+		if (cached != null && cached.getVersion() == version) {
 			CACHE_HIT.incrementAndGet();
+			verdict = cached.getVerdict();
 		} else {
-			match = matches(url, rules);
-			urlCache.put(url, match);
+			verdict = classify(url, snapshot, context);
+			if (pathKey != null && verdict == Verdict.BLOCKED
+					&& canonicalizer.isQueryIndependent(url, snapshot.getExclusionIndex())) {
+				cache(cache, pathKey, pathCached, verdict, version);
+			} else if (key != null) {
+				cache(cache, key, cached, verdict, version);
+			}
+		}
+		if (verdict == Verdict.ALLOWED && !withException) {
+			// cached verdicts don't depend on the exception setting
+			verdict = Verdict.BLOCKED;
 		}
-		if (match) {
+		if (verdict.isBlocked()) {
 			FILTER_HIT.incrementAndGet();
 		}
 		PROCESS_TIME.addAndGet(System.nanoTime() - timer);
 
-		return match;
+		return verdict;
+	}
+
+	/**
+	 * classifies a burst of URLs against the same rules, each cache key once and statistics counted once,
+	 * a large batch of URLs not cached is evaluated on the common fork-join pool
+	 */
+	@Override
+	public BitSet classifyAll(final List<String> urls) {
+		final long timer = System.nanoTime();
+		final RuleSnapshot snapshot = this.snapshot.get();
+		final long version = snapshot.getVersion();
+
+		final UrlCanonicalizer canonicalizer = snapshot.getCanonicalizer();
+
+		// by key, a missed key is evaluated on the first of its URLs
+		final Map<String, Verdict> verdicts = new HashMap<String, Verdict>(urls.size() * 4 / 3 + 1);
+		final List<String> keys = new ArrayList<String>(urls.size());
+		final List<String> missedKeys = new ArrayList<String>();
+		final List<String> missed = new ArrayList<String>();
+		final List<VersionedVerdict> stale = new ArrayList<VersionedVerdict>();
+		final BitSet blocked = new BitSet(urls.size());
+		int bloomHits = 0, unkeyed = 0;
+		for(final String url: urls) {
+			final String normalized = UrlCanonicalizer.normalize(url);
+			if (!snapshot.getExclusionFilter().mightMatch(normalized)) {
+				// no key, not blocked
+				keys.add(null);
+				bloomHits++;
+				continue;
+			}
+			final String key = canonicalizer.getKey(normalized);
+			keys.add(key);
+			if (key == null) {
+				// not cached, evaluated now
+				final Verdict verdict = classify(normalized, snapshot);
+				blocked.set(keys.size() - 1, verdict == Verdict.BLOCKED || verdict == Verdict.ALLOWED && !withException);
+				unkeyed++;
+				continue;
+			}
+			if (!verdicts.containsKey(key)) {
+				final VersionedVerdict cached = URL_VERDICT_CACHE.get(key);
+				if (cached != null && cached.getVersion() == version) {
+					verdicts.put(key, cached.getVerdict());
+				} else {
+					verdicts.put(key, null);
+					missedKeys.add(key);
+					missed.add(normalized);
+					stale.add(cached);
+				}
+			}
+		}
+
+		final List<Verdict> computed;
+		if (missed.size() < PARALLEL_BATCH_SIZE) {
+			computed = new ArrayList<Verdict>(missed.size());
+			for(final String url: missed) {
+				computed.add(classify(url, snapshot));
+			}
+		} else {
+			computed = missed.parallelStream().map(url -> classify(url, snapshot)).collect(Collectors.toList());
+		}
+		for(int i=0, n=missed.size(); i<n; i++) {
+			verdicts.put(missedKeys.get(i), computed.get(i));
+			cache(URL_VERDICT_CACHE, missedKeys.get(i), stale.get(i), computed.get(i), version);
+		}
+
+		for(int i=0, n=urls.size(); i<n; i++) {
+			final Verdict verdict = keys.get(i) == null? Verdict.NONE: verdicts.get(keys.get(i));
+			if (verdict == Verdict.BLOCKED || verdict == Verdict.ALLOWED && !withException) {
+				blocked.set(i);
+			}
+		}
+
+		NB_REQUEST.addAndGet(urls.size());
+		BLOOM_HIT.addAndGet(bloomHits);
+		CACHE_HIT.addAndGet(urls.size() - bloomHits - unkeyed - missed.size());
+		FILTER_HIT.addAndGet(blocked.cardinality());
+		PROCESS_TIME.addAndGet(System.nanoTime() - timer);
+
+		return blocked;
+	}
+
+	private static void cache(final LocalCache<String, VersionedVerdict> cache, final String key
+			, final VersionedVerdict cached, final Verdict verdict, final long version) {
+		if (cached == null) {
+			cache.put(key, new VersionedVerdict(verdict, version));
+		} else {
+			cache.replace(key, new VersionedVerdict(verdict, version));
+		}
+	}
+
+	static Verdict classify(final String url, final RuleSnapshot snapshot) {
+		return classify(url, snapshot, RequestContext.UNKNOWN);
+	}
+
+	// exceptions are only looked up for the few URLs an exclusion applies to
+	private static Verdict classify(final String url, final RuleSnapshot snapshot, final RequestContext context) {
+		return matches(url, snapshot.getExclusionIndex(), context)
+				? classifyException(url, snapshot.getExceptionIndex(), context)
+				: Verdict.NONE;
+	}
+
+	// verdict of an excluded URL
+	private static Verdict classifyException(final String url, final RuleIndex exceptionIndex, final RequestContext context) {
+		return matches(url, exceptionIndex, context)? Verdict.ALLOWED: Verdict.BLOCKED;
 	}
 
-	private boolean matches(final String url, final Set<Rule> rules) {
-		for(final Rule rule: rules) {
-			if (rule.applies(url)) {
+	private static boolean matches(final String url, final RuleIndex index, final RequestContext context) {
+		final Rule rule = index.find(url, context);
+		if (rule != null) {
+			// the regex source is built on each call
+			if (LOGGER.isDebugEnabled()) {
 				LOGGER.debug("{} \"{}\" matches \"{}\" (regex={}) (original line={})"
 						, rule.getType()
 						, rule.getEffectiveLine()
 						, url
-						, rule.getRegex()
+						, rule.getRegexSource()
 						, rule.getLine());
-				return true;
 			}
+			return true;
 		}
 
 		return false;
@@ -0,0 +1,287 @@
+package net.anfoya.java.net.filtered.easylist;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToLongFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.anfoya.java.net.filtered.easylist.index.BloomFilter;
+import net.anfoya.java.net.filtered.easylist.index.CosmeticIndex;
+import net.anfoya.java.net.filtered.easylist.index.RuleIndex;
+import net.anfoya.java.net.filtered.easylist.model.Engine;
+import net.anfoya.java.net.filtered.easylist.model.Rule;
+import net.anfoya.java.net.filtered.easylist.model.RuleStats;
+
+/**
+ * Immutable rules with their indexes, built off to the side and published in
+ * one step so a match always sees a complete rule set.
+ *
+ * The version is a fingerprint of the rules (independent of their order), two
+ * snapshots of the same rules get the same version, across runs too. Element
+ * hiding rules don't take part in it, they've no effect on a URL verdict.
+ */
+public class RuleSnapshot {
+	private static final Logger LOGGER = LoggerFactory.getLogger(RuleSnapshot.class);
+	private static final Config CONFIG = new Config();
+
+	public static RuleSnapshot getEmpty(final Engine engine) {
+		return new Builder(engine).build();
+	}
+
+	private final Engine engine;
+	private final List<Rule> exceptions;
+	private final List<Rule> exclusions;
+	private final RuleIndex exceptionIndex;
+	private final RuleIndex exclusionIndex;
+	private final BloomFilter exclusionFilter;
+	private final List<Rule> cosmetics;
+	private final CosmeticIndex cosmeticIndex;
+	private final UrlCanonicalizer canonicalizer;
+	private final long version;
+
+	private RuleSnapshot(final Engine engine
+			, final List<Rule> exceptions, final RuleIndex exceptionIndex
+			, final List<Rule> exclusions, final RuleIndex exclusionIndex
+			, final List<Rule> cosmetics, final CosmeticIndex cosmeticIndex) {
+		this.engine = engine;
+		this.exceptions = Collections.unmodifiableList(exceptions);
+		this.exclusions = Collections.unmodifiableList(exclusions);
+		this.cosmetics = Collections.unmodifiableList(cosmetics);
+		this.exceptionIndex = exceptionIndex != null? exceptionIndex: buildIndex(exceptions, engine);
+		this.exclusionIndex = exclusionIndex != null? exclusionIndex: buildIndex(exclusions, engine);
+		this.exclusionFilter = buildFilter(exclusions, engine);
+		this.cosmeticIndex = cosmeticIndex != null? cosmeticIndex: new CosmeticIndex(cosmetics);
+		this.canonicalizer = new UrlCanonicalizer(exceptions, exclusions, CONFIG.getVolatileParameters());
+
+		long version = 0;
+		for(final Rule rule: exceptions) {
+			version += fingerprint(rule);
+		}
+		for(final Rule rule: exclusions) {
+			version += fingerprint(rule);
+		}
+		this.version = version;
+	}
+
+	/**
+	 * @return snapshot of rules already indexed (as loaded from a file), a null index is built
+	 */
+	static RuleSnapshot of(final Engine engine
+			, final List<Rule> exceptions, final RuleIndex exceptionIndex
+			, final List<Rule> exclusions, final RuleIndex exclusionIndex
+			, final List<Rule> cosmetics) {
+		return new RuleSnapshot(engine, exceptions, exceptionIndex, exclusions, exclusionIndex, cosmetics, null);
+	}
+
+	public RuleSnapshot withEngine(final Engine engine) {
+		return engine == this.engine? this: new RuleSnapshot(engine, exceptions, null, exclusions, null, cosmetics, cosmeticIndex);
+	}
+
+	public RuleIndex getExceptionIndex() {
+		return exceptionIndex;
+	}
+
+	public RuleIndex getExclusionIndex() {
+		return exclusionIndex;
+	}
+
+	/**
+	 * @return filter telling a URL matches no exclusion, so no rule applies to it
+	 */
+	public BloomFilter getExclusionFilter() {
+		return exclusionFilter;
+	}
+
+	public CosmeticIndex getCosmeticIndex() {
+		return cosmeticIndex;
+	}
+
+	public UrlCanonicalizer getCanonicalizer() {
+		return canonicalizer;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public Engine getEngine() {
+		return engine;
+	}
+
+	public List<Rule> getExceptions() {
+		return exceptions;
+	}
+
+	public List<Rule> getExclusions() {
+		return exclusions;
+	}
+
+	/**
+	 * @return element hiding rules and their exceptions
+	 */
+	public List<Rule> getCosmetics() {
+		return cosmetics;
+	}
+
+	public int getRuleCount() {
+		return exceptions.size() + exclusions.size() + cosmetics.size();
+	}
+
+	public boolean isEmpty() {
+		return getRuleCount() == 0;
+	}
+
+	/**
+	 * drops the compiled regex of rules not used since the previous sweep
+	 * @return the number of rules swept
+	 */
+	public int sweep() {
+		int count = 0;
+		for(final Rule rule: exceptions) {
+			count += rule.sweep()? 1: 0;
+		}
+		for(final Rule rule: exclusions) {
+			count += rule.sweep()? 1: 0;
+		}
+		return count;
+	}
+
+	/**
+	 * @return at most n rules profiled, highest counter first
+	 */
+	public List<Rule> getTopRules(final int n, final ToLongFunction<RuleStats> counter) {
+		final List<Rule> rules = new ArrayList<Rule>();
+		for(final Rule rule: exceptions) {
+			if (rule.getStats() != null) {
+				rules.add(rule);
+			}
+		}
+		for(final Rule rule: exclusions) {
+			if (rule.getStats() != null) {
+				rules.add(rule);
+			}
+		}
+		final Map<Rule, Long> values = new HashMap<Rule, Long>();
+		for(final Rule rule: rules) {
+			values.put(rule, counter.applyAsLong(rule.getStats()));
+		}
+		rules.sort((r1, r2) -> Long.compare(values.get(r2), values.get(r1)));
+		return new ArrayList<Rule>(rules.subList(0, Math.min(n, rules.size())));
+	}
+
+	private static RuleIndex buildIndex(final List<Rule> rules, final Engine engine) {
+		final long start = System.currentTimeMillis();
+		final RuleIndex index = CONFIG.getIndexType().build(rules, engine);
+		LOGGER.info("built {} with {} engine (in {}ms)", index, engine, System.currentTimeMillis() - start);
+		return index;
+	}
+
+	private static BloomFilter buildFilter(final List<Rule> rules, final Engine engine) {
+		final long start = System.currentTimeMillis();
+		final BloomFilter filter = new BloomFilter(rules, CONFIG.getBloomFalsePositiveRate(), engine);
+		LOGGER.info("built {} (in {}ms)", filter, System.currentTimeMillis() - start);
+		return filter;
+	}
+
+	// 64 bits FNV-1a of the type and line (options included), mixed so that a sum of fingerprints spreads well
+	private static long fingerprint(final Rule rule) {
+		long hash = 0xcbf29ce484222325L ^ rule.getType().ordinal();
+		final String line = rule.getLine();
+		for(int i=0, n=line.length(); i<n; i++) {
+			hash = (hash ^ line.charAt(i)) * 0x100000001b3L;
+		}
+		hash = (hash ^ hash >>> 33) * 0xff51afd7ed558ccdL;
+		hash = (hash ^ hash >>> 33) * 0xc4ceb9fe1a85ec53L;
+		return hash ^ hash >>> 33;
+	}
+
+	public static class Builder {
+		private final Engine engine;
+		private final Set<Rule> exceptions;
+		private final Set<Rule> exclusions;
+		private final Set<Rule> cosmetics;
+
+		public Builder(final Engine engine) {
+			this.engine = engine;
+			exceptions = new LinkedHashSet<Rule>();
+			exclusions = new LinkedHashSet<Rule>();
+			cosmetics = new LinkedHashSet<Rule>();
+		}
+
+		public Builder(final RuleSnapshot snapshot) {
+			this(snapshot.engine);
+			exceptions.addAll(snapshot.exceptions);
+			exclusions.addAll(snapshot.exclusions);
+			cosmetics.addAll(snapshot.cosmetics);
+		}
+
+		public Builder add(final Rule rule) {
+			switch (rule.getType()) {
+			case exception:
+				exceptions.add(rule);
+				break;
+			case exclusion:
+				exclusions.add(rule);
+				break;
+			case cosmetic:
+			case cosmeticException:
+				cosmetics.add(rule);
+				break;
+			case empty:
+				break;
+			}
+			return this;
+		}
+
+		public Builder addAll(final Collection<Rule> rules) {
+			for(final Rule rule: rules) {
+				add(rule);
+			}
+			return this;
+		}
+
+		/**
+		 * removes the rules parsed from other lines than these
+		 */
+		public Builder retainLines(final Set<String> lines) {
+			exceptions.removeIf(rule -> !lines.contains(rule.getLine()));
+			exclusions.removeIf(rule -> !lines.contains(rule.getLine()));
+			cosmetics.removeIf(rule -> !lines.contains(rule.getLine()));
+			return this;
+		}
+
+		/**
+		 * @return lines of the rules
+		 */
+		public Set<String> getLines() {
+			final Set<String> lines = new HashSet<String>(getRuleCount() * 4 / 3 + 1);
+			for(final Set<Rule> rules: Arrays.asList(exceptions, exclusions, cosmetics)) {
+				for(final Rule rule: rules) {
+					lines.add(rule.getLine());
+				}
+			}
+			return lines;
+		}
+
+		public int getRuleCount() {
+			return exceptions.size() + exclusions.size() + cosmetics.size();
+		}
+
+		public RuleSnapshot build() {
+			return new RuleSnapshot(engine
+					, new ArrayList<Rule>(exceptions), null
+					, new ArrayList<Rule>(exclusions), null
+					, new ArrayList<Rule>(cosmetics), null);
+		}
+	}
+}
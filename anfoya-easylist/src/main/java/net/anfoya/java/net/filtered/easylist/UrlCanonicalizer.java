@@ -0,0 +1,247 @@
+package net.anfoya.java.net.filtered.easylist;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.anfoya.java.net.filtered.easylist.index.RuleIndex;
+import net.anfoya.java.net.filtered.easylist.model.Rule;
+import net.anfoya.java.net.filtered.easylist.parser.Terminal;
+
+/**
+ * Cache keys of URLs for a snapshot, several URLs sharing a key only when the
+ * rules can't tell them apart:
+ * - the numeric value of a volatile parameter ("ord=5347343", "cb=...") is left
+ *   out unless a rule literal could overlap it, rules only see such a value
+ *   through a wildcard then, whatever its digits
+ * - the query string is left out when no exception could apply to the host and
+ *   an exclusion already matches the URL without it
+ *
+ * A key left out value is marked by a space, a path key ends with " ?". A URL
+ * with a space (not escaped by its client) would pass for a key, it gets none.
+ */
+public class UrlCanonicalizer {
+	private static final char MARK = ' ';
+	private static final String PATH_MARK = " ?";
+	private static final String SCHEME_END = "://";
+
+	/**
+	 * @return URL with a lower case scheme and host and no dot segment in its path, as a browser requests it
+	 */
+	public static String normalize(final String url) {
+		final int schemeEnd = url.indexOf(SCHEME_END);
+		if (schemeEnd == -1) {
+			return url;
+		}
+		final int hostStart = schemeEnd + SCHEME_END.length();
+		int hostEnd = hostStart;
+		while(hostEnd < url.length() && "/?#".indexOf(url.charAt(hostEnd)) == -1) {
+			hostEnd++;
+		}
+		int pathEnd = hostEnd;
+		while(pathEnd < url.length() && "?#".indexOf(url.charAt(pathEnd)) == -1) {
+			pathEnd++;
+		}
+
+		String normalized = url;
+		final String path = url.substring(hostEnd, pathEnd);
+		if (hasDotSegment(path)) {
+			normalized = url.substring(0, hostEnd) + removeDotSegments(path) + url.substring(pathEnd);
+		}
+		for(int i=0; i<hostEnd; i++) {
+			if (Character.isUpperCase(url.charAt(i))) {
+				return url.substring(0, hostEnd).toLowerCase() + normalized.substring(hostEnd);
+			}
+		}
+		return normalized;
+	}
+
+	/**
+	 * @return the URL a key was made from, or one sharing its verdict
+	 */
+	public static String toUrl(final String key) {
+		return key.replace(MARK, '0');
+	}
+
+	private final Set<String> volatileNames;
+	private final int maxNameLength;
+	private final Set<String> exceptionDomains;
+	private final boolean anyHostExceptions;
+
+	public UrlCanonicalizer(final Collection<Rule> exceptions, final Collection<Rule> exclusions, final String[] volatileNames) {
+		final Set<String> names = new HashSet<String>();
+		for(final String name: volatileNames) {
+			names.add(name);
+		}
+		final List<Rule> rules = new ArrayList<Rule>(exceptions);
+		rules.addAll(exclusions);
+		for(final Rule rule: rules) {
+			if (rule.getLiterals() != null) {
+				for(final String literal: rule.getLiterals()) {
+					removeOverlapped(names, literal);
+				}
+			}
+		}
+		this.volatileNames = names;
+		int maxNameLength = 0;
+		for(final String name: names) {
+			maxNameLength = Math.max(maxNameLength, name.length());
+		}
+		this.maxNameLength = maxNameLength;
+
+		exceptionDomains = new HashSet<String>();
+		boolean anyHostExceptions = false;
+		for(final Rule rule: exceptions) {
+			if (rule.getDomain() == null) {
+				anyHostExceptions = true;
+			} else {
+				exceptionDomains.add(rule.getDomain());
+			}
+		}
+		this.anyHostExceptions = anyHostExceptions;
+	}
+
+	/**
+	 * @return key of a normalized URL, the URL itself when it has no volatile value, null when it has a space
+	 */
+	public String getKey(final String url) {
+		if (url.indexOf(MARK) != -1) {
+			return null;
+		}
+		final int queryStart = url.indexOf('?');
+		if (queryStart == -1 || volatileNames.isEmpty()) {
+			return url;
+		}
+		final int queryEnd = url.indexOf('#', queryStart) == -1? url.length(): url.indexOf('#', queryStart);
+		StringBuilder key = null;
+		int copied = 0;
+		for(int start=queryStart+1; start<queryEnd; ) {
+			int end = url.indexOf('&', start);
+			if (end == -1 || end > queryEnd) {
+				end = queryEnd;
+			}
+			final int equals = url.indexOf('=', start);
+			if (equals != -1 && equals < end - 1 && equals - start <= maxNameLength
+					&& isDigits(url, equals + 1, end)
+					&& volatileNames.contains(url.substring(start, equals))) {
+				if (key == null) {
+					key = new StringBuilder(url.length());
+				}
+				key.append(url, copied, equals + 1).append(MARK);
+				copied = end;
+			}
+			start = end + 1;
+		}
+		return key == null? url: key.append(url, copied, url.length()).toString();
+	}
+
+	/**
+	 * @return key shared by the URLs of the same host and path, null if an exception could apply to one of them or it has a space
+	 */
+	public String getPathKey(final String url) {
+		final int queryStart = url.indexOf('?');
+		if (queryStart == -1 || url.indexOf(MARK) != -1 || anyHostExceptions || !url.contains(SCHEME_END) || hasException(url.substring(0, queryStart))) {
+			return null;
+		}
+		return url.substring(0, queryStart) + PATH_MARK;
+	}
+
+	/**
+	 * @return true if an exclusion matches the URL without its query string and so matches it with any query string
+	 */
+	public boolean isQueryIndependent(final String url, final RuleIndex exclusionIndex) {
+		final Rule exclusion = exclusionIndex.find(url.substring(0, url.indexOf('?')));
+		return exclusion != null && !exclusion.getCanonicalLine().endsWith(Terminal.ENDS.value());
+	}
+
+	/**
+	 * @return true if the key stands for the same URLs with these rules, as it did with the rules it was made for
+	 */
+	public boolean isValid(final String key) {
+		for(int i = key.indexOf(MARK); i != -1; i = key.indexOf(MARK, i + 1)) {
+			if (key.startsWith(PATH_MARK, i)) {
+				return false;
+			}
+			final int nameStart = Math.max(key.lastIndexOf('?', i), key.lastIndexOf('&', i)) + 1;
+			if (!volatileNames.contains(key.substring(nameStart, i - 1))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean hasException(final String url) {
+		final int hostStart = url.indexOf(SCHEME_END) + SCHEME_END.length();
+		int hostEnd = hostStart;
+		while(hostEnd < url.length() && "/:".indexOf(url.charAt(hostEnd)) == -1) {
+			hostEnd++;
+		}
+		for(int i=hostStart-1; i != -1 && i < hostEnd; i = url.indexOf('.', i + 1)) {
+			if (exceptionDomains.contains(url.substring(i + 1, hostEnd))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// a literal overlaps a numeric value if it's made of digits, ends with some or starts with some after "name="
+	private static void removeOverlapped(final Set<String> names, final String literal) {
+		if (names.isEmpty()) {
+			return;
+		}
+		int digits = 0;
+		while(digits < literal.length() && isDigit(literal.charAt(digits))) {
+			digits++;
+		}
+		if (digits > 0 && (digits == literal.length() || "&#".indexOf(literal.charAt(digits)) != -1)) {
+			names.clear();
+			return;
+		}
+		for(int i = literal.indexOf('='); i != -1 && i < literal.length() - 1; i = literal.indexOf('=', i + 1)) {
+			if (isDigit(literal.charAt(i + 1))) {
+				final String before = literal.substring(0, i);
+				names.removeIf(name -> ("&" + name).endsWith(before) || ("?" + name).endsWith(before)
+						|| before.endsWith("&" + name) || before.endsWith("?" + name));
+			}
+		}
+	}
+
+	private static boolean isDigits(final String s, final int start, final int end) {
+		for(int i=start; i<end; i++) {
+			if (!isDigit(s.charAt(i))) {
+				return false;
+			}
+		}
+		return start < end;
+	}
+
+	private static boolean isDigit(final char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean hasDotSegment(final String path) {
+		return path.contains("/./") || path.contains("/../") || path.endsWith("/.") || path.endsWith("/..");
+	}
+
+	private static String removeDotSegments(final String path) {
+		final String[] segments = path.substring(1).split("/", -1);
+		final List<String> kept = new ArrayList<String>(segments.length);
+		for(int i=0; i<segments.length; i++) {
+			final boolean last = i == segments.length - 1;
+			if (segments[i].equals("..")) {
+				if (!kept.isEmpty()) {
+					kept.remove(kept.size() - 1);
+				}
+			} else if (!segments[i].equals(".")) {
+				kept.add(segments[i]);
+				continue;
+			}
+			if (last) {
+				kept.add("");
+			}
+		}
+		return "/" + String.join("/", kept);
+	}
+}
@@ -0,0 +1,209 @@
+package net.anfoya.java.net.filtered.easylist.index;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Aho-Corasick automaton finding all occurrences of a set of distinct
+ * patterns in a single pass over the text.
+ *
+ * States are plain ints so a scan doesn't allocate:
+ * <pre>
+ * int state = ROOT;
+ * for(each char c) {
+ *     state = automaton.step(state, c);
+ *     for(int s = automaton.firstOutput(state); s != NONE; s = automaton.nextOutput(s)) {
+ *         // automaton.patternAt(s) ends at current char
+ *     }
+ * }
+ * </pre>
+ */
+public class AhoCorasick {
+	public static final int ROOT = 0;
+	public static final int NONE = -1;
+
+	private static final long EMPTY = -1L;
+
+	// trie transitions in an open addressing table keyed by (state, char)
+	private final long[] edgeKeys;
+	private final int[] edgeTargets;
+	private final int edgeShift;
+
+	private final int[] fail;
+	private final int[] pattern;
+	private final int[] output;
+	private final int patternCount;
+
+	public AhoCorasick(final List<String> patterns) {
+		patternCount = patterns.size();
+
+		// build trie with linked children
+		int capacity = 16;
+		for(final String p: patterns) {
+			capacity += p.length();
+		}
+		final int[] firstChild = new int[capacity];
+		final int[] nextSibling = new int[capacity];
+		final char[] label = new char[capacity];
+		final int[] patternAt = new int[capacity];
+		Arrays.fill(firstChild, NONE);
+		Arrays.fill(patternAt, NONE);
+		int nodeCount = 1;
+		for(int id=0; id<patternCount; id++) {
+			final String p = patterns.get(id);
+			int node = ROOT;
+			for(int i=0, n=p.length(); i<n; i++) {
+				final char c = p.charAt(i);
+				int child = firstChild[node];
+				while(child != NONE && label[child] != c) {
+					child = nextSibling[child];
+				}
+				if (child == NONE) {
+					child = nodeCount++;
+					label[child] = c;
+					nextSibling[child] = firstChild[node];
+					firstChild[node] = child;
+				}
+				node = child;
+			}
+			patternAt[node] = id;
+		}
+		pattern = Arrays.copyOf(patternAt, nodeCount);
+
+		// index transitions
+		int bits = 4;
+		while(1 << bits < nodeCount * 2) {
+			bits++;
+		}
+		edgeShift = 64 - bits;
+		edgeKeys = new long[1 << bits];
+		edgeTargets = new int[1 << bits];
+		Arrays.fill(edgeKeys, EMPTY);
+		final int[] queue = new int[nodeCount];
+		int head = 0, tail = 0;
+		queue[tail++] = ROOT;
+		while(head < tail) {
+			final int node = queue[head++];
+			for(int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+				putEdge(node, label[child], child);
+				queue[tail++] = child;
+			}
+		}
+
+		// failure and output links, breadth first
+		fail = new int[nodeCount];
+		output = new int[nodeCount];
+		output[ROOT] = NONE;
+		for(int child = firstChild[ROOT]; child != NONE; child = nextSibling[child]) {
+			fail[child] = ROOT;
+			output[child] = NONE;
+		}
+		for(int i=1; i<nodeCount; i++) {
+			final int node = queue[i];
+			for(int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+				final int f = fail[child] = step(fail[node], label[child]);
+				output[child] = pattern[f] != NONE? f: output[f];
+			}
+		}
+	}
+
+	private AhoCorasick(final int patternCount, final int[] pattern, final int[] fail, final int[] output
+			, final int edgeShift, final long[] edgeKeys, final int[] edgeTargets) {
+		this.patternCount = patternCount;
+		this.pattern = pattern;
+		this.fail = fail;
+		this.output = output;
+		this.edgeShift = edgeShift;
+		this.edgeKeys = edgeKeys;
+		this.edgeTargets = edgeTargets;
+	}
+
+	static AhoCorasick read(final ByteBuffer in) {
+		final int patternCount = in.getInt();
+		final int[] pattern = RuleFile.readInts(in);
+		final int[] fail = RuleFile.readInts(in);
+		final int[] output = RuleFile.readInts(in);
+		final int edgeShift = in.getInt();
+		final long[] edgeKeys = RuleFile.readLongs(in);
+		final int[] edgeTargets = RuleFile.readInts(in);
+		return new AhoCorasick(patternCount, pattern, fail, output, edgeShift, edgeKeys, edgeTargets);
+	}
+
+	void write(final DataOutput out) throws IOException {
+		out.writeInt(patternCount);
+		RuleFile.writeInts(out, pattern);
+		RuleFile.writeInts(out, fail);
+		RuleFile.writeInts(out, output);
+		out.writeInt(edgeShift);
+		RuleFile.writeLongs(out, edgeKeys);
+		RuleFile.writeInts(out, edgeTargets);
+	}
+
+	public int getPatternCount() {
+		return patternCount;
+	}
+
+	public int getStateCount() {
+		return pattern.length;
+	}
+
+	public int step(int state, final char c) {
+		while(true) {
+			final int next = getEdge(state, c);
+			if (next != NONE) {
+				return next;
+			}
+			if (state == ROOT) {
+				return ROOT;
+			}
+			state = fail[state];
+		}
+	}
+
+	/**
+	 * @return the first state with a pattern ending in state (the state itself or one of its suffixes)
+	 */
+	public int firstOutput(final int state) {
+		return pattern[state] != NONE? state: output[state];
+	}
+
+	public int nextOutput(final int state) {
+		return output[state];
+	}
+
+	public int patternAt(final int state) {
+		return pattern[state];
+	}
+
+	private int hash(final long key) {
+		return (int) (key * 0x9E3779B97F4A7C15L >>> edgeShift);
+	}
+
+	private void putEdge(final int state, final char c, final int target) {
+		final long key = (long) state << 16 | c;
+		final int mask = edgeKeys.length - 1;
+		int i = hash(key);
+		while(edgeKeys[i] != EMPTY) {
+			i = i + 1 & mask;
+		}
+		edgeKeys[i] = key;
+		edgeTargets[i] = target;
+	}
+
+	private int getEdge(final int state, final char c) {
+		final long key = (long) state << 16 | c;
+		final int mask = edgeKeys.length - 1;
+		int i = hash(key);
+		long k;
+		while((k = edgeKeys[i]) != EMPTY) {
+			if (k == key) {
+				return edgeTargets[i];
+			}
+			i = i + 1 & mask;
+		}
+		return NONE;
+	}
+}
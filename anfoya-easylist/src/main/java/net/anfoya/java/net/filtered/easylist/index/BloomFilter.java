@@ -0,0 +1,145 @@
+package net.anfoya.java.net.filtered.easylist.index;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.anfoya.java.net.filtered.easylist.model.Engine;
+import net.anfoya.java.net.filtered.easylist.model.Rule;
+import net.anfoya.java.net.filtered.easylist.parser.Tokenizer;
+
+/**
+ * Bloom filter of the keys of the rules (see RuleKey), mightMatch() probes the
+ * host suffixes and the tokens of a URL, false meaning no rule can match it
+ * (whatever the request context). The few rules without key are checked
+ * directly, behind the probes.
+ */
+public class BloomFilter {
+	private static final String HTTP = "http://";
+	private static final String HTTPS = "https://";
+	// typical count of probes for a URL, the false positive rate of a probe is that of a URL divided by this
+	private static final int URL_PROBES = 32;
+
+	private final long[] bits;
+	private final int mask;
+	private final int hashCount;
+	private final int keyCount;
+	private final RuleIndex unkeyed;
+	private final int unkeyedCount;
+
+	/**
+	 * @param falsePositiveRate of the probes of a URL, 0 for a filter which always might match
+	 */
+	public BloomFilter(final Collection<Rule> rules, final double falsePositiveRate, final Engine engine) {
+		final Set<Long> keys = new HashSet<Long>();
+		final List<Rule> unkeyed = new ArrayList<Rule>();
+		for(final Rule rule: rules) {
+			final long key = RuleKey.of(rule);
+			if (key == 0) {
+				unkeyed.add(rule);
+			} else {
+				keys.add(key);
+			}
+		}
+		keyCount = keys.size();
+		unkeyedCount = unkeyed.size();
+
+		if (falsePositiveRate <= 0) {
+			bits = null;
+			mask = 0;
+			hashCount = 0;
+			this.unkeyed = null;
+			return;
+		}
+
+		// optimal size rounded up to a power of 2, false positives only get rarer
+		final double probeRate = falsePositiveRate / URL_PROBES;
+		final double optimalBits = -Math.max(1, keyCount) * Math.log(probeRate) / (Math.log(2) * Math.log(2));
+		final int bitCount = Integer.highestOneBit((int) Math.min(1 << 30, Math.max(64, optimalBits)) * 2 - 1);
+		bits = new long[bitCount / 64];
+		mask = bitCount - 1;
+		hashCount = Math.max(1, (int) Math.round(-Math.log(probeRate) / Math.log(2)));
+		for(final long key: keys) {
+			final int h1 = (int) key, h2 = (int) (key >>> 32) | 1;
+			for(int i=0; i<hashCount; i++) {
+				final int bit = h1 + i * h2 & mask;
+				bits[bit >>> 6] |= 1L << bit;
+			}
+		}
+		this.unkeyed = unkeyed.isEmpty()? null: new LiteralIndex(unkeyed, engine);
+	}
+
+	/**
+	 * @return false if no rule can match the URL, true if one might
+	 */
+	public boolean mightMatch(final String url) {
+		if (bits == null) {
+			return true;
+		}
+
+		// host suffixes, as looked up in the domain trie
+		int hostStart = -1;
+		if (url.startsWith(HTTP)) {
+			hostStart = HTTP.length();
+		} else if (url.startsWith(HTTPS)) {
+			hostStart = HTTPS.length();
+		}
+		if (hostStart != -1) {
+			int hostEnd = hostStart;
+			while(hostEnd < url.length() && Tokenizer.isHostChar(url.charAt(hostEnd))) {
+				hostEnd++;
+			}
+			for(int i=hostEnd-1; i>=hostStart-1; i--) {
+				if ((i == hostStart-1 || url.charAt(i) == '.') && contains(RuleKey.hash(RuleKey.DOMAIN, url, i + 1, hostEnd))) {
+					return true;
+				}
+			}
+		}
+
+		final int length = url.length();
+		int start = -1;
+		for(int i=0; i<=length; i++) {
+			if (i < length && Tokenizer.isTokenChar(url.charAt(i))) {
+				if (start == -1) {
+					start = i;
+				}
+			} else if (start != -1) {
+				if (contains(RuleKey.hash(RuleKey.TOKEN, url, start, i))
+						|| i - start >= RuleKey.AFFIX_LENGTH
+						&& (contains(RuleKey.hash(RuleKey.PREFIX, url, start, start + RuleKey.AFFIX_LENGTH))
+								|| contains(RuleKey.hash(RuleKey.SUFFIX, url, i - RuleKey.AFFIX_LENGTH, i)))) {
+					return true;
+				}
+				start = -1;
+			}
+		}
+
+		return unkeyed != null && unkeyed.find(url) != null;
+	}
+
+	/**
+	 * @return memory used by the bits (bytes)
+	 */
+	public int getByteSize() {
+		return bits == null? 0: bits.length * 8;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("bloom filter of %d keys (%dKB, %d hashes, %d rules without key)"
+				, keyCount, getByteSize() / 1024, hashCount, unkeyedCount);
+	}
+
+	private boolean contains(final long hash) {
+		final int h1 = (int) hash, h2 = (int) (hash >>> 32) | 1;
+		for(int i=0; i<hashCount; i++) {
+			final int bit = h1 + i * h2 & mask;
+			if ((bits[bit >>> 6] & 1L << bit) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,57 @@
+package net.anfoya.java.net.filtered.easylist.index;
+
+import net.anfoya.java.net.filtered.easylist.model.RequestContext;
+import net.anfoya.java.net.filtered.easylist.model.Rule;
+
+public class CompositeIndex implements RuleIndex {
+	private final RuleIndex[] indexes;
+
+	public CompositeIndex(final RuleIndex... indexes) {
+		this.indexes = indexes;
+	}
+
+	@Override
+	public Rule find(final String url) {
+		return find(url, RequestContext.UNKNOWN);
+	}
+
+	@Override
+	public Rule find(final String url, final RequestContext context) {
+		for(final RuleIndex index: indexes) {
+			final Rule rule = index.find(url, context);
+			if (rule != null) {
+				return rule;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Rule findHost(final String host) {
+		for(final RuleIndex index: indexes) {
+			final Rule rule = index.findHost(host);
+			if (rule != null) {
+				return rule;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for(final RuleIndex index: indexes) {
+			size += index.size();
+		}
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		for(final RuleIndex index: indexes) {
+			sb.append(sb.length() == 0? "": " + ").append(index);
+		}
+		return sb.toString();
+	}
+}
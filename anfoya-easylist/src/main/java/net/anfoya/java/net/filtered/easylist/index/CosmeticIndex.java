@@ -0,0 +1,183 @@
+package net.anfoya.java.net.filtered.easylist.index;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.anfoya.java.net.filtered.easylist.model.Rule;
+import net.anfoya.java.net.filtered.easylist.model.RuleType;
+
+/**
+ * Element hiding rules ("##selector", "domain##selector", "domain#@#selector")
+ * bucketed by domain: generic selectors are joined in a stylesheet once, the
+ * specific ones and exceptions are looked up by the suffixes of the page host.
+ *
+ * The stylesheet of a host is computed on its first request and kept in an LRU,
+ * the generic part is shared unless an exception takes a generic selector out.
+ */
+public class CosmeticIndex {
+	private static final int CACHE_SIZE = 256;
+	// selectors per CSS rule, an invalid selector only drops its own group
+	private static final int GROUP_SIZE = 20;
+	private static final String HIDING = " { display: none !important; }\n";
+
+	private final Set<String> generic;
+	private final String genericCss;
+	// generic rules but on some domains ("~domain##selector")
+	private final List<Rule> negated;
+	private final List<Rule> negatedExceptions;
+	private final Map<String, List<Rule>> specific;
+	private final Map<String, List<Rule>> exceptions;
+	private final Map<String, String> cache;
+	private final int size;
+
+	@SuppressWarnings("serial")
+	public CosmeticIndex(final Collection<Rule> rules) {
+		final Set<String> globalExceptions = new HashSet<String>();
+		for(final Rule rule: rules) {
+			if (rule.getType() == RuleType.cosmeticException && rule.getOptions().getDomainList() == null) {
+				globalExceptions.add(rule.getEffectiveLine());
+			}
+		}
+
+		generic = new LinkedHashSet<String>();
+		negated = new ArrayList<Rule>();
+		negatedExceptions = new ArrayList<Rule>();
+		specific = new HashMap<String, List<Rule>>();
+		exceptions = new HashMap<String, List<Rule>>();
+		int size = 0;
+		for(final Rule rule: rules) {
+			final String[] domains = rule.getOptions().getDomains();
+			if (rule.getType() == RuleType.cosmetic) {
+				if (globalExceptions.contains(rule.getEffectiveLine())) {
+					continue;
+				}
+				if (rule.getOptions().getDomainList() == null) {
+					generic.add(rule.getEffectiveLine());
+				} else if (domains.length == 0) {
+					negated.add(rule);
+				} else {
+					put(specific, domains, rule);
+				}
+			} else if (rule.getType() == RuleType.cosmeticException) {
+				if (rule.getOptions().getDomainList() == null) {
+					// applied above
+				} else if (domains.length == 0) {
+					negatedExceptions.add(rule);
+				} else {
+					put(exceptions, domains, rule);
+				}
+			} else {
+				continue;
+			}
+			size++;
+		}
+		this.size = size;
+
+		genericCss = join(generic);
+		cache = Collections.synchronizedMap(new LinkedHashMap<String, String>(CACHE_SIZE * 4 / 3 + 1, .75f, true) {
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+				return size() > CACHE_SIZE;
+			}
+		});
+	}
+
+	/**
+	 * @return stylesheet hiding the elements matched by the rules applying on a page of this host
+	 */
+	public String getHidingCss(final String host) {
+		final String pageHost = host.toLowerCase();
+		String css = cache.get(pageHost);
+		if (css == null) {
+			css = build(pageHost);
+			cache.put(pageHost, css);
+		}
+		return css;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("cosmetic index of %d rules (%d generic)", size, generic.size());
+	}
+
+	// joined once per host, a host without specific rules shares the generic stylesheet
+	private String build(final String host) {
+		final Set<String> excepted = new HashSet<String>();
+		for(final Rule rule: find(exceptions, negatedExceptions, host)) {
+			excepted.add(rule.getEffectiveLine());
+		}
+
+		final Set<String> selectors = new LinkedHashSet<String>();
+		for(final Rule rule: find(specific, negated, host)) {
+			final String selector = rule.getEffectiveLine();
+			if (!excepted.contains(selector) && !generic.contains(selector)) {
+				selectors.add(selector);
+			}
+		}
+
+		String genericCss = this.genericCss;
+		if (!Collections.disjoint(excepted, generic)) {
+			final Set<String> allowed = new LinkedHashSet<String>(generic);
+			allowed.removeAll(excepted);
+			genericCss = join(allowed);
+		}
+
+		return selectors.isEmpty()? genericCss: genericCss + join(selectors);
+	}
+
+	// rules keyed by the host or one of its parent domains, plus the listed ones, which apply on the host
+	private static List<Rule> find(final Map<String, List<Rule>> rules, final List<Rule> others, final String host) {
+		final List<Rule> found = new ArrayList<Rule>();
+		for(int i=0; i != -1; ) {
+			final List<Rule> domainRules = rules.get(host.substring(i));
+			if (domainRules != null) {
+				found.addAll(domainRules);
+			}
+			i = host.indexOf('.', i);
+			if (i != -1) {
+				i++;
+			}
+		}
+		found.addAll(others);
+		found.removeIf(rule -> !rule.getOptions().acceptsPage(host));
+		return found;
+	}
+
+	private static void put(final Map<String, List<Rule>> rules, final String[] domains, final Rule rule) {
+		for(final String domain: domains) {
+			List<Rule> domainRules = rules.get(domain);
+			if (domainRules == null) {
+				domainRules = new ArrayList<Rule>(1);
+				rules.put(domain, domainRules);
+			}
+			domainRules.add(rule);
+		}
+	}
+
+	private static String join(final Collection<String> selectors) {
+		final StringBuilder css = new StringBuilder();
+		int count = 0;
+		for(final String selector: selectors) {
+			css.append(count % GROUP_SIZE == 0? "": ",\n").append(selector);
+			if (++count % GROUP_SIZE == 0) {
+				css.append(HIDING);
+			}
+		}
+		if (count % GROUP_SIZE != 0) {
+			css.append(HIDING);
+		}
+		return css.toString();
+	}
+}
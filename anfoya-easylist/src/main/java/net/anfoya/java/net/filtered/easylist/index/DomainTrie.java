@@ -0,0 +1,222 @@
+package net.anfoya.java.net.filtered.easylist.index;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.anfoya.java.net.filtered.easylist.model.Engine;
+import net.anfoya.java.net.filtered.easylist.model.RequestContext;
+import net.anfoya.java.net.filtered.easylist.model.Rule;
+import net.anfoya.java.net.filtered.easylist.model.RuleOptions;
+import net.anfoya.java.net.filtered.easylist.model.RuleStats;
+import net.anfoya.java.net.filtered.easylist.model.RuleType;
+import net.anfoya.java.net.filtered.easylist.parser.Terminal;
+import net.anfoya.java.net.filtered.easylist.parser.Tokenizer;
+
+/**
+ * Host anchored rules ("||domain^...") stored in a trie of reversed domain
+ * labels (com -> doubleclick -> ad), each node holding its rules. The pattern
+ * of what follows the domain is compiled by the rule on first match and
+ * dropped with its other compiled forms when it goes cold (see Rule.sweep()).
+ *
+ * A URL host is extracted once and the trie walked label by label, so matching
+ * is proportional to the number of labels instead of the number of rules.
+ *
+ * A host is decided on its own (a CONNECT tunnel) by the rules applying to
+ * all of its URLs: "||domain^" or "||domain/", optionally followed by "*".
+ * An exclusion must have no option, its constraints can't be checked without
+ * a request. An exception applies whatever its options, as the host could be
+ * allowed on some page.
+ */
+public class DomainTrie implements RuleIndex {
+	private static final String HTTP = "http://";
+	private static final String HTTPS = "https://";
+
+	private final Engine engine;
+	private final Node root;
+	private int size;
+
+	public DomainTrie(final Engine engine) {
+		this.engine = engine;
+		root = new Node();
+		size = 0;
+	}
+
+	/**
+	 * @return false if the rule is not host anchored
+	 */
+	public boolean add(final Rule rule) {
+		final String domain = rule.getDomain();
+		if (domain == null) {
+			return false;
+		}
+
+		Node node = root;
+		int end = domain.length();
+		for(int i=end-1; i>=-1; i--) {
+			if (i == -1 || domain.charAt(i) == '.') {
+				node = node.getOrCreate(domain.substring(i + 1, end));
+				end = i;
+			}
+		}
+
+		node.add(rule, Terminal.SEPARATOR.value().equals(rule.getRest()), isHostWide(rule.getRest()));
+		size++;
+
+		return true;
+	}
+
+	@Override
+	public Rule find(final String url) {
+		return find(url, RequestContext.UNKNOWN);
+	}
+
+	@Override
+	public Rule find(final String url, final RequestContext context) {
+		final int hostStart;
+		if (url.startsWith(HTTP)) {
+			hostStart = HTTP.length();
+		} else if (url.startsWith(HTTPS)) {
+			hostStart = HTTPS.length();
+		} else {
+			return null;
+		}
+		int hostEnd = hostStart;
+		while(hostEnd < url.length() && Tokenizer.isHostChar(url.charAt(hostEnd))) {
+			hostEnd++;
+		}
+
+		Node node = root;
+		int end = hostEnd;
+		for(int i=hostEnd-1; i>=hostStart-1; i--) {
+			if (i == hostStart-1 || url.charAt(i) == '.') {
+				node = node.get(url.substring(i + 1, end));
+				if (node == null) {
+					break;
+				}
+				final Rule rule = node.find(url, hostEnd, context, engine);
+				if (rule != null) {
+					return rule;
+				}
+				end = i;
+			}
+		}
+
+		return null;
+	}
+
+	@Override
+	public Rule findHost(final String host) {
+		Node node = root;
+		int end = host.length();
+		for(int i=end-1; i>=-1; i--) {
+			if (i == -1 || host.charAt(i) == '.') {
+				node = node.get(host.substring(i + 1, end));
+				if (node == null) {
+					break;
+				}
+				final Rule rule = node.findHost();
+				if (rule != null) {
+					return rule;
+				}
+				end = i;
+			}
+		}
+
+		return null;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("domain trie of %d rules", size);
+	}
+
+	// what follows the domain matches the rest of any URL of the host
+	private static boolean isHostWide(final String rest) {
+		final String pattern = rest.endsWith(Terminal.WILDCARD.value())? rest.substring(0, rest.length() - Terminal.WILDCARD.length()): rest;
+		return pattern.equals(Terminal.SEPARATOR.value()) || pattern.equals("/");
+	}
+
+	private static class Node {
+		private Map<String, Node> children;
+		private final List<Rule> rules;
+		// rules followed by a single separator, matched without pattern
+		private final BitSet separators;
+		// rules applying to every URL of the host
+		private final BitSet hostWide;
+
+		public Node() {
+			children = null;
+			rules = new ArrayList<Rule>(0);
+			separators = new BitSet(0);
+			hostWide = new BitSet(0);
+		}
+
+		public Node get(final String label) {
+			return children == null? null: children.get(label);
+		}
+
+		public Node getOrCreate(final String label) {
+			if (children == null) {
+				children = new HashMap<String, Node>(2);
+			}
+			Node child = children.get(label);
+			if (child == null) {
+				child = new Node();
+				children.put(label, child);
+			}
+			return child;
+		}
+
+		public void add(final Rule rule, final boolean separator, final boolean hostWide) {
+			separators.set(rules.size(), separator);
+			this.hostWide.set(rules.size(), hostWide);
+			rules.add(rule);
+		}
+
+		public Rule findHost() {
+			for(int i = hostWide.nextSetBit(0); i != -1; i = hostWide.nextSetBit(i + 1)) {
+				final Rule rule = rules.get(i);
+				if (rule.getType() == RuleType.exception || rule.getOptions() == RuleOptions.NONE) {
+					return rule;
+				}
+			}
+			return null;
+		}
+
+		public Rule find(final String url, final int hostEnd, final RequestContext context, final Engine engine) {
+			for(int i=0, n=rules.size(); i<n; i++) {
+				final Rule rule = rules.get(i);
+				final boolean profiled = RuleStats.isEnabled();
+				final long start = profiled? System.nanoTime(): 0;
+				final RuleOptions options = rule.getOptions();
+				final boolean applies = (options == RuleOptions.NONE || options.accepts(context, rule.getType() == RuleType.exception))
+						&& matches(rule, separators.get(i), url, hostEnd, engine);
+				if (profiled) {
+					rule.record(applies, System.nanoTime() - start);
+				}
+				if (applies) {
+					return rule;
+				}
+			}
+			return null;
+		}
+
+		private boolean matches(final Rule rule, final boolean separator, final String url, final int hostEnd, final Engine engine) {
+			if (separator) {
+				return hostEnd < url.length();
+			} else if (engine == Engine.AUTOMATON) {
+				return rule.getRestAutomaton().matches(url, hostEnd);
+			} else {
+				return rule.getRestRegex().matcher(url).region(hostEnd, url.length()).matches();
+			}
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package net.anfoya.java.net.filtered.easylist.index;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.anfoya.java.net.filtered.easylist.model.Engine;
+import net.anfoya.java.net.filtered.easylist.model.Rule;
+
+public enum IndexType {
+	TOKEN, LITERAL;
+
+	/**
+	 * @return host anchored rules in a domain trie, the others in an index of this type, all evaluated with engine
+	 * and leaving out the rules the optimizer finds redundant
+	 */
+	public RuleIndex build(final Collection<Rule> rules, final Engine engine) {
+		final DomainTrie trie = new DomainTrie(engine);
+		final List<Rule> others = fill(trie, new RuleOptimizer().optimize(rules));
+
+		final RuleIndex index;
+		switch(this) {
+		case TOKEN:
+			index = new TokenIndex(others, engine);
+			break;
+		case LITERAL:
+			index = new LiteralIndex(others, engine);
+			break;
+		default:
+			throw new IllegalStateException(toString());
+		}
+
+		return compose(trie, index);
+	}
+
+	/**
+	 * writes what read() needs to restore the index of rules, rules being referred to by their position
+	 */
+	void write(final List<Rule> rules, final Engine engine, final DataOutput out) throws IOException {
+		switch(this) {
+		case TOKEN:
+			// cheap to build, nothing stored
+			break;
+		case LITERAL:
+			final Map<Rule, Integer> ids = new IdentityHashMap<Rule, Integer>();
+			for(final Rule rule: rules) {
+				ids.put(rule, ids.size());
+			}
+			// the rules kept by the optimizer, then the ones build() leaves to the literal index
+			final List<Rule> optimized = new RuleOptimizer().optimize(rules);
+			final List<Rule> others = new ArrayList<Rule>();
+			final int[] optimizedIds = new int[optimized.size()];
+			for(int i=0; i<optimizedIds.length; i++) {
+				final Rule rule = optimized.get(i);
+				optimizedIds[i] = ids.get(rule);
+				if (rule.getDomain() == null) {
+					others.add(rule);
+				}
+			}
+			RuleFile.writeInts(out, optimizedIds);
+			new LiteralIndex(others, engine).write(ids, out);
+			break;
+		default:
+			throw new IllegalStateException(toString());
+		}
+	}
+
+	/**
+	 * @return the index of rules restored from what write() stored
+	 */
+	RuleIndex read(final List<Rule> rules, final Engine engine, final ByteBuffer in) {
+		switch(this) {
+		case TOKEN:
+			return build(rules, engine);
+		case LITERAL:
+			final DomainTrie trie = new DomainTrie(engine);
+			for(final int id: RuleFile.readInts(in)) {
+				trie.add(rules.get(id));
+			}
+			return compose(trie, LiteralIndex.read(rules, engine, in));
+		default:
+			throw new IllegalStateException(toString());
+		}
+	}
+
+	// adds host anchored rules to the trie and returns the others
+	private static List<Rule> fill(final DomainTrie trie, final Collection<Rule> rules) {
+		final List<Rule> others = new ArrayList<Rule>();
+		for(final Rule rule: rules) {
+			if (!trie.add(rule)) {
+				others.add(rule);
+			}
+		}
+		return others;
+	}
+
+	private static RuleIndex compose(final DomainTrie trie, final RuleIndex index) {
+		return trie.size() == 0? index: new CompositeIndex(trie, index);
+	}
+}
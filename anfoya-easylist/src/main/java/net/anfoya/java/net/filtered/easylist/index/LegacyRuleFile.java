@@ -0,0 +1,89 @@
+package net.anfoya.java.net.filtered.easylist.index;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import net.anfoya.java.io.SerializedFile;
+import net.anfoya.java.net.filtered.easylist.model.Rule;
+import net.anfoya.java.net.filtered.easylist.model.RuleType;
+
+/**
+ * Rules serialized by the versions before RuleFile (a set of Rule), read back
+ * as their lines to be parsed again. Rule changed since and never pinned its
+ * serialVersionUID, so its description in the stream is swapped for the one
+ * of LegacyRule, which has the fields Rule had then.
+ */
+@SuppressWarnings("serial")
+public class LegacyRuleFile extends SerializedFile<Collection<?>> {
+
+	public LegacyRuleFile(final String filepath) {
+		super(filepath);
+	}
+
+	/**
+	 * @return lines of the rules, without the empty ones
+	 */
+	public List<String> loadLines() throws IOException, ClassNotFoundException {
+		final Object rules;
+		try (ObjectInputStream in = new LegacyInputStream(new BufferedInputStream(new FileInputStream(this)))) {
+			rules = in.readObject();
+		}
+		if (!(rules instanceof Collection)) {
+			throw new InvalidClassException("not a set of rules: " + rules.getClass());
+		}
+		final List<String> lines = new ArrayList<String>();
+		for(final Object rule: (Collection<?>) rules) {
+			final String line = ((LegacyRule) rule).line;
+			if (line != null && !line.isEmpty()) {
+				lines.add(line);
+			}
+		}
+		return lines;
+	}
+
+	private static class LegacyInputStream extends ObjectInputStream {
+		public LegacyInputStream(final InputStream in) throws IOException {
+			super(in);
+		}
+
+		@Override
+		protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+			final ObjectStreamClass description = super.readClassDescriptor();
+			if (!description.getName().equals(Rule.class.getName())) {
+				return description;
+			}
+			// the fields are read as described, they must be the same
+			final ObjectStreamClass legacy = ObjectStreamClass.lookup(LegacyRule.class);
+			if (description.getFields().length != legacy.getFields().length) {
+				throw new InvalidClassException(description.getName(), "unknown serialized form");
+			}
+			for(int i=0; i<legacy.getFields().length; i++) {
+				if (!description.getFields()[i].getName().equals(legacy.getFields()[i].getName())) {
+					throw new InvalidClassException(description.getName(), "unknown serialized form");
+				}
+			}
+			return legacy;
+		}
+	}
+
+	// Rule as serialized by the versions before RuleFile
+	private static class LegacyRule implements Serializable {
+		@SuppressWarnings("unused")
+		private RuleType type;
+		@SuppressWarnings("unused")
+		private Pattern regex;
+		@SuppressWarnings("unused")
+		private String effLine;
+		private String line;
+	}
+}
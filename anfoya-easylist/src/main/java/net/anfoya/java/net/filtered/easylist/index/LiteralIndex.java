@@ -0,0 +1,264 @@
+package net.anfoya.java.net.filtered.easylist.index;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import net.anfoya.java.net.filtered.easylist.model.Engine;
+import net.anfoya.java.net.filtered.easylist.model.RequestContext;
+import net.anfoya.java.net.filtered.easylist.model.Rule;
+import net.anfoya.java.net.filtered.easylist.model.RuleStats;
+
+/**
+ * All rule literals compiled in one Aho-Corasick automaton, a single pass over
+ * the URL gives the rules whose literals all occur and only those are evaluated.
+ * A literal only rule ("/ads/") matches as soon as its literal occurs.
+ */
+public class LiteralIndex implements RuleIndex {
+	private static final Rule[] NO_RULE = new Rule[0];
+	// scratch kept for the next lookups, about as many as run at once
+	private static final int MAX_FREE_COUNTERS = 2 * Runtime.getRuntime().availableProcessors();
+
+	private final Engine engine;
+	private final AhoCorasick automaton;
+	private final Rule[] rules;
+	private final int[] ruleLiteralCounts;
+	private final boolean[] literalOnly;
+	// rules of each literal, literalRules[literalRuleStarts[l]..literalRuleStarts[l+1]]
+	private final int[] literalRuleStarts;
+	private final int[] literalRules;
+	private final Rule[] fallback;
+
+	private final int literalCount;
+	// free scratch, shared by the threads as a thread local would make one per virtual thread
+	private final BlockingQueue<Counters> counters;
+
+	public LiteralIndex(final Collection<Rule> rules, final Engine engine) {
+		this.engine = engine;
+		final Map<String, Integer> literalIds = new HashMap<String, Integer>();
+		final List<String> literals = new ArrayList<String>();
+		final List<Rule> literalRules = new ArrayList<Rule>();
+		final List<int[]> ruleLiterals = new ArrayList<int[]>();
+		final List<Rule> fallback = new ArrayList<Rule>();
+		for(final Rule rule: rules) {
+			final Set<Integer> ids = new LinkedHashSet<Integer>();
+			for(final String literal: rule.getLiterals()) {
+				Integer id = literalIds.get(literal);
+				if (id == null) {
+					id = literals.size();
+					literalIds.put(literal, id);
+					literals.add(literal);
+				}
+				ids.add(id);
+			}
+			if (ids.isEmpty()) {
+				fallback.add(rule);
+			} else {
+				final int[] idArray = new int[ids.size()];
+				int i = 0;
+				for(final Integer id: ids) {
+					idArray[i++] = id;
+				}
+				literalRules.add(rule);
+				ruleLiterals.add(idArray);
+			}
+		}
+
+		this.automaton = new AhoCorasick(literals);
+		this.rules = literalRules.toArray(NO_RULE);
+		this.ruleLiteralCounts = new int[this.rules.length];
+		this.literalOnly = getLiteralOnly(this.rules);
+		this.literalRuleStarts = new int[literals.size() + 1];
+		for(int r=0; r<this.rules.length; r++) {
+			final int[] ids = ruleLiterals.get(r);
+			ruleLiteralCounts[r] = ids.length;
+			for(final int id: ids) {
+				literalRuleStarts[id + 1]++;
+			}
+		}
+		for(int l=0; l<literals.size(); l++) {
+			literalRuleStarts[l + 1] += literalRuleStarts[l];
+		}
+		this.literalRules = new int[literalRuleStarts[literals.size()]];
+		final int[] next = Arrays.copyOf(literalRuleStarts, literals.size());
+		for(int r=0; r<this.rules.length; r++) {
+			for(final int id: ruleLiterals.get(r)) {
+				this.literalRules[next[id]++] = r;
+			}
+		}
+		this.fallback = fallback.toArray(NO_RULE);
+		this.literalCount = literals.size();
+		this.counters = new ArrayBlockingQueue<Counters>(MAX_FREE_COUNTERS);
+	}
+
+	private LiteralIndex(final Engine engine, final AhoCorasick automaton
+			, final Rule[] rules, final int[] ruleLiteralCounts
+			, final int[] literalRuleStarts, final int[] literalRules
+			, final Rule[] fallback) {
+		this.engine = engine;
+		this.automaton = automaton;
+		this.rules = rules;
+		this.ruleLiteralCounts = ruleLiteralCounts;
+		this.literalOnly = getLiteralOnly(rules);
+		this.literalRuleStarts = literalRuleStarts;
+		this.literalRules = literalRules;
+		this.fallback = fallback;
+		this.literalCount = automaton.getPatternCount();
+		this.counters = new ArrayBlockingQueue<Counters>(MAX_FREE_COUNTERS);
+	}
+
+	/**
+	 * @return index restored from what write() stored, rules being referred to by their position in allRules
+	 */
+	static LiteralIndex read(final List<Rule> allRules, final Engine engine, final ByteBuffer in) {
+		final Rule[] rules = toRules(allRules, RuleFile.readInts(in));
+		final Rule[] fallback = toRules(allRules, RuleFile.readInts(in));
+		final int[] ruleLiteralCounts = RuleFile.readInts(in);
+		final int[] literalRuleStarts = RuleFile.readInts(in);
+		final int[] literalRules = RuleFile.readInts(in);
+		final AhoCorasick automaton = AhoCorasick.read(in);
+		return new LiteralIndex(engine, automaton, rules, ruleLiteralCounts, literalRuleStarts, literalRules, fallback);
+	}
+
+	void write(final Map<Rule, Integer> ids, final DataOutput out) throws IOException {
+		RuleFile.writeInts(out, toIds(ids, rules));
+		RuleFile.writeInts(out, toIds(ids, fallback));
+		RuleFile.writeInts(out, ruleLiteralCounts);
+		RuleFile.writeInts(out, literalRuleStarts);
+		RuleFile.writeInts(out, literalRules);
+		automaton.write(out);
+	}
+
+	@Override
+	public Rule find(final String url) {
+		return find(url, RequestContext.UNKNOWN);
+	}
+
+	@Override
+	public Rule find(final String url, final RequestContext context) {
+		Counters counters = this.counters.poll();
+		if (counters == null) {
+			counters = new Counters(literalCount, rules.length);
+		}
+		try {
+			return find(url, context, counters);
+		} finally {
+			this.counters.offer(counters);
+		}
+	}
+
+	private Rule find(final String url, final RequestContext context, final Counters counters) {
+		final int epoch = counters.nextEpoch();
+		final int[] literalEpochs = counters.literalEpochs;
+		final int[] ruleEpochs = counters.ruleEpochs;
+		final int[] ruleCounts = counters.ruleCounts;
+
+		int state = AhoCorasick.ROOT;
+		for(int i=0, n=url.length(); i<n; i++) {
+			state = automaton.step(state, url.charAt(i));
+			for(int s = automaton.firstOutput(state); s != AhoCorasick.NONE; s = automaton.nextOutput(s)) {
+				final int literal = automaton.patternAt(s);
+				if (literalEpochs[literal] == epoch) {
+					continue;
+				}
+				literalEpochs[literal] = epoch;
+				for(int j=literalRuleStarts[literal], end=literalRuleStarts[literal+1]; j<end; j++) {
+					final int r = literalRules[j];
+					if (ruleEpochs[r] != epoch) {
+						ruleEpochs[r] = epoch;
+						ruleCounts[r] = 0;
+					}
+					if (++ruleCounts[r] == ruleLiteralCounts[r] && applies(r, url, context)) {
+						return rules[r];
+					}
+				}
+			}
+		}
+		for(final Rule rule: fallback) {
+			if (rule.applies(url, context, engine)) {
+				return rule;
+			}
+		}
+
+		return null;
+	}
+
+	private boolean applies(final int r, final String url, final RequestContext context) {
+		if (!literalOnly[r]) {
+			return rules[r].applies(url, context, engine);
+		}
+		if (RuleStats.isEnabled()) {
+			rules[r].record(true, 0);
+		}
+		return true;
+	}
+
+	@Override
+	public int size() {
+		return rules.length + fallback.length;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("literal index of %d rules (%d literals, %d states, %d rules without literal)"
+				, size(), automaton.getPatternCount(), automaton.getStateCount(), fallback.length);
+	}
+
+	private static boolean[] getLiteralOnly(final Rule[] rules) {
+		final boolean[] literalOnly = new boolean[rules.length];
+		for(int r=0; r<rules.length; r++) {
+			literalOnly[r] = rules[r].isLiteral();
+		}
+		return literalOnly;
+	}
+
+	private static Rule[] toRules(final List<Rule> allRules, final int[] ids) {
+		final Rule[] rules = new Rule[ids.length];
+		for(int i=0; i<ids.length; i++) {
+			rules[i] = allRules.get(ids[i]);
+		}
+		return rules;
+	}
+
+	private static int[] toIds(final Map<Rule, Integer> ids, final Rule[] rules) {
+		final int[] ruleIds = new int[rules.length];
+		for(int i=0; i<rules.length; i++) {
+			ruleIds[i] = ids.get(rules[i]);
+		}
+		return ruleIds;
+	}
+
+	// scratch of a lookup, reset lazily by bumping the epoch
+	private static class Counters {
+		private final int[] literalEpochs;
+		private final int[] ruleEpochs;
+		private final int[] ruleCounts;
+		private int epoch;
+
+		public Counters(final int literalCount, final int ruleCount) {
+			literalEpochs = new int[literalCount];
+			ruleEpochs = new int[ruleCount];
+			ruleCounts = new int[ruleCount];
+			epoch = 0;
+		}
+
+		public int nextEpoch() {
+			if (epoch == Integer.MAX_VALUE) {
+				Arrays.fill(literalEpochs, 0);
+				Arrays.fill(ruleEpochs, 0);
+				epoch = 0;
+			}
+			return ++epoch;
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package net.anfoya.java.net.filtered.easylist.index;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.anfoya.java.net.filtered.easylist.model.Engine;
+import net.anfoya.java.net.filtered.easylist.model.Rule;
+import net.anfoya.java.net.filtered.easylist.model.RuleOptions;
+import net.anfoya.java.net.filtered.easylist.model.RuleType;
+
+/**
+ * Compiled rules in a versioned binary file: a string table, fixed size rule
+ * records and the prebuilt match index, so nothing gets parsed nor built when
+ * it's loaded back. The file is read through a memory mapping and written to
+ * a temporary file first, then moved in place. Rules matched otherwise than
+ * by URL (element hiding) are stored without index.
+ */
+@SuppressWarnings("serial")
+public class RuleFile extends File {
+	private static final Logger LOGGER = LoggerFactory.getLogger(RuleFile.class);
+
+	private static final int MAGIC = 0x455A4C42; // EZLB
+	private static final int VERSION = 4;
+
+	private static final int NO_STRING = -1;
+	private static final int NO_INDEX = -1;
+	// type, token, domain, option mask, option domains, effective line, line
+	private static final int RECORD_SIZE = 7;
+
+	public RuleFile(final String filepath) {
+		super(filepath);
+	}
+
+	/**
+	 * @param indexType null for rules without index
+	 */
+	public Content load(final IndexType indexType, final Engine engine) throws IOException {
+		LOGGER.info("loading {}", this);
+		try (FileChannel channel = FileChannel.open(toPath(), StandardOpenOption.READ)) {
+			final ByteBuffer in = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+				throw new IOException("unsupported format " + this);
+			}
+
+			final int[] stringOffsets = readInts(in);
+			final byte[] stringBytes = readBytes(in);
+			final String[] strings = new String[stringOffsets.length - 1];
+			for(int i=0; i<strings.length; i++) {
+				strings[i] = new String(stringBytes, stringOffsets[i], stringOffsets[i+1] - stringOffsets[i], StandardCharsets.UTF_8);
+			}
+
+			final int[] records = readInts(in);
+			final int[] literalStarts = readInts(in);
+			final int[] literals = readInts(in);
+			final RuleType[] types = RuleType.values();
+			final List<Rule> rules = new ArrayList<Rule>(records.length / RECORD_SIZE);
+			for(int r=0, i=0; i<records.length; r++, i+=RECORD_SIZE) {
+				final String[] ruleLiterals = new String[literalStarts[r+1] - literalStarts[r]];
+				for(int l=0; l<ruleLiterals.length; l++) {
+					ruleLiterals[l] = strings[literals[literalStarts[r] + l]];
+				}
+				rules.add(new Rule(types[records[i]]
+						, get(strings, records[i+1])
+						, ruleLiterals
+						, get(strings, records[i+2])
+						, RuleOptions.of(records[i+3], get(strings, records[i+4]))
+						, strings[records[i+5]]
+						, strings[records[i+6]]));
+			}
+
+			final int storedType = in.getInt();
+			final RuleIndex index = indexType == null? null
+					: storedType == indexType.ordinal()
+					? indexType.read(rules, engine, in)
+					: indexType.build(rules, engine);
+
+			return new Content(rules, index);
+		}
+	}
+
+	/**
+	 * @param indexType null to store the rules without index
+	 */
+	public void save(final Collection<Rule> rules, final IndexType indexType, final Engine engine) throws IOException {
+		LOGGER.info("saving {}", this);
+
+		final List<Rule> ruleList = new ArrayList<Rule>(rules);
+		final Map<String, Integer> stringIds = new HashMap<String, Integer>();
+		final List<String> strings = new ArrayList<String>();
+		final int[] records = new int[ruleList.size() * RECORD_SIZE];
+		final int[] literalStarts = new int[ruleList.size() + 1];
+		final List<Integer> literals = new ArrayList<Integer>();
+		for(int r=0, i=0; r<ruleList.size(); r++, i+=RECORD_SIZE) {
+			final Rule rule = ruleList.get(r);
+			records[i] = rule.getType().ordinal();
+			records[i+1] = put(stringIds, strings, rule.getToken());
+			records[i+2] = put(stringIds, strings, rule.getDomain());
+			records[i+3] = rule.getOptions().getMask();
+			records[i+4] = put(stringIds, strings, rule.getOptions().getDomainList());
+			records[i+5] = put(stringIds, strings, rule.getEffectiveLine());
+			records[i+6] = put(stringIds, strings, rule.getLine());
+			if (rule.getLiterals() != null) {
+				for(final String literal: rule.getLiterals()) {
+					literals.add(put(stringIds, strings, literal));
+				}
+			}
+			literalStarts[r+1] = literals.size();
+		}
+
+		final int[] stringOffsets = new int[strings.size() + 1];
+		final byte[][] stringBytes = new byte[strings.size()][];
+		for(int i=0; i<stringBytes.length; i++) {
+			stringBytes[i] = strings.get(i).getBytes(StandardCharsets.UTF_8);
+			stringOffsets[i+1] = stringOffsets[i] + stringBytes[i].length;
+		}
+
+		final File tmp = new File(getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeInts(out, stringOffsets);
+			out.writeInt(stringOffsets[stringBytes.length]);
+			for(final byte[] bytes: stringBytes) {
+				out.write(bytes);
+			}
+			writeInts(out, records);
+			writeInts(out, literalStarts);
+			final int[] literalIds = new int[literals.size()];
+			for(int i=0; i<literalIds.length; i++) {
+				literalIds[i] = literals.get(i);
+			}
+			writeInts(out, literalIds);
+			if (indexType == null) {
+				out.writeInt(NO_INDEX);
+			} else {
+				out.writeInt(indexType.ordinal());
+				indexType.write(ruleList, engine, out);
+			}
+		}
+
+		try {
+			Files.move(tmp.toPath(), toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (final AtomicMoveNotSupportedException e) {
+			Files.move(tmp.toPath(), toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	public boolean isOlder(final int field, final int value) {
+		try {
+			final Calendar refDate = Calendar.getInstance();
+			refDate.add(field, -1 * value);
+			return lastModified() < refDate.getTimeInMillis();
+		} catch (final Exception e) {
+			return true;
+		}
+	}
+
+	public void clear() {
+		LOGGER.info("clearing {}", this);
+
+		if (exists()) {
+			delete();
+		}
+	}
+
+	private static int put(final Map<String, Integer> ids, final List<String> strings, final String s) {
+		if (s == null) {
+			return NO_STRING;
+		}
+		Integer id = ids.get(s);
+		if (id == null) {
+			id = strings.size();
+			ids.put(s, id);
+			strings.add(s);
+		}
+		return id;
+	}
+
+	private static String get(final String[] strings, final int id) {
+		return id == NO_STRING? null: strings[id];
+	}
+
+	static void writeInts(final DataOutput out, final int[] ints) throws IOException {
+		out.writeInt(ints.length);
+		for(final int i: ints) {
+			out.writeInt(i);
+		}
+	}
+
+	static void writeLongs(final DataOutput out, final long[] longs) throws IOException {
+		out.writeInt(longs.length);
+		for(final long l: longs) {
+			out.writeLong(l);
+		}
+	}
+
+	static int[] readInts(final ByteBuffer in) {
+		final int[] ints = new int[in.getInt()];
+		in.asIntBuffer().get(ints);
+		in.position(in.position() + ints.length * Integer.BYTES);
+		return ints;
+	}
+
+	static long[] readLongs(final ByteBuffer in) {
+		final long[] longs = new long[in.getInt()];
+		in.asLongBuffer().get(longs);
+		in.position(in.position() + longs.length * Long.BYTES);
+		return longs;
+	}
+
+	private static byte[] readBytes(final ByteBuffer in) {
+		final byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return bytes;
+	}
+
+	public static class Content {
+		private final List<Rule> rules;
+		private final RuleIndex index;
+
+		public Content(final List<Rule> rules, final RuleIndex index) {
+			this.rules = rules;
+			this.index = index;
+		}
+
+		public List<Rule> getRules() {
+			return rules;
+		}
+
+		public RuleIndex getIndex() {
+			return index;
+		}
+	}
+}
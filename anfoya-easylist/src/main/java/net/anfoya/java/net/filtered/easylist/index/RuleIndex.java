@@ -0,0 +1,25 @@
+package net.anfoya.java.net.filtered.easylist.index;
+
+import net.anfoya.java.net.filtered.easylist.model.RequestContext;
+import net.anfoya.java.net.filtered.easylist.model.Rule;
+
+public interface RuleIndex {
+	/**
+	 * @return the first rule applying to the URL or null
+	 */
+	Rule find(String url);
+
+	/**
+	 * @return the first rule whose options accept the request context and applying to the URL or null
+	 */
+	Rule find(String url, RequestContext context);
+
+	/**
+	 * @return the first host anchored rule applying to every URL of the host whatever the request (see DomainTrie) or null, there's none out of a domain trie
+	 */
+	default Rule findHost(final String host) {
+		return null;
+	}
+
+	int size();
+}
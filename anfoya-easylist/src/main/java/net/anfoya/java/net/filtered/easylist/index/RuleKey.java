@@ -0,0 +1,140 @@
+package net.anfoya.java.net.filtered.easylist.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.anfoya.java.net.filtered.easylist.model.Rule;
+import net.anfoya.java.net.filtered.easylist.parser.Terminal;
+import net.anfoya.java.net.filtered.easylist.parser.Tokenizer;
+
+/**
+ * Key of a rule, which any URL the rule matches contains:
+ * - the domain of a host anchored rule, a suffix of the URL host
+ * - a token delimited on both sides, one of the URL tokens
+ * - the first (last) chars of a run delimited on its left (right), the start (end) of a URL token
+ */
+final class RuleKey {
+	// length of a run start or end used as key
+	static final int AFFIX_LENGTH = 4;
+
+	// key kinds, hashed with different seeds
+	static final long DOMAIN = 0xcbf29ce484222325L;
+	static final long TOKEN = DOMAIN ^ 1;
+	static final long PREFIX = DOMAIN ^ 2;
+	static final long SUFFIX = DOMAIN ^ 3;
+
+	// in most URLs, only used as key by a rule without better choice
+	private static final Set<String> COMMON_TOKENS = new HashSet<String>(Arrays.asList(
+			"http", "https", "www", "com", "net", "org", "html", "htm", "php", "js", "css", "gif", "jpg", "png"));
+
+	private RuleKey() {
+	}
+
+	/**
+	 * @return most selective key of the rule, 0 if it has none
+	 */
+	static long of(final Rule rule) {
+		final List<Candidate> candidates = getCandidates(rule);
+		return candidates.isEmpty()? 0: candidates.get(0).key;
+	}
+
+	/**
+	 * @return the keys of the rule, most selective first
+	 */
+	static List<Candidate> getCandidates(final Rule rule) {
+		final List<Candidate> candidates = new ArrayList<Candidate>();
+		if (rule.getDomain() != null) {
+			final String domain = rule.getDomain();
+			candidates.add(new Candidate(hash(DOMAIN, domain, 0, domain.length()), Integer.MAX_VALUE));
+			return candidates;
+		}
+
+		String line = rule.getEffectiveLine();
+		boolean anchoredStart = false;
+		if (line.startsWith(Terminal.HTTP_WILDCARD.value())) {
+			line = line.substring(Terminal.HTTP_WILDCARD.length());
+			anchoredStart = true;
+		} else if (line.startsWith(Terminal.STARTS.value())) {
+			line = line.substring(Terminal.STARTS.length());
+			anchoredStart = true;
+		}
+		boolean anchoredEnd = false;
+		if (line.endsWith(Terminal.ENDS.value())) {
+			line = line.substring(0, line.length() - Terminal.ENDS.length());
+			anchoredEnd = true;
+		}
+
+		// rank: uncommon before common, token before affix, then longest
+		final int length = line.length();
+		int start = -1;
+		for(int i=0; i<=length; i++) {
+			if (i < length && Tokenizer.isTokenChar(line.charAt(i))) {
+				if (start == -1) {
+					start = i;
+				}
+			} else if (start != -1) {
+				final boolean delimitedBefore = start == 0? anchoredStart: !isWildcard(line.charAt(start - 1));
+				final boolean delimitedAfter = i == length? anchoredEnd: !isWildcard(line.charAt(i));
+				final int rank = (COMMON_TOKENS.contains(line.substring(start, i).toLowerCase())? 0: Candidate.UNCOMMON) + i - start;
+				if (delimitedBefore && delimitedAfter) {
+					candidates.add(new Candidate(hash(TOKEN, line, start, i), rank + Candidate.TOKEN));
+				} else if (i - start >= AFFIX_LENGTH && delimitedBefore) {
+					candidates.add(new Candidate(hash(PREFIX, line, start, start + AFFIX_LENGTH), rank));
+				} else if (i - start >= AFFIX_LENGTH && delimitedAfter) {
+					candidates.add(new Candidate(hash(SUFFIX, line, i - AFFIX_LENGTH, i), rank));
+				}
+				start = -1;
+			}
+		}
+
+		candidates.sort((c1, c2) -> c2.rank - c1.rank);
+		return candidates;
+	}
+
+	/**
+	 * @return key of the chars, 64 bits FNV-1a of their lower case mixed, never 0
+	 */
+	static long hash(final long seed, final String s, final int start, final int end) {
+		long hash = seed;
+		for(int i=start; i<end; i++) {
+			final char c = s.charAt(i);
+			// host and token chars are ASCII
+			hash = (hash ^ (c >= 'A' && c <= 'Z'? c + 'a' - 'A': c)) * 0x100000001b3L;
+		}
+		hash = (hash ^ hash >>> 33) * 0xff51afd7ed558ccdL;
+		hash = (hash ^ hash >>> 33) * 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash == 0? 1: hash;
+	}
+
+	private static boolean isWildcard(final char c) {
+		return c == Terminal.WILDCARD.value().charAt(0);
+	}
+
+	static class Candidate {
+		private static final int TOKEN = 1024;
+		private static final int UNCOMMON = 2 * TOKEN;
+
+		private final long key;
+		private final int rank;
+
+		public Candidate(final long key, final int rank) {
+			this.key = key;
+			this.rank = rank;
+		}
+
+		public long getKey() {
+			return key;
+		}
+
+		/**
+		 * @return false for a key in most URLs
+		 */
+		public boolean isUncommon() {
+			return rank >= UNCOMMON;
+		}
+	}
+}
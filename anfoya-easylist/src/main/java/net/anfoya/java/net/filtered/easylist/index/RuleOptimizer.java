@@ -0,0 +1,147 @@
+package net.anfoya.java.net.filtered.easylist.index;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.anfoya.java.net.filtered.easylist.model.Rule;
+import net.anfoya.java.net.filtered.easylist.model.RuleOptions;
+import net.anfoya.java.net.filtered.easylist.parser.Terminal;
+
+/**
+ * Leaves out of an index the URL rules which can't change a match:
+ * - duplicates, same type, options and pattern once its useless wildcards are removed ("*ad*" and "ad")
+ * - rules on a domain already blocked as a whole ("||sub.ads.com/x" and "||ads.com^")
+ * - rules with a literal containing the one of a literal only rule ("/ads/banner^" and "/ads/")
+ *
+ * Rules of one type only (exceptions or exclusions), a rule left out applies
+ * only when another rule does so a match gets the same verdict.
+ */
+public class RuleOptimizer {
+	private static final Logger LOGGER = LoggerFactory.getLogger(RuleOptimizer.class);
+	// what follows a host in a URL for a "||domain^" rule to match
+	private static final String DOMAIN_SEPARATORS = "^/:?";
+
+	private int duplicateCount;
+	private int subsumedCount;
+
+	public List<Rule> optimize(final Collection<Rule> rules) {
+		final List<Rule> distinct = removeDuplicates(rules);
+		final List<Rule> optimized = new ArrayList<Rule>(distinct.size());
+		final Set<String> blockedDomains = getBlockedDomains(distinct);
+		final LiteralMatcher literals = new LiteralMatcher(distinct);
+		for(final Rule rule: distinct) {
+			if (isDomainBlocked(rule, blockedDomains) || literals.contains(rule)) {
+				subsumedCount++;
+			} else {
+				optimized.add(rule);
+			}
+		}
+		if (optimized.size() < rules.size()) {
+			LOGGER.info("left out {} duplicates and {} subsumed of {} rules", duplicateCount, subsumedCount, rules.size());
+		}
+		return optimized;
+	}
+
+	public int getDuplicateCount() {
+		return duplicateCount;
+	}
+
+	public int getSubsumedCount() {
+		return subsumedCount;
+	}
+
+	private List<Rule> removeDuplicates(final Collection<Rule> rules) {
+		final Map<String, Rule> distinct = new LinkedHashMap<String, Rule>(rules.size() * 4 / 3 + 1);
+		for(final Rule rule: rules) {
+			final RuleOptions options = rule.getOptions();
+			final String key = rule.getType() + " " + options.getMask() + " " + options.getDomainList() + " " + rule.getCanonicalLine();
+			if (distinct.putIfAbsent(key, rule) != null) {
+				duplicateCount++;
+			}
+		}
+		return new ArrayList<Rule>(distinct.values());
+	}
+
+	// domains of the "||domain^" rules applying to any request
+	private static Set<String> getBlockedDomains(final List<Rule> rules) {
+		final Set<String> domains = new HashSet<String>();
+		for(final Rule rule: rules) {
+			if (rule.getOptions() == RuleOptions.NONE && isDomainRule(rule)) {
+				domains.add(rule.getDomain());
+			}
+		}
+		return domains;
+	}
+
+	private static boolean isDomainRule(final Rule rule) {
+		final String domain = rule.getDomain();
+		return domain != null && rule.getCanonicalLine().equals(Terminal.HTTP_WILDCARD.value() + domain + Terminal.SEPARATOR.value());
+	}
+
+	// true if a parent domain is blocked, or the domain itself for a rule narrower than a domain rule
+	private static boolean isDomainBlocked(final Rule rule, final Set<String> blockedDomains) {
+		final String domain = rule.getDomain();
+		if (domain == null) {
+			return false;
+		}
+		final String line = rule.getCanonicalLine();
+		final int end = Terminal.HTTP_WILDCARD.length() + domain.length();
+		if (end == line.length() || DOMAIN_SEPARATORS.indexOf(line.charAt(end)) == -1) {
+			// "||domain|" matches a URL without path
+			return false;
+		}
+		if (!(rule.getOptions() == RuleOptions.NONE && isDomainRule(rule)) && blockedDomains.contains(domain)) {
+			return true;
+		}
+		for(int i = domain.indexOf('.'); i != -1; i = domain.indexOf('.', i + 1)) {
+			if (blockedDomains.contains(domain.substring(i + 1))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// literals of the literal only rules in one automaton, run over the literals of each rule
+	private static class LiteralMatcher {
+		private final List<String> literals;
+		private final AhoCorasick automaton;
+
+		public LiteralMatcher(final List<Rule> rules) {
+			literals = new ArrayList<String>();
+			for(final Rule rule: rules) {
+				if (rule.isLiteral()) {
+					literals.add(rule.getLiterals()[0]);
+				}
+			}
+			automaton = new AhoCorasick(literals);
+		}
+
+		// true if one of the rule literals contains the literal of another rule
+		public boolean contains(final Rule rule) {
+			if (literals.isEmpty() || rule.getLiterals() == null) {
+				return false;
+			}
+			final String own = rule.isLiteral()? rule.getLiterals()[0]: null;
+			for(final String literal: rule.getLiterals()) {
+				int state = AhoCorasick.ROOT;
+				for(int i=0, n=literal.length(); i<n; i++) {
+					state = automaton.step(state, literal.charAt(i));
+					for(int s = automaton.firstOutput(state); s != AhoCorasick.NONE; s = automaton.nextOutput(s)) {
+						if (!literals.get(automaton.patternAt(s)).equals(own)) {
+							return true;
+						}
+					}
+				}
+			}
+			return false;
+		}
+	}
+}
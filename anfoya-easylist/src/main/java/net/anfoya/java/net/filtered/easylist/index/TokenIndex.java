@@ -0,0 +1,92 @@
+package net.anfoya.java.net.filtered.easylist.index;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import net.anfoya.java.net.filtered.easylist.model.Engine;
+import net.anfoya.java.net.filtered.easylist.model.RequestContext;
+import net.anfoya.java.net.filtered.easylist.model.Rule;
+import net.anfoya.java.net.filtered.easylist.parser.Tokenizer;
+
+/**
+ * Rules bucketed by their token, a URL only gets evaluated against the rules
+ * sharing one of its tokens plus the few rules without token.
+ */
+public class TokenIndex implements RuleIndex {
+	private static final Rule[] NO_RULE = new Rule[0];
+
+	private final Engine engine;
+	private final Tokenizer tokenizer;
+	private final Map<String, Rule[]> buckets;
+	private final Rule[] fallback;
+	private final int size;
+
+	public TokenIndex(final Collection<Rule> rules, final Engine engine) {
+		this.engine = engine;
+		tokenizer = new Tokenizer();
+
+		final Map<String, List<Rule>> tokenRules = new HashMap<String, List<Rule>>();
+		final List<Rule> noTokenRules = new ArrayList<Rule>();
+		for(final Rule rule: rules) {
+			final String token = rule.getToken();
+			if (token == null) {
+				noTokenRules.add(rule);
+			} else {
+				List<Rule> bucket = tokenRules.get(token);
+				if (bucket == null) {
+					bucket = new ArrayList<Rule>(1);
+					tokenRules.put(token, bucket);
+				}
+				bucket.add(rule);
+			}
+		}
+
+		buckets = new HashMap<String, Rule[]>(tokenRules.size() * 4 / 3 + 1);
+		for(final Entry<String, List<Rule>> entry: tokenRules.entrySet()) {
+			buckets.put(entry.getKey(), entry.getValue().toArray(NO_RULE));
+		}
+		fallback = noTokenRules.toArray(NO_RULE);
+		size = rules.size();
+	}
+
+	@Override
+	public Rule find(final String url) {
+		return find(url, RequestContext.UNKNOWN);
+	}
+
+	@Override
+	public Rule find(final String url, final RequestContext context) {
+		for(final String token: tokenizer.tokenize(url)) {
+			final Rule[] bucket = buckets.get(token);
+			if (bucket != null) {
+				for(final Rule rule: bucket) {
+					if (rule.applies(url, context, engine)) {
+						return rule;
+					}
+				}
+			}
+		}
+		for(final Rule rule: fallback) {
+			if (rule.applies(url, context, engine)) {
+				return rule;
+			}
+		}
+
+		return null;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("token index of %d rules (%d tokens, %d rules without token)"
+				, size, buckets.size(), fallback.length);
+	}
+}
@@ -0,0 +1,78 @@
+package net.anfoya.java.net.filtered.easylist.loader;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.anfoya.java.net.filtered.easylist.model.Rule;
+import net.anfoya.java.net.filtered.easylist.parser.ParallelParser;
+import net.anfoya.java.net.filtered.easylist.parser.Terminal;
+
+/**
+ * Loads a hosts file ("0.0.0.0 ads.example.com") as host anchored rules
+ * ("||ads.example.com^"), they end up in the domain trie of the rule set.
+ * The file is read on each refresh, its lines are compared with the rules in
+ * use so only the hosts added get parsed.
+ */
+public class HostsLoader {
+	private static final Logger LOGGER = LoggerFactory.getLogger(HostsLoader.class);
+	private static final Set<String> LOCAL_HOSTS = new HashSet<String>(Arrays.asList(
+			"localhost", "localhost.localdomain", "local", "broadcasthost", "ip6-localhost", "ip6-loopback", "0.0.0.0"));
+
+	private final URL url;
+
+	public HostsLoader(final URL url) {
+		this.url = url;
+	}
+
+	public List<Rule> load() {
+		final List<String> lines = loadLines();
+		if (lines == null) {
+			return Collections.emptyList();
+		}
+		final ParallelParser parser = new ParallelParser();
+		parser.addAll(lines);
+		return parser.getRules();
+	}
+
+	/**
+	 * @return the rule lines of the hosts, null if the file can't be read
+	 */
+	public List<String> loadLines() {
+		LOGGER.info("loading {}", url);
+		final long start = System.currentTimeMillis();
+		final List<String> lines = new ArrayList<String>();
+		try (final BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream()))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final int commentIndex = line.indexOf('#');
+				if (commentIndex != -1) {
+					line = line.substring(0, commentIndex);
+				}
+				final String[] fields = line.trim().split("\\s+");
+				for(int i=1; i<fields.length; i++) {
+					final String host = fields[i].toLowerCase();
+					if (!LOCAL_HOSTS.contains(host)) {
+						lines.add(Terminal.HTTP_WILDCARD.value() + host + Terminal.SEPARATOR.value());
+					}
+				}
+			}
+		} catch (final IOException e) {
+			LOGGER.error("reading {}", url, e);
+			return null;
+		}
+
+		LOGGER.info("loaded {} hosts (in {}ms)", lines.size(), System.currentTimeMillis() - start);
+		return lines;
+	}
+}
@@ -1,63 +1,366 @@
-package net.anfoya.java.net.filtered.easylist.loader;
-
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.URL;
-import java.util.HashSet;
-import java.util.Set;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import net.anfoya.java.net.filtered.easylist.EasyListRuleSet;
-import net.anfoya.java.net.filtered.easylist.model.Rule;
-import net.anfoya.java.net.filtered.easylist.parser.Parser;
-import net.anfoya.java.net.filtered.easylist.parser.ParserException;
-
-public class InternetLoader {
-	private static final Logger LOGGER = LoggerFactory.getLogger(InternetLoader.class);
-
-	private static final Set<URL> URLs;
-
-	static {
-		URLs = new HashSet<>();
-	}
-
-	private final URL url;
-
-	public InternetLoader(final URL url) {
-		this.url = url;
-	}
-
-	public EasyListRuleSet load() {
-		if (URLs.contains(url)) {
-			URLs.remove(url);
-			return new EasyListRuleSet(false);
-		}
-		LOGGER.info("loading {}", url);
-		final long start = System.currentTimeMillis();
-		EasyListRuleSet easyList;
-		// avoid handler factory re-entrance
-		URLs.add(url);
-		try (final BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream()))) {
-			easyList = new EasyListRuleSet(false);
-			final Parser parser = new Parser();
-			String line;
-			while ((line = reader.readLine()) != null) {
-				try {
-					final Rule rule = parser.parse(line);
-					easyList.add(rule);
-				} catch (final ParserException e) {
-					LOGGER.error("parsing {}", line, e);
-				}
-			}
-			LOGGER.info("loaded {} rules (in {}ms)", easyList.getRuleCount(), System.currentTimeMillis() - start);
-		} catch (final IOException e) {
-			LOGGER.error("reading {}", url, e);
-			easyList = new EasyListRuleSet(false);
-		}
-
-		return easyList;
-	}
-}
\ No newline at end of file
+package net.anfoya.java.net.filtered.easylist.loader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.anfoya.java.net.filtered.easylist.Config;
+import net.anfoya.java.net.filtered.easylist.model.Rule;
+import net.anfoya.java.net.filtered.easylist.parser.ParallelParser;
+
+/**
+ * Downloads a filter list and compares it with the copy stored by the previous
+ * refresh, only the lines added get parsed.
+ *
+ * The download is conditional (ETag, Last-Modified) and accepts gzip. A list
+ * publishing diffs ("! Diff-Path:" header, RCS format) is patched from them
+ * instead, a missing diff meaning there's no newer version yet.
+ *
+ * Lines are parsed by chunks on the common fork-join pool, as they're read
+ * for a complete list.
+ */
+public class InternetLoader {
+	private static final Logger LOGGER = LoggerFactory.getLogger(InternetLoader.class);
+	private static final Config CONFIG = new Config();
+
+	private static final String DIFF_PATH = "! Diff-Path:";
+	private static final String DIFF_HEADER = "diff ";
+	private static final String DIFF_LINES = "lines:";
+	private static final int MAX_DIFFS = 10;
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	private static final String ETAG = "etag";
+	private static final String LAST_MODIFIED = "last-modified";
+
+	// lists being loaded, avoid handler factory re-entrance
+	private static final Set<URL> LOADING = Collections.newSetFromMap(new ConcurrentHashMap<URL, Boolean>());
+
+	private final URL url;
+	private final File textFile;
+	private final File validatorFile;
+
+	public InternetLoader(final URL url) {
+		this(url, new File(CONFIG.getDownloadFolder()));
+	}
+
+	public InternetLoader(final URL url, final File folder) {
+		this.url = url;
+		final String name = "easylist_" + Integer.toHexString(url.toString().hashCode());
+		this.textFile = new File(folder, name + ".txt");
+		this.validatorFile = new File(folder, name + ".properties");
+	}
+
+	/**
+	 * @param incremental true to get the changes since the list stored by save(), false to get every rule of the list
+	 */
+	public ListUpdate load(final boolean incremental) {
+		if (!LOADING.add(url)) {
+			return ListUpdate.getNotModified(null, 0);
+		}
+		LOGGER.info("loading {}", url);
+		try {
+			final ListUpdate update = load(incremental, readStored());
+			LOGGER.info("loaded {}: {}", url, update);
+			return update;
+		} catch (final IOException e) {
+			LOGGER.error("reading {}", url, e);
+			return ListUpdate.getNotModified(null, 0);
+		} finally {
+			LOADING.remove(url);
+		}
+	}
+
+	private ListUpdate load(final boolean incremental, final List<String> stored) throws IOException {
+		final long[] bytes = new long[1];
+		final Properties validators = readValidators();
+		String etag = validators.getProperty(ETAG);
+		String lastModified = validators.getProperty(LAST_MODIFIED);
+
+		// a complete list gets parsed while it downloads
+		final boolean complete = !incremental || stored == null;
+		final ParallelParser parser = new ParallelParser();
+
+		List<String> lines = null;
+		if (incremental && stored != null) {
+			try {
+				lines = applyDiffs(stored, bytes);
+				if (lines == stored) {
+					return ListUpdate.getNotModified(stored, bytes[0]);
+				}
+			} catch (final IOException e) {
+				LOGGER.warn("applying diffs of {}, downloading the list", url, e);
+				lines = null;
+			}
+		}
+		if (lines == null) {
+			final URLConnection connection = url.openConnection();
+			connection.setRequestProperty("Accept-Encoding", "gzip");
+			if (connection instanceof HttpURLConnection) {
+				if (stored != null && etag != null) {
+					connection.setRequestProperty("If-None-Match", etag);
+				}
+				if (stored != null && lastModified != null) {
+					connection.setRequestProperty("If-Modified-Since", lastModified);
+				}
+				final int status = ((HttpURLConnection) connection).getResponseCode();
+				if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+					if (incremental) {
+						return ListUpdate.getNotModified(stored, bytes[0]);
+					}
+					lines = stored;
+					parser.addAll(stored);
+				} else if (status != HttpURLConnection.HTTP_OK) {
+					throw new IOException("status " + status + " for " + url);
+				}
+			}
+			if (lines == null) {
+				lines = read(connection, bytes, complete? parser: null);
+				etag = connection.getHeaderField("ETag");
+				lastModified = connection.getHeaderField("Last-Modified");
+			}
+		}
+
+		final List<String> removedLines;
+		if (complete) {
+			removedLines = Collections.emptyList();
+		} else {
+			final List<String> addedLines = new ArrayList<String>();
+			removedLines = new ArrayList<String>();
+			diff(stored, lines, addedLines, removedLines);
+			parser.addAll(addedLines);
+		}
+
+		final List<Rule> rules = parser.getRules();
+		return new ListUpdate(true, complete, rules, removedLines
+				, lines, etag, lastModified
+				, bytes[0], parser.getParseTime());
+	}
+
+	@Override
+	public String toString() {
+		return url.toString();
+	}
+
+	/**
+	 * stores the list of update to compare the next refresh with
+	 */
+	public void save(final ListUpdate update) throws IOException {
+		if (!update.isModified()) {
+			return;
+		}
+
+		final File tmp = new File(textFile.getPath() + ".tmp");
+		try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+			for(final String line: update.getLines()) {
+				writer.write(line);
+				writer.write('\n');
+			}
+		}
+		Files.move(tmp.toPath(), textFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+		final Properties validators = new Properties();
+		if (update.getEtag() != null) {
+			validators.setProperty(ETAG, update.getEtag());
+		}
+		if (update.getLastModified() != null) {
+			validators.setProperty(LAST_MODIFIED, update.getLastModified());
+		}
+		try (OutputStream out = new FileOutputStream(validatorFile)) {
+			validators.store(out, url.toString());
+		}
+	}
+
+	/**
+	 * @return the list patched by the diffs published since stored, stored itself if there's none, null if the list doesn't publish diffs
+	 */
+	private List<String> applyDiffs(final List<String> stored, final long[] bytes) throws IOException {
+		List<String> lines = stored;
+		String diffPath = findDiffPath(lines);
+		if (diffPath == null) {
+			return null;
+		}
+		for(int i=0; i<MAX_DIFFS && diffPath != null; i++) {
+			final URL diffUrl = new URL(url, diffPath);
+			final URLConnection connection = diffUrl.openConnection();
+			if (!(connection instanceof HttpURLConnection)) {
+				throw new IOException("no diff over " + diffUrl.getProtocol());
+			}
+			connection.setRequestProperty("Accept-Encoding", "gzip");
+			final int status = ((HttpURLConnection) connection).getResponseCode();
+			if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+				// not published yet
+				break;
+			} else if (status != HttpURLConnection.HTTP_OK) {
+				throw new IOException("status " + status + " for " + diffUrl);
+			}
+			LOGGER.info("patching {} with {}", url, diffUrl);
+			lines = patch(lines, read(connection, bytes, null));
+
+			final String nextPath = findDiffPath(lines);
+			diffPath = diffPath.equals(nextPath)? null: nextPath;
+		}
+
+		return lines;
+	}
+
+	/**
+	 * @return lines patched by an RCS diff ("dN M" deletes M lines from line N, "aN M" adds the M next lines after line N),
+	 * optionally preceded by a "diff name:... checksum:... lines:..." header
+	 */
+	static List<String> patch(final List<String> lines, final List<String> diff) throws IOException {
+		int i = 0;
+		int end = diff.size();
+		while(end > 0 && diff.get(end - 1).isEmpty()) {
+			end--;
+		}
+		if (end > 0 && diff.get(0).startsWith(DIFF_HEADER)) {
+			for(final String field: diff.get(0).split(" ")) {
+				if (field.startsWith(DIFF_LINES) && !field.equals(DIFF_LINES + (end - 1))) {
+					throw new IOException("incomplete diff, expected " + field + " got " + (end - 1));
+				}
+			}
+			i++;
+		}
+
+		final List<String> patched = new ArrayList<String>(lines.size());
+		int next = 0;
+		while(i < end) {
+			final String command = diff.get(i++);
+			final String[] fields = command.substring(Math.min(1, command.length())).split(" ");
+			final int line, count;
+			try {
+				line = Integer.parseInt(fields[0]);
+				count = Integer.parseInt(fields[1]);
+			} catch (final NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				throw new IOException("invalid diff command \"" + command + "\"");
+			}
+			if (command.charAt(0) == 'd' && line - 1 >= next && line - 1 + count <= lines.size()) {
+				patched.addAll(lines.subList(next, line - 1));
+				next = line - 1 + count;
+			} else if (command.charAt(0) == 'a' && line >= next && line <= lines.size() && i + count <= end) {
+				patched.addAll(lines.subList(next, line));
+				next = line;
+				patched.addAll(diff.subList(i, i + count));
+				i += count;
+			} else {
+				throw new IOException("invalid diff command \"" + command + "\"");
+			}
+		}
+		patched.addAll(lines.subList(next, lines.size()));
+
+		return patched;
+	}
+
+	// lines of next not in previous and lines of previous not in next, duplicates counted
+	private static void diff(final List<String> previous, final List<String> next, final List<String> added, final List<String> removed) {
+		final Map<String, Integer> counts = new HashMap<String, Integer>(previous.size() * 4 / 3 + 1);
+		for(final String line: previous) {
+			counts.merge(line, 1, Integer::sum);
+		}
+		for(final String line: next) {
+			final Integer count = counts.get(line);
+			if (count == null) {
+				added.add(line);
+			} else if (count == 1) {
+				counts.remove(line);
+			} else {
+				counts.put(line, count - 1);
+			}
+		}
+		for(final String line: previous) {
+			final Integer count = counts.get(line);
+			if (count != null) {
+				removed.add(line);
+				if (count == 1) {
+					counts.remove(line);
+				} else {
+					counts.put(line, count - 1);
+				}
+			}
+		}
+	}
+
+	private static String findDiffPath(final List<String> lines) {
+		for(final String line: lines) {
+			if (line.startsWith(DIFF_PATH)) {
+				return line.substring(DIFF_PATH.length()).trim();
+			} else if (!line.isEmpty() && !line.startsWith("!") && !line.startsWith("[")) {
+				// end of header
+				break;
+			}
+		}
+		return null;
+	}
+
+	// lines of the response, also fed to parser when there's one
+	private List<String> read(final URLConnection connection, final long[] bytes, final ParallelParser parser) throws IOException {
+		InputStream in = new FilterInputStream(connection.getInputStream()) {
+			@Override
+			public int read() throws IOException {
+				final int b = super.read();
+				bytes[0] += b == -1? 0: 1;
+				return b;
+			}
+			@Override
+			public int read(final byte[] b, final int off, final int len) throws IOException {
+				final int count = super.read(b, off, len);
+				bytes[0] += Math.max(0, count);
+				return count;
+			}
+		};
+		if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+			in = new GZIPInputStream(in);
+		}
+		final List<String> lines = new ArrayList<String>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), READ_BUFFER_SIZE)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines.add(line);
+				if (parser != null) {
+					parser.add(line);
+				}
+			}
+		}
+		return lines;
+	}
+
+	private List<String> readStored() throws IOException {
+		return textFile.exists()? Files.readAllLines(textFile.toPath(), StandardCharsets.UTF_8): null;
+	}
+
+	private Properties readValidators() throws IOException {
+		final Properties validators = new Properties();
+		if (validatorFile.exists()) {
+			try (InputStream in = new FileInputStream(validatorFile)) {
+				validators.load(in);
+			}
+		}
+		return validators;
+	}
+}
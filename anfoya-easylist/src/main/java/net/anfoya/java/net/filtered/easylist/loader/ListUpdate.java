@@ -0,0 +1,101 @@
+package net.anfoya.java.net.filtered.easylist.loader;
+
+import java.util.Collections;
+import java.util.List;
+
+import net.anfoya.java.net.filtered.easylist.model.Rule;
+
+/**
+ * Outcome of a list refresh: the rules of the lines added and the lines
+ * removed since the previous download, or every rule of the list when it's
+ * complete. The lines of the list are known unless it couldn't be read.
+ */
+public class ListUpdate {
+	private final boolean modified;
+	private final boolean complete;
+	private final List<Rule> addedRules;
+	private final List<String> removedLines;
+
+	// what the loader stores for the next refresh, the stored list when it's not modified
+	private final List<String> lines;
+	private final String etag;
+	private final String lastModified;
+
+	private final long downloadedBytes;
+	private final long parseTime;
+
+	/**
+	 * @param lines the stored list, null if it's unknown
+	 */
+	public static ListUpdate getNotModified(final List<String> lines, final long downloadedBytes) {
+		return new ListUpdate(false, false, Collections.<Rule>emptyList(), Collections.<String>emptyList()
+				, lines, null, null, downloadedBytes, 0);
+	}
+
+	public ListUpdate(final boolean modified, final boolean complete
+			, final List<Rule> addedRules, final List<String> removedLines
+			, final List<String> lines, final String etag, final String lastModified
+			, final long downloadedBytes, final long parseTime) {
+		this.modified = modified;
+		this.complete = complete;
+		this.addedRules = addedRules;
+		this.removedLines = removedLines;
+		this.lines = lines;
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.downloadedBytes = downloadedBytes;
+		this.parseTime = parseTime;
+	}
+
+	public boolean isModified() {
+		return modified;
+	}
+
+	/**
+	 * @return true if added rules are the whole list
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	public List<Rule> getAddedRules() {
+		return addedRules;
+	}
+
+	public List<String> getRemovedLines() {
+		return removedLines;
+	}
+
+	/**
+	 * @return every line of the list, null if the list couldn't be read
+	 */
+	public List<String> getLines() {
+		return lines;
+	}
+
+	public String getEtag() {
+		return etag;
+	}
+
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	public long getDownloadedBytes() {
+		return downloadedBytes;
+	}
+
+	/**
+	 * @return parse time (ms) summed over the parsing threads, not elapsed
+	 */
+	public long getParseTime() {
+		return parseTime;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s%d rules added, %d lines removed (%d bytes downloaded, %dms of parse time summed over threads)"
+				, complete? "complete, ": modified? "": "not modified, "
+				, addedRules.size(), removedLines.size(), downloadedBytes, parseTime);
+	}
+}
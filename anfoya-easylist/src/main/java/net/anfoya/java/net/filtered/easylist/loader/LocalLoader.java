@@ -21,7 +21,7 @@ public class LocalLoader extends SerializedFile<EasyListRuleSet> {
 	@Override
 	public EasyListRuleSet load() {
 		final long start = System.currentTimeMillis();
-		EasyListRuleSet easyList = new EasyListRuleSet(false);
+		EasyListRuleSet easyList = null;
 		try {
 			easyList = super.load();
 		} catch (final FileNotFoundException e) {
@@ -31,6 +31,10 @@ public class LocalLoader extends SerializedFile<EasyListRuleSet> {
 		} catch (final IOException e) {
 			LOGGER.warn("reading {}", this, e);
 		}
+		if (easyList == null) {
+			// not created upfront as each rule set schedules its sweep
+			easyList = new EasyListRuleSet(false);
+		}
 
 		LOGGER.info("loaded {} rules (in {}ms)", easyList.getRuleCount(), System.currentTimeMillis()-start);
 		return easyList;
@@ -0,0 +1,8 @@
+package net.anfoya.java.net.filtered.easylist.model;
+
+public enum Engine {
+	// java.util.regex, backtracking
+	REGEX,
+	// shift-and automaton, linear in the URL length
+	AUTOMATON
+}
@@ -0,0 +1,127 @@
+package net.anfoya.java.net.filtered.easylist.model;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import net.anfoya.java.net.filtered.easylist.parser.Tokenizer;
+import net.anfoya.java.net.url.filter.ContentType;
+
+/**
+ * What rule options check about a request: what it loads and the page it
+ * comes from, both may be unknown.
+ */
+public class RequestContext {
+	public static final RequestContext UNKNOWN = new RequestContext(null, null, false);
+
+	// public suffixes of two labels, under which a site has three
+	private static final Set<String> SECOND_LEVEL_SUFFIXES = new HashSet<String>(Arrays.asList(
+			"co.uk", "org.uk", "me.uk", "ltd.uk", "plc.uk", "net.uk", "ac.uk", "gov.uk", "nhs.uk", "sch.uk",
+			"com.au", "net.au", "org.au", "edu.au", "gov.au", "asn.au", "id.au",
+			"co.nz", "net.nz", "org.nz", "govt.nz", "ac.nz",
+			"co.jp", "ne.jp", "or.jp", "ac.jp", "go.jp", "gr.jp",
+			"co.kr", "or.kr", "ne.kr", "go.kr",
+			"co.za", "org.za", "gov.za", "ac.za",
+			"co.in", "net.in", "org.in", "gov.in", "ac.in",
+			"co.il", "org.il", "ac.il", "gov.il",
+			"co.id", "or.id", "ac.id", "go.id",
+			"co.th", "in.th", "or.th", "ac.th", "go.th",
+			"com.br", "net.br", "org.br", "gov.br", "blog.br",
+			"com.ar", "com.mx", "com.co", "com.pe", "com.ve", "com.uy", "com.ec",
+			"com.cn", "net.cn", "org.cn", "gov.cn", "edu.cn",
+			"com.hk", "com.tw", "com.sg", "com.my", "com.ph", "com.vn", "com.pk",
+			"com.tr", "gen.tr", "org.tr", "net.tr", "gov.tr",
+			"com.ua", "net.ua", "org.ua", "in.ua",
+			"com.pl", "net.pl", "org.pl",
+			"com.ru", "net.ru", "org.ru", "msk.ru", "spb.ru",
+			"com.gr", "com.cy", "com.mt", "com.eg", "com.sa", "com.ng", "co.ke",
+			"ac.at", "co.at", "or.at", "gv.at",
+			"com.es", "org.es", "nom.es",
+			"com.pt", "org.pt",
+			"co.it",
+			"asso.fr", "gouv.fr", "com.fr",
+			"qc.ca", "on.ca", "bc.ca"
+	));
+
+	/**
+	 * @return context of a request for url from a page of pageHost (null if unknown) loading contentType (null if unknown)
+	 */
+	public static RequestContext of(final String url, final String pageHost, final ContentType contentType) {
+		if (pageHost == null && contentType == null) {
+			return UNKNOWN;
+		}
+		final String host = pageHost == null? null: pageHost.toLowerCase();
+		return new RequestContext(host, contentType, host != null && isThirdParty(getHost(url), host));
+	}
+
+	private final String pageHost;
+	private final ContentType contentType;
+	// a bit for each known part, as in rule options
+	private final int mask;
+
+	private RequestContext(final String pageHost, final ContentType contentType, final boolean thirdParty) {
+		this.pageHost = pageHost;
+		this.contentType = contentType;
+
+		int mask = 0;
+		if (contentType != null) {
+			mask |= RuleOptions.getTypeBit(contentType);
+		}
+		if (pageHost != null) {
+			mask |= thirdParty? RuleOptions.THIRD_PARTY: RuleOptions.FIRST_PARTY;
+		}
+		this.mask = mask;
+	}
+
+	public String getPageHost() {
+		return pageHost;
+	}
+
+	public ContentType getContentType() {
+		return contentType;
+	}
+
+	public int getMask() {
+		return mask;
+	}
+
+	public boolean isThirdParty() {
+		return (mask & RuleOptions.THIRD_PARTY) != 0;
+	}
+
+	@Override
+	public String toString() {
+		return contentType + " from " + pageHost;
+	}
+
+	// lower cased host of a URL, empty if there's none
+	static String getHost(final String url) {
+		final int schemeEnd = url.indexOf("://");
+		final int start = schemeEnd == -1? 0: schemeEnd + 3;
+		int end = start;
+		while(end < url.length() && Tokenizer.isHostChar(url.charAt(end))) {
+			end++;
+		}
+		return url.substring(start, end).toLowerCase();
+	}
+
+	// hosts of another site, a site being approximated by its last two labels (three under a known second level suffix as co.uk)
+	static boolean isThirdParty(final String host, final String pageHost) {
+		return !getSite(host).equals(getSite(pageHost));
+	}
+
+	private static String getSite(final String host) {
+		if (host.isEmpty() || Character.isDigit(host.charAt(host.length() - 1))) {
+			return host;
+		}
+		final int last = host.lastIndexOf('.');
+		if (last <= 0) {
+			return host;
+		}
+		int start = host.lastIndexOf('.', last - 1);
+		if (start > 0 && SECOND_LEVEL_SUFFIXES.contains(host.substring(start + 1))) {
+			start = host.lastIndexOf('.', start - 1);
+		}
+		return host.substring(start + 1);
+	}
+}
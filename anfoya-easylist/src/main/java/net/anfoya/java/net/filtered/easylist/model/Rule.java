@@ -3,44 +3,275 @@ package net.anfoya.java.net.filtered.easylist.model;
 import java.io.Serializable;
 import java.util.regex.Pattern;
 
+import net.anfoya.java.net.filtered.easylist.parser.Automaton;
+import net.anfoya.java.net.filtered.easylist.parser.Parser;
+import net.anfoya.java.net.filtered.easylist.parser.Terminal;
+
+/**
+ * A parsed rule is a view of its text, packed in a shared page (see RuleArena).
+ * The regex (or automaton) is built from the effective line on first use and
+ * dropped by sweep() when the rule goes cold.
+ *
+ * Rules are equal when parsed from the same line, whatever list they come from.
+ */
 @SuppressWarnings("serial")
 public class Rule implements Serializable {
 
 	public static Rule getEmptyRule() {
-		return new Rule(RuleType.empty, null, null, null);
+		return new Rule(RuleType.empty, null, null, null, RuleOptions.NONE, null, null);
 	}
 
 	private final RuleType type;
-	private final Pattern regex;
-	private final String effLine;
-	private final String line;
+	private final RuleOptions options;
+	// line, effective line, token, domain and literals
+	private final byte[] page;
+	private final int offset;
+
+	// compiled on first use, used since the last sweep
+	private transient volatile Pattern regex;
+	private transient volatile Automaton automaton;
+	// what follows the domain of a host anchored rule (Pattern or Automaton), matched by the domain trie
+	private transient volatile Object rest;
+	private transient volatile boolean used;
+	// created on the first check profiled
+	private transient volatile RuleStats stats;
 
-	public Rule(final RuleType type, final Pattern regex, final String effLine, final String line) {
+	/**
+	 * @throws IllegalArgumentException if the text of the rule is over 65534 chars
+	 */
+	public Rule(final RuleType type, final String token, final String[] literals, final String domain
+			, final RuleOptions options, final String effLine, final String line) {
 		this.type = type;
-		this.regex = regex;
-		this.effLine = effLine;
-		this.line = line;
+		this.options = options;
+		final RuleArena.Location location = RuleArena.add(line, effLine, token, domain, literals);
+		page = location.getPage();
+		offset = location.getOffset();
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof Rule)) {
+			return false;
+		}
+		final Rule other = (Rule) obj;
+		return type == other.type && RuleArena.equalLines(page, offset, other.page, other.offset);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * type.hashCode() + RuleArena.hashLine(page, offset);
 	}
 
 	@Override
 	public String toString() {
-		return type.toString() + " \"" + effLine + "\" (" + regex.toString() + ")";
+		return type.toString() + " \"" + getEffectiveLine() + "\" (" + getRegexSource() + ")"
+				+ (options == RuleOptions.NONE? "": " (" + options + ")");
 	}
 
 	public boolean applies(final String url) {
-		return regex.matcher(url).matches();
+		return getRegex().matcher(url).matches();
+	}
+
+	public boolean applies(final String url, final Engine engine) {
+		switch(engine) {
+		case AUTOMATON:
+			return getAutomaton().matches(url);
+		case REGEX:
+		default:
+			return applies(url);
+		}
+	}
+
+	/**
+	 * @return true if the options accept the request and the pattern matches its URL
+	 */
+	public boolean applies(final String url, final RequestContext context, final Engine engine) {
+		if (!RuleStats.isEnabled()) {
+			return (options == RuleOptions.NONE || options.accepts(context, type == RuleType.exception))
+					&& applies(url, engine);
+		}
+		final long start = System.nanoTime();
+		final boolean applies = (options == RuleOptions.NONE || options.accepts(context, type == RuleType.exception))
+				&& applies(url, engine);
+		record(applies, System.nanoTime() - start);
+		return applies;
+	}
+
+	/**
+	 * counts a check of the rule made by an index on its own
+	 */
+	public void record(final boolean hit, final long nanos) {
+		RuleStats stats = this.stats;
+		if (stats == null) {
+			synchronized(this) {
+				if (this.stats == null) {
+					this.stats = new RuleStats();
+				}
+				stats = this.stats;
+			}
+		}
+		stats.record(hit, nanos);
+	}
+
+	/**
+	 * @return counters of the checks profiled, null if none was
+	 */
+	public RuleStats getStats() {
+		return stats;
+	}
+
+	public Automaton getAutomaton() {
+		Automaton automaton = this.automaton;
+		if (automaton == null) {
+			automaton = this.automaton = Automaton.compile(getEffectiveLine());
+		}
+		if (!used) {
+			used = true;
+		}
+		return automaton;
 	}
 
 	public Pattern getRegex() {
+		Pattern regex = this.regex;
+		if (regex == null) {
+			// concurrent first uses may both compile, they get equivalent patterns
+			regex = this.regex = Pattern.compile(getRegexSource());
+		}
+		if (!used) {
+			used = true;
+		}
+		return regex;
+	}
+
+	/**
+	 * @return regex of what follows the domain of a host anchored rule, to match from the end of the URL host
+	 */
+	public Pattern getRestRegex() {
+		final Object rest = this.rest;
+		final Pattern regex;
+		if (rest instanceof Pattern) {
+			regex = (Pattern) rest;
+		} else {
+			regex = Parser.buildRestRegex(getRest());
+			this.rest = regex;
+		}
+		if (!used) {
+			used = true;
+		}
 		return regex;
 	}
 
+	/**
+	 * @return automaton of what follows the domain of a host anchored rule, to match from the end of the URL host
+	 */
+	public Automaton getRestAutomaton() {
+		final Object rest = this.rest;
+		final Automaton automaton;
+		if (rest instanceof Automaton) {
+			automaton = (Automaton) rest;
+		} else {
+			automaton = Automaton.compileRest(getRest());
+			this.rest = automaton;
+		}
+		if (!used) {
+			used = true;
+		}
+		return automaton;
+	}
+
+	/**
+	 * @return what follows the domain in the effective line of a host anchored rule ("^", "/ads/*"...)
+	 */
+	public String getRest() {
+		return getEffectiveLine().substring(Terminal.HTTP_WILDCARD.length() + getDomain().length());
+	}
+
+	/**
+	 * @return source of the regex of a URL rule, built from its effective line, null for other rules
+	 */
+	public String getRegexSource() {
+		return type == RuleType.exception || type == RuleType.exclusion? Parser.buildRegex(getEffectiveLine()): null;
+	}
+
+	/**
+	 * drops the compiled regex and automaton (of the whole rule or of its rest) unless they were used since the previous sweep
+	 * @return true if something was dropped
+	 */
+	public boolean sweep() {
+		if (used) {
+			used = false;
+			return false;
+		}
+		final boolean compiled = regex != null || automaton != null || rest != null;
+		regex = null;
+		automaton = null;
+		rest = null;
+		return compiled;
+	}
+
+	public String getToken() {
+		return RuleArena.getPart(page, offset, RuleArena.TOKEN);
+	}
+
+	public String[] getLiterals() {
+		return RuleArena.getLiterals(page, offset);
+	}
+
+	/**
+	 * @return the domain of a host anchored rule or null
+	 */
+	public String getDomain() {
+		return RuleArena.getPart(page, offset, RuleArena.DOMAIN);
+	}
+
+	public RuleOptions getOptions() {
+		return options;
+	}
+
 	public String getEffectiveLine() {
-		return effLine;
+		return RuleArena.getPart(page, offset, RuleArena.EFFECTIVE_LINE);
+	}
+
+	/**
+	 * @return effective line of a URL rule without the leading and trailing wildcards, which don't change what it matches
+	 */
+	public String getCanonicalLine() {
+		final String effLine = getEffectiveLine();
+		final String wildcard = Terminal.WILDCARD.value();
+		int start = 0, end = effLine.length();
+		while(start < end && effLine.startsWith(wildcard, start)) {
+			start++;
+		}
+		while(end > start && effLine.startsWith(wildcard, end - 1)) {
+			end--;
+		}
+		// a wildcard next to a "|" keeps it from being an anchor
+		if (start > 0 && effLine.startsWith(Terminal.STARTS.value(), start)) {
+			start--;
+		}
+		if (end < effLine.length() && end > start && effLine.startsWith(Terminal.ENDS.value(), end - 1)) {
+			end++;
+		}
+		return effLine.substring(start, end);
+	}
+
+	/**
+	 * @return true if the rule applies to any request whose URL contains its single literal, no regex needed
+	 */
+	public boolean isLiteral() {
+		if (options != RuleOptions.NONE) {
+			return false;
+		}
+		final String[] literals = getLiterals();
+		return literals != null && literals.length == 1
+				&& literals[0].equals(getCanonicalLine());
 	}
 
 	public String getLine() {
-		return line;
+		return RuleArena.getPart(page, offset, RuleArena.LINE);
 	}
 
 	public RuleType getType() {
@@ -0,0 +1,227 @@
+package net.anfoya.java.net.filtered.easylist.model;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Text of the rules packed in shared byte pages instead of a string per part:
+ * a record holds the bounds of the parts (effective line, token, domain,
+ * literals) in the text of the rule, which is its line followed by the parts
+ * not found in it. Text is stored one byte per char unless a char needs two.
+ *
+ * Record, in chars (unsigned shorts) after a flag byte:
+ * <pre>
+ * flags | line, effective line, token, domain (start, end) | literal count | literals (start, end) | text
+ * </pre>
+ *
+ * Each thread fills a page of its own, a page is collected with its last rule.
+ */
+final class RuleArena {
+	static final int MAX_LENGTH = 0xFFFE;
+
+	static final int LINE = 0;
+	static final int EFFECTIVE_LINE = 1;
+	static final int TOKEN = 2;
+	static final int DOMAIN = 3;
+	private static final int PART_COUNT = 4;
+
+	// offsets in a record
+	private static final int PARTS_AT = 1;
+	private static final int COUNT_AT = PARTS_AT + 4 * PART_COUNT;
+	private static final int LITERALS_AT = COUNT_AT + 2;
+
+	private static final int NONE = 0xFFFF;
+	private static final int WIDE = 1;
+	private static final int PAGE_SIZE = 32 * 1024;
+
+	private static final ThreadLocal<RuleArena> ARENAS = ThreadLocal.withInitial(RuleArena::new);
+
+	/**
+	 * @return location of the record of a rule
+	 */
+	static Location add(final String line, final String effLine, final String token, final String domain, final String[] literals) {
+		return ARENAS.get().append(line, effLine, token, domain, literals);
+	}
+
+	private byte[] page;
+	private int position;
+
+	private RuleArena() {
+		page = new byte[PAGE_SIZE];
+		position = 0;
+	}
+
+	private Location append(final String line, final String effLine, final String token, final String domain, final String[] literals) {
+		final StringBuilder text = new StringBuilder(line == null? "": line);
+		final int literalCount = literals == null? 0: literals.length;
+		final int[] bounds = new int[2 * (PART_COUNT + literalCount)];
+		locate(text, line, bounds, LINE);
+		locate(text, effLine, bounds, EFFECTIVE_LINE);
+		locate(text, token, bounds, TOKEN);
+		locate(text, domain, bounds, DOMAIN);
+		for(int i=0; i<literalCount; i++) {
+			locate(text, literals[i], bounds, PART_COUNT + i);
+		}
+		if (text.length() > MAX_LENGTH) {
+			throw new IllegalArgumentException("rule text over " + MAX_LENGTH + " chars: " + line);
+		}
+
+		boolean wide = false;
+		for(int i=0, n=text.length(); i<n && !wide; i++) {
+			wide = text.charAt(i) > 0xFF;
+		}
+		final int size = LITERALS_AT + 2 * (bounds.length - 2 * PART_COUNT) + text.length() * (wide? 2: 1);
+		if (position + size > page.length) {
+			page = new byte[Math.max(PAGE_SIZE, size)];
+			position = 0;
+		}
+
+		final Location location = new Location(page, position);
+		int p = position;
+		page[p++] = (byte) (wide? WIDE: 0);
+		for(int i=0; i<2*PART_COUNT; i++) {
+			p = putChar(page, p, bounds[i]);
+		}
+		p = putChar(page, p, literals == null? NONE: literalCount);
+		for(int i=2*PART_COUNT; i<bounds.length; i++) {
+			p = putChar(page, p, bounds[i]);
+		}
+		for(int i=0, n=text.length(); i<n; i++) {
+			final char c = text.charAt(i);
+			if (wide) {
+				p = putChar(page, p, c);
+			} else {
+				page[p++] = (byte) c;
+			}
+		}
+		position = p;
+		return location;
+	}
+
+	// bounds of the value in the text, appended when it isn't there
+	private static void locate(final StringBuilder text, final String value, final int[] bounds, final int part) {
+		if (value == null) {
+			bounds[2 * part] = NONE;
+			bounds[2 * part + 1] = NONE;
+			return;
+		}
+		int start = text.indexOf(value);
+		if (start == -1) {
+			start = text.length();
+			text.append(value);
+		}
+		bounds[2 * part] = start;
+		bounds[2 * part + 1] = start + value.length();
+	}
+
+	private static int putChar(final byte[] bytes, final int p, final int c) {
+		bytes[p] = (byte) (c >>> 8);
+		bytes[p + 1] = (byte) c;
+		return p + 2;
+	}
+
+	private static int getChar(final byte[] bytes, final int p) {
+		return (bytes[p] & 0xFF) << 8 | bytes[p + 1] & 0xFF;
+	}
+
+	static String getPart(final byte[] page, final int offset, final int part) {
+		final int p = offset + PARTS_AT + 4 * part;
+		return getString(page, offset, getChar(page, p), getChar(page, p + 2));
+	}
+
+	/**
+	 * @return null if the rule has no literal
+	 */
+	static String[] getLiterals(final byte[] page, final int offset) {
+		final int count = getChar(page, offset + COUNT_AT);
+		if (count == NONE) {
+			return null;
+		}
+		final String[] literals = new String[count];
+		for(int i=0, p=offset + LITERALS_AT; i<count; i++, p+=4) {
+			literals[i] = getString(page, offset, getChar(page, p), getChar(page, p + 2));
+		}
+		return literals;
+	}
+
+	/**
+	 * @return hash of the line, as the hash of the string
+	 */
+	static int hashLine(final byte[] page, final int offset) {
+		final int start = getChar(page, offset + PARTS_AT), end = getChar(page, offset + PARTS_AT + 2);
+		if (start == NONE) {
+			return 0;
+		}
+		final int text = getTextOffset(page, offset);
+		int hash = 0;
+		for(int i=start; i<end; i++) {
+			hash = 31 * hash + getTextChar(page, offset, text, i);
+		}
+		return hash;
+	}
+
+	/**
+	 * @return true if both records have the same line
+	 */
+	static boolean equalLines(final byte[] page, final int offset, final byte[] otherPage, final int otherOffset) {
+		final int start = getChar(page, offset + PARTS_AT), end = getChar(page, offset + PARTS_AT + 2);
+		final int otherStart = getChar(otherPage, otherOffset + PARTS_AT), otherEnd = getChar(otherPage, otherOffset + PARTS_AT + 2);
+		if (start == NONE || otherStart == NONE) {
+			return start == otherStart;
+		}
+		if (end - start != otherEnd - otherStart) {
+			return false;
+		}
+		final int text = getTextOffset(page, offset), otherText = getTextOffset(otherPage, otherOffset);
+		for(int i=0, n=end-start; i<n; i++) {
+			if (getTextChar(page, offset, text, start + i) != getTextChar(otherPage, otherOffset, otherText, otherStart + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int getTextChar(final byte[] page, final int offset, final int text, final int i) {
+		return (page[offset] & WIDE) == 0? page[text + i] & 0xFF: getChar(page, text + 2 * i);
+	}
+
+	private static String getString(final byte[] page, final int offset, final int start, final int end) {
+		if (start == NONE) {
+			return null;
+		}
+		final int text = getTextOffset(page, offset);
+		if ((page[offset] & WIDE) == 0) {
+			return new String(page, text + start, end - start, StandardCharsets.ISO_8859_1);
+		}
+		final char[] chars = new char[end - start];
+		for(int i=0; i<chars.length; i++) {
+			chars[i] = (char) getTextChar(page, offset, text, start + i);
+		}
+		return new String(chars);
+	}
+
+	private static int getTextOffset(final byte[] page, final int offset) {
+		final int count = getChar(page, offset + COUNT_AT);
+		return offset + LITERALS_AT + (count == NONE? 0: 4 * count);
+	}
+
+	/**
+	 * a record in a page, read without copy
+	 */
+	static final class Location {
+		private final byte[] page;
+		private final int offset;
+
+		private Location(final byte[] page, final int offset) {
+			this.page = page;
+			this.offset = offset;
+		}
+
+		byte[] getPage() {
+			return page;
+		}
+
+		int getOffset() {
+			return offset;
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package net.anfoya.java.net.filtered.easylist.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.anfoya.java.net.url.filter.ContentType;
+
+/**
+ * Options of a rule ("$script,third-party,domain=a.com|~b.com") as a mask of
+ * the content types and parties it applies to, plus the page domains it's
+ * restricted to, so that a request is checked before any pattern work.
+ *
+ * What a request doesn't tell isn't checked for an exclusion, like when
+ * options were ignored, but keeps out an exception constrained on it.
+ */
+@SuppressWarnings("serial")
+public class RuleOptions implements Serializable {
+	public static final int TYPES = (1 << ContentType.values().length) - 1;
+	public static final int FIRST_PARTY = 1 << 29;
+	public static final int THIRD_PARTY = 1 << 30;
+	public static final int PARTIES = FIRST_PARTY | THIRD_PARTY;
+	public static final int ALL = TYPES | PARTIES;
+
+	public static final RuleOptions NONE = new RuleOptions(ALL, null);
+
+	/**
+	 * @return options of a rule applying to requests of mask from pages of domainList (null for any page)
+	 */
+	public static RuleOptions of(final int mask, final String domainList) {
+		return mask == ALL && domainList == null? NONE: new RuleOptions(mask, domainList);
+	}
+
+	public static int getTypeBit(final ContentType type) {
+		return 1 << type.ordinal();
+	}
+
+	private final int mask;
+	// as written in the rule, null for any page
+	private final String domainList;
+	private final String[] domains;
+	private final String[] notDomains;
+
+	private RuleOptions(final int mask, final String domainList) {
+		this.mask = mask;
+		this.domainList = domainList;
+
+		final List<String> domains = new ArrayList<String>();
+		final List<String> notDomains = new ArrayList<String>();
+		if (domainList != null) {
+			for(final String domain: domainList.toLowerCase().split("\\|")) {
+				if (domain.startsWith("~")) {
+					notDomains.add(domain.substring(1));
+				} else if (!domain.isEmpty()) {
+					domains.add(domain);
+				}
+			}
+		}
+		this.domains = domains.toArray(new String[domains.size()]);
+		this.notDomains = notDomains.toArray(new String[notDomains.size()]);
+	}
+
+	/**
+	 * @param strict true for an exception, which doesn't apply when a constraint can't be checked
+	 */
+	public boolean accepts(final RequestContext context, final boolean strict) {
+		final int known = context.getMask();
+		if ((mask & known) != known) {
+			return false;
+		}
+
+		final String pageHost = context.getPageHost();
+		if (strict && (context.getContentType() == null && (mask & TYPES) != TYPES
+				|| pageHost == null && ((mask & PARTIES) != PARTIES || domainList != null))) {
+			return false;
+		}
+		return pageHost == null || acceptsPage(pageHost);
+	}
+
+	/**
+	 * @return true if a rule of these options applies on a page of this (lower case) host
+	 */
+	public boolean acceptsPage(final String pageHost) {
+		if (domainList == null) {
+			return true;
+		}
+		for(final String domain: notDomains) {
+			if (isSubdomain(pageHost, domain)) {
+				return false;
+			}
+		}
+		if (domains.length == 0) {
+			return true;
+		}
+		for(final String domain: domains) {
+			if (isSubdomain(pageHost, domain)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return domains the rule is restricted to, empty for any page
+	 */
+	public String[] getDomains() {
+		return domains;
+	}
+
+	public int getMask() {
+		return mask;
+	}
+
+	public String getDomainList() {
+		return domainList;
+	}
+
+	@Override
+	public String toString() {
+		return "mask " + Integer.toHexString(mask) + (domainList == null? "": " domain=" + domainList);
+	}
+
+	private static boolean isSubdomain(final String host, final String domain) {
+		return host.endsWith(domain)
+				&& (host.length() == domain.length() || host.charAt(host.length() - domain.length() - 1) == '.');
+	}
+}
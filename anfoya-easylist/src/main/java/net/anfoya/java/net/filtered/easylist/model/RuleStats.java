@@ -0,0 +1,53 @@
+package net.anfoya.java.net.filtered.easylist.model;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Match counters of a rule: candidate checks, hits and evaluation time, on
+ * striped adders so concurrent matches don't contend. Checks are only counted
+ * while profiling is enabled, it's off by default.
+ */
+public class RuleStats {
+	private static volatile boolean enabled = false;
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(final boolean enabled) {
+		RuleStats.enabled = enabled;
+	}
+
+	private final LongAdder checks;
+	private final LongAdder hits;
+	private final LongAdder nanos;
+
+	public RuleStats() {
+		checks = new LongAdder();
+		hits = new LongAdder();
+		nanos = new LongAdder();
+	}
+
+	public void record(final boolean hit, final long nanos) {
+		checks.increment();
+		if (hit) {
+			hits.increment();
+		}
+		this.nanos.add(nanos);
+	}
+
+	public long getChecks() {
+		return checks.sum();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return time (ns) spent checking the rule
+	 */
+	public long getNanos() {
+		return nanos.sum();
+	}
+}
@@ -1,5 +1,5 @@
 package net.anfoya.java.net.filtered.easylist.model;
 
 public enum RuleType {
-	exception, exclusion, empty
+	exception, exclusion, empty, cosmetic, cosmeticException
 }
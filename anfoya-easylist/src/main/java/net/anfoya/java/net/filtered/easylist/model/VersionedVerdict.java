@@ -0,0 +1,32 @@
+package net.anfoya.java.net.filtered.easylist.model;
+
+import java.io.Serializable;
+
+import net.anfoya.java.net.url.filter.Verdict;
+
+/**
+ * Cached verdict for a URL, tagged with the version of the rule set which produced it.
+ */
+@SuppressWarnings("serial")
+public class VersionedVerdict implements Serializable {
+	private final Verdict verdict;
+	private final long version;
+
+	public VersionedVerdict(final Verdict verdict, final long version) {
+		this.verdict = verdict;
+		this.version = version;
+	}
+
+	public Verdict getVerdict() {
+		return verdict;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	@Override
+	public String toString() {
+		return verdict + " (version " + Long.toHexString(version) + ")";
+	}
+}
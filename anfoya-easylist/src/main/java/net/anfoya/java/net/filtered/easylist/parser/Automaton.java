@@ -0,0 +1,311 @@
+package net.anfoya.java.net.filtered.easylist.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Non backtracking matcher for the EasyList grammar (literals, '*', '^', '|'
+ * and '||') simulated as a bit parallel (shift-and) NFA: bit i is set when
+ * the first i+1 chars of the rule match up to the current URL char, so the URL
+ * is read once whatever the rule and matching is linear in its length.
+ */
+public class Automaton {
+	private enum Anchor { NONE, START, HOST }
+
+	private static final String HTTP = "http://";
+	private static final String HTTPS = "https://";
+
+	public static Automaton compile(final String effLine) {
+		String rule = effLine;
+		Anchor anchor = Anchor.NONE;
+		if (rule.startsWith(Terminal.HTTP_WILDCARD.value())) {
+			rule = rule.substring(Terminal.HTTP_WILDCARD.length());
+			anchor = Anchor.HOST;
+		}
+		// same stripping as the parser, "|||" is "||" followed by a redundant start anchor
+		if (rule.startsWith(Terminal.STARTS.value())) {
+			rule = rule.substring(Terminal.STARTS.length());
+			if (anchor == Anchor.NONE) {
+				anchor = Anchor.START;
+			}
+		}
+		return new Automaton(rule, anchor);
+	}
+
+	/**
+	 * @return automaton matching, from the char it is given, what follows the domain of a "||" rule
+	 */
+	public static Automaton compileRest(final String rest) {
+		return new Automaton(rest, Anchor.START);
+	}
+
+	private final Anchor anchor;
+	private final boolean endAnchored;
+	// a wildcard follows the anchor, any position after the first valid start is a start
+	private final boolean startLoop;
+
+	private final int length;
+	private final int words;
+	private final long[] lastBit;
+
+	// sorted distinct literal chars and the elements they match
+	private final char[] chars;
+	private final long[][] charMasks;
+	// elements matching a separator
+	private final long[] sepMask;
+	// elements followed by a wildcard
+	private final long[] loopMask;
+	// literal chars every match starts with, empty when it starts with a separator
+	private final String prefix;
+
+	private Automaton(String rule, final Anchor anchor) {
+		this.anchor = anchor;
+
+		boolean endAnchored = rule.endsWith(Terminal.ENDS.value());
+		if (endAnchored) {
+			rule = rule.substring(0, rule.length() - Terminal.ENDS.length());
+		}
+
+		// elements are chars, '\0' standing for a separator
+		final StringBuilder elements = new StringBuilder();
+		final List<Integer> loops = new ArrayList<Integer>();
+		boolean startLoop = false;
+		for(int i=0, n=rule.length(); i<n; i++) {
+			final char c = rule.charAt(i);
+			if (c == '*') {
+				if (elements.length() == 0) {
+					startLoop = true;
+				} else {
+					loops.add(elements.length() - 1);
+				}
+			} else if (c == '^') {
+				elements.append('\0');
+			} else {
+				elements.append(c);
+			}
+		}
+		this.length = elements.length();
+		if (length > 0 && loops.contains(length - 1)) {
+			// trailing wildcard, the end can't be anchored
+			endAnchored = false;
+		}
+		if (length == 0 && startLoop) {
+			endAnchored = false;
+		}
+		this.endAnchored = endAnchored;
+		this.startLoop = startLoop;
+		int prefixLength = 0;
+		while(prefixLength < length && elements.charAt(prefixLength) != '\0') {
+			if (loops.contains(prefixLength++)) {
+				break;
+			}
+		}
+		this.prefix = elements.substring(0, prefixLength);
+
+		this.words = Math.max(1, (length + 63) / 64);
+		this.lastBit = new long[words];
+		this.sepMask = new long[words];
+		this.loopMask = new long[words];
+		if (length > 0) {
+			setBit(lastBit, length - 1);
+		}
+		for(final int loop: loops) {
+			setBit(loopMask, loop);
+		}
+
+		final char[] distinct = new char[length];
+		int count = 0;
+		for(int i=0; i<length; i++) {
+			final char c = elements.charAt(i);
+			if (c == '\0') {
+				setBit(sepMask, i);
+			} else {
+				distinct[count++] = c;
+			}
+		}
+		Arrays.sort(distinct, 0, count);
+		int unique = 0;
+		for(int i=0; i<count; i++) {
+			if (unique == 0 || distinct[unique - 1] != distinct[i]) {
+				distinct[unique++] = distinct[i];
+			}
+		}
+		this.chars = Arrays.copyOf(distinct, unique);
+		this.charMasks = new long[unique][words];
+		for(int i=0; i<length; i++) {
+			final char c = elements.charAt(i);
+			if (c != '\0') {
+				setBit(charMasks[Arrays.binarySearch(chars, c)], i);
+			}
+		}
+	}
+
+	public boolean matches(final String url) {
+		return matches(url, 0);
+	}
+
+	/**
+	 * @return true if the rule matches the URL starting at from (anchors apply to from)
+	 */
+	public boolean matches(final String url, final int from) {
+		final int n = url.length();
+
+		// host anchor: the rule starts after the scheme or after a dot of the host
+		int hostStart = -1;
+		if (anchor == Anchor.HOST) {
+			if (url.startsWith(HTTP, from)) {
+				hostStart = from + HTTP.length();
+			} else if (url.startsWith(HTTPS, from)) {
+				hostStart = from + HTTPS.length();
+			} else {
+				return false;
+			}
+		}
+
+		if (length == 0) {
+			switch(anchor) {
+			case START:
+				return !endAnchored || from == n;
+			case HOST:
+				return !endAnchored || hostStart == n || isHostSuffixEnd(url, hostStart);
+			default:
+				return true;
+			}
+		}
+
+		return words == 1
+				? matches1(url, from, n, hostStart)
+				: matchesN(url, from, n, hostStart);
+	}
+
+	private boolean matches1(final String url, final int from, final int n, final int hostStart) {
+		final long last = lastBit[0];
+		final long sep = sepMask[0];
+		final long loop = loopMask[0];
+		boolean started = false;
+		boolean hostRun = true;
+		long state = 0;
+		for(int i=from; i<n; i++) {
+			if (state == 0 && canSkip(started)) {
+				i = url.indexOf(prefix, i);
+				if (i == -1) {
+					return false;
+				}
+			}
+			final char c = url.charAt(i);
+			final boolean start = isStart(url, from, i, hostStart, hostRun);
+			started |= start;
+
+			long mask = Tokenizer.isHostChar(c)? 0: sep;
+			final int index = Arrays.binarySearch(chars, c);
+			if (index >= 0) {
+				mask |= charMasks[index][0];
+			}
+			state = (state << 1 | (start || startLoop && started? 1: 0)) & mask
+					| state & loop;
+
+			if ((state & last) != 0 && (!endAnchored || i == n - 1)) {
+				return true;
+			}
+			if (hostStart != -1 && i >= hostStart && !Tokenizer.isHostChar(c)) {
+				hostRun = false;
+			}
+			if (state == 0 && !startLoop && !canStartAfter(i, from, hostStart, hostRun)) {
+				return false;
+			}
+		}
+
+		return false;
+	}
+
+	private boolean matchesN(final String url, final int from, final int n, final int hostStart) {
+		final long[] state = new long[words];
+		boolean started = false;
+		boolean hostRun = true;
+		boolean empty = true;
+		for(int i=from; i<n; i++) {
+			if (empty && canSkip(started)) {
+				i = url.indexOf(prefix, i);
+				if (i == -1) {
+					return false;
+				}
+			}
+			final char c = url.charAt(i);
+			final boolean start = isStart(url, from, i, hostStart, hostRun);
+			started |= start;
+
+			final boolean sep = !Tokenizer.isHostChar(c);
+			final int index = Arrays.binarySearch(chars, c);
+			long carry = start || startLoop && started? 1: 0;
+			empty = true;
+			for(int w=0; w<words; w++) {
+				long mask = sep? sepMask[w]: 0;
+				if (index >= 0) {
+					mask |= charMasks[index][w];
+				}
+				final long s = state[w];
+				state[w] = (s << 1 | carry) & mask | s & loopMask[w];
+				carry = s >>> 63;
+				empty &= state[w] == 0;
+			}
+
+			if ((state[words - 1] & lastBit[words - 1]) != 0 && (!endAnchored || i == n - 1)) {
+				return true;
+			}
+			if (hostStart != -1 && i >= hostStart && !Tokenizer.isHostChar(c)) {
+				hostRun = false;
+			}
+			if (empty && !startLoop && !canStartAfter(i, from, hostStart, hostRun)) {
+				return false;
+			}
+		}
+
+		return false;
+	}
+
+	// with no partial match and any position being a start, jump to the next occurrence of the prefix
+	private boolean canSkip(final boolean started) {
+		return !prefix.isEmpty()
+				&& (anchor == Anchor.NONE || startLoop && started);
+	}
+
+	// can the first element start at position i
+	private boolean isStart(final String url, final int from, final int i, final int hostStart, final boolean hostRun) {
+		switch(anchor) {
+		case START:
+			return i == from;
+		case HOST:
+			return i == hostStart
+					|| i > hostStart && hostRun && url.charAt(i - 1) == '.';
+		default:
+			return true;
+		}
+	}
+
+	// can the first element start at a position after i
+	private boolean canStartAfter(final int i, final int from, final int hostStart, final boolean hostRun) {
+		switch(anchor) {
+		case START:
+			return false;
+		case HOST:
+			return i < hostStart || hostRun;
+		default:
+			return true;
+		}
+	}
+
+	// an end anchored empty "||" rule matches a host ending with a dot
+	private boolean isHostSuffixEnd(final String url, final int hostStart) {
+		for(int i=hostStart, n=url.length(); i<n; i++) {
+			if (!Tokenizer.isHostChar(url.charAt(i))) {
+				return false;
+			}
+		}
+		return url.charAt(url.length() - 1) == '.';
+	}
+
+	private static void setBit(final long[] bits, final int i) {
+		bits[i >>> 6] |= 1L << (i & 63);
+	}
+}
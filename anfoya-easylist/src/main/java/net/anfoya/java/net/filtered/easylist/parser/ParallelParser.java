@@ -0,0 +1,100 @@
+package net.anfoya.java.net.filtered.easylist.parser;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.anfoya.java.net.filtered.easylist.model.Rule;
+import net.anfoya.java.net.filtered.easylist.model.RuleType;
+
+/**
+ * Parses lines by chunks on a fork-join pool while they're still being read,
+ * rules come out in the order of their lines. Not thread safe, one reader
+ * feeds it.
+ */
+public class ParallelParser {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ParallelParser.class);
+	private static final int CHUNK_SIZE = 2048;
+	private static final int MAX_LOGGED_LENGTH = 256;
+
+	private final ForkJoinPool pool;
+	private final List<ForkJoinTask<List<Rule>>> tasks;
+	private final AtomicLong parseTime;
+	private List<String> chunk;
+
+	public ParallelParser() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	public ParallelParser(final ForkJoinPool pool) {
+		this.pool = pool;
+		this.tasks = new ArrayList<ForkJoinTask<List<Rule>>>();
+		this.parseTime = new AtomicLong();
+		this.chunk = new ArrayList<String>(CHUNK_SIZE);
+	}
+
+	public void add(final String line) {
+		chunk.add(line);
+		if (chunk.size() == CHUNK_SIZE) {
+			submit();
+		}
+	}
+
+	public void addAll(final Collection<String> lines) {
+		for(final String line: lines) {
+			add(line);
+		}
+	}
+
+	/**
+	 * @return rules of the lines added (empty rules and unparsable lines left out), waits for the chunks in progress
+	 */
+	public List<Rule> getRules() {
+		submit();
+		final List<Rule> rules = new ArrayList<Rule>();
+		for(final ForkJoinTask<List<Rule>> task: tasks) {
+			rules.addAll(task.join());
+		}
+		return rules;
+	}
+
+	/**
+	 * @return parse time (ms) summed over the chunks, more than the elapsed time when they're parsed side by side
+	 */
+	public long getParseTime() {
+		return parseTime.get() / 1000000;
+	}
+
+	private void submit() {
+		if (!chunk.isEmpty()) {
+			final List<String> lines = chunk;
+			tasks.add(pool.submit(() -> parse(lines)));
+			chunk = new ArrayList<String>(CHUNK_SIZE);
+		}
+	}
+
+	// one parser per chunk, parsers don't share state
+	private List<Rule> parse(final List<String> lines) {
+		final long start = System.nanoTime();
+		final Parser parser = new Parser();
+		final List<Rule> rules = new ArrayList<Rule>(lines.size());
+		for(final String line: lines) {
+			try {
+				final Rule rule = parser.parse(line);
+				if (rule.getType() != RuleType.empty) {
+					rules.add(rule);
+				}
+			} catch (final ParserException e) {
+				LOGGER.error("parsing {}", line.length() > MAX_LOGGED_LENGTH? line.substring(0, MAX_LOGGED_LENGTH) + "...": line, e);
+			}
+		}
+		parseTime.addAndGet(System.nanoTime() - start);
+		return rules;
+	}
+}
@@ -1,12 +1,51 @@
 package net.anfoya.java.net.filtered.easylist.parser;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 import net.anfoya.java.net.filtered.easylist.model.Rule;
+import net.anfoya.java.net.filtered.easylist.model.RuleOptions;
 import net.anfoya.java.net.filtered.easylist.model.RuleType;
+import net.anfoya.java.net.url.filter.ContentType;
 
 public class Parser {
+	private static final Map<String, ContentType> TYPE_OPTIONS = new HashMap<String, ContentType>();
+	static {
+		for(final ContentType type: ContentType.values()) {
+			TYPE_OPTIONS.put(type.name().toLowerCase(), type);
+		}
+		// aliases
+		TYPE_OPTIONS.put("css", ContentType.STYLESHEET);
+		TYPE_OPTIONS.put("background", ContentType.IMAGE);
+		TYPE_OPTIONS.put("object-subrequest", ContentType.OBJECT);
+		TYPE_OPTIONS.put("xhr", ContentType.XMLHTTPREQUEST);
+		TYPE_OPTIONS.put("frame", ContentType.SUBDOCUMENT);
+		TYPE_OPTIONS.put("doc", ContentType.DOCUMENT);
+		TYPE_OPTIONS.put("beacon", ContentType.PING);
+		TYPE_OPTIONS.put("xbl", ContentType.OTHER);
+		TYPE_OPTIONS.put("dtd", ContentType.OTHER);
+	}
+
+	private static final String[] PROCEDURAL_SELECTORS = {
+		":-abp-", ":has-text(", ":contains(", ":xpath(", ":upward(", ":remove(", ":style(", ":matches-css"
+		, ":min-text-length(", ":watch-attr(", ":if(", ":if-not(", ":nth-ancestor(", ":matches-path(", ":others("
+	};
+
+	// a line and what's derived of it (lower cased token) are stored in 64K chars
+	private static final int MAX_LENGTH = 32 * 1024 - 1;
+
+	private final Tokenizer tokenizer;
+
+	public Parser() {
+		tokenizer = new Tokenizer();
+	}
+
 	public Rule parse(final String line) throws ParserException {
+		if (line.length() > MAX_LENGTH) {
+			throw new ParserException("rule over " + MAX_LENGTH + " chars " + line.substring(0, 64), null);
+		}
+
 		// get effective line for parsing
 		String effLine;
 		try {
@@ -18,6 +57,24 @@ public class Parser {
 			return Rule.getEmptyRule();
 		}
 
+		// element hiding
+		final int cosmeticIndex = findCosmetic(effLine);
+		if (cosmeticIndex != -1) {
+			return parseCosmetic(effLine, cosmeticIndex, line);
+		}
+
+		// split options
+		RuleOptions options = RuleOptions.NONE;
+		final int optionIndex = findOptions(effLine);
+		if (optionIndex != -1) {
+			options = parseOptions(effLine.substring(optionIndex + Terminal.RULE_OPT.length()));
+			effLine = effLine.substring(0, optionIndex);
+			if (options == null || effLine.isEmpty() || effLine.equals(Terminal.EXCEPTION.value())) {
+				// options not about blocking requests, or a rule for any URL
+				return Rule.getEmptyRule();
+			}
+		}
+
 		// check if regular or exception
 		final RuleType type;
 		if (effLine.startsWith(Terminal.EXCEPTION.value())) {
@@ -27,15 +84,13 @@ public class Parser {
 			type = RuleType.exclusion;
 		}
 
-		// transform effective line to regular expression
-		Pattern regex;
-		try {
-			regex = buildRegex(effLine);
-		} catch(final Exception e) {
-			throw new ParserException("building regex for " + effLine, e);
-		}
-
-		return new Rule(type, regex, effLine, line);
+		// the regex is built by the rule on first use
+		return new Rule(type
+				, tokenizer.findRuleToken(effLine)
+				, tokenizer.findLiterals(effLine)
+				, findDomain(effLine)
+				, options
+				, effLine, line);
 	}
 
 	private String clean(String line) {
@@ -44,33 +99,138 @@ public class Parser {
 				|| line.startsWith(Terminal.SECTION.value())) {
 			line = "";
 		}
-		if (line.contains("$")) {
-			if (line.startsWith(Terminal.EXCEPTION.value())) {
-				line = "";
-			} else {
-				line = line.substring(0, line.indexOf("$"));
+
+		return line.trim();
+	}
+
+	// index of the "#" starting a cosmetic separator (##, #@#, #?#, #$#, #@?#, ...), -1 for a request rule
+	private int findCosmetic(final String line) {
+		final int n = line.length();
+		for(int i = line.indexOf('#'); i != -1; i = line.indexOf('#', i + 1)) {
+			int j = i + 1;
+			if (j < n && line.charAt(j) == '@') {
+				j++;
+			}
+			if (j < n && "?$%".indexOf(line.charAt(j)) != -1) {
+				j++;
+			}
+			if (j < n && line.charAt(j) == '#') {
+				return i;
 			}
 		}
-		if (line.startsWith(Terminal.DIV.value())) {
-			if (line.contains("href")
-						&& line.contains("=\"")
-						&& line.contains("\"]")) {
-				line = line.substring(line.indexOf("=\"") + 2);
-				line = line.substring(0, line.indexOf("\"]"));
-			} else {
-				line = "";
+		return -1;
+	}
+
+	// plain CSS selectors only, scriptlets, HTML filters, CSS injection and procedural selectors need a content script
+	private Rule parseCosmetic(final String effLine, final int index, final String line) {
+		final RuleType type;
+		final int selectorIndex;
+		if (effLine.startsWith(Terminal.DIV.value(), index)) {
+			type = RuleType.cosmetic;
+			selectorIndex = index + Terminal.DIV.length();
+		} else if (effLine.startsWith(Terminal.EXCEPT_DIV.value(), index)) {
+			type = RuleType.cosmeticException;
+			selectorIndex = index + Terminal.EXCEPT_DIV.length();
+		} else {
+			return Rule.getEmptyRule();
+		}
+
+		final String selector = effLine.substring(selectorIndex).trim();
+		if (selector.isEmpty() || selector.startsWith("+js(") || selector.startsWith("^")) {
+			return Rule.getEmptyRule();
+		}
+		for(final String procedural: PROCEDURAL_SELECTORS) {
+			if (selector.contains(procedural)) {
+				return Rule.getEmptyRule();
 			}
 		}
-		if (line.startsWith("#@#")) { // todo: div selector exception
-			line = "";
+
+		final String domainList = index == 0? null: effLine.substring(0, index).replace(',', '|');
+		return new Rule(type, null, null, null
+				, RuleOptions.of(RuleOptions.ALL, domainList)
+				, selector, line);
+	}
+
+	// index of the "$" starting the options, -1 if there's none
+	private int findOptions(final String line) {
+		final int index = line.lastIndexOf(Terminal.RULE_OPT.value());
+		if (index == -1 || index == line.length() - 1) {
+			return -1;
 		}
+		// option names up to the first value, a "$" followed by a path is part of the pattern
+		for(int i=index+1, n=line.length(); i<n && line.charAt(i) != '='; i++) {
+			final char c = line.charAt(i);
+			if (!Character.isLetterOrDigit(c) && c != '-' && c != '_' && c != '~' && c != ',') {
+				return -1;
+			}
+		}
+		return index;
+	}
 
-		return line.trim();
+	// options of a rule, null when they're not about blocking requests (content security policy, cosmetic, ...)
+	private RuleOptions parseOptions(final String options) {
+		int types = 0, notTypes = 0;
+		int parties = RuleOptions.PARTIES;
+		String domainList = null;
+		for(final String option: options.split(",")) {
+			final boolean not = option.startsWith(Terminal.NOT.value());
+			final String name = (not? option.substring(Terminal.NOT.length()): option).trim().toLowerCase();
+			final int valueIndex = name.indexOf('=');
+			final String key = valueIndex == -1? name: name.substring(0, valueIndex);
+			final ContentType type = TYPE_OPTIONS.get(key);
+			if (type != null) {
+				if (not) {
+					notTypes |= RuleOptions.getTypeBit(type);
+				} else {
+					types |= RuleOptions.getTypeBit(type);
+				}
+				continue;
+			}
+			switch(key) {
+			case "third-party":
+			case "3p":
+				parties = not? RuleOptions.FIRST_PARTY: RuleOptions.THIRD_PARTY;
+				break;
+			case "first-party":
+			case "1p":
+				parties = not? RuleOptions.THIRD_PARTY: RuleOptions.FIRST_PARTY;
+				break;
+			case "domain":
+			case "from":
+				if (valueIndex == -1) {
+					return null;
+				}
+				domainList = name.substring(valueIndex + 1);
+				break;
+			case "all":
+				types |= RuleOptions.TYPES;
+				break;
+			case "match-case":
+			case "important":
+			case "collapse":
+			case "redirect":
+			case "redirect-rule":
+			case "empty":
+			case "mp4":
+				// the request is blocked all the same
+				break;
+			default:
+				return null;
+			}
+		}
+
+		final int typeMask = (types == 0? RuleOptions.TYPES: types) & ~notTypes;
+		if (typeMask == 0) {
+			return null;
+		}
+		return RuleOptions.of(typeMask | parties, domainList);
 	}
 
-	private Pattern buildRegex(final String line) {
+	/**
+	 * @return source of the regex of a URL rule, from its effective line
+	 */
+	public static String buildRegex(final String line) {
 		String rule = line;
-		int ruleIndex = 0;
 
 		// check beginning and end
 		final boolean isHttpWildCard = rule.startsWith(Terminal.HTTP_WILDCARD.value());
@@ -81,37 +241,12 @@ public class Parser {
 		if (isStarts) {
 			rule = rule.substring(Terminal.STARTS.length());
 		}
-		final boolean isEnds = rule.startsWith(Terminal.ENDS.value());
+		final boolean isEnds = rule.endsWith(Terminal.ENDS.value());
 		if (isEnds) {
-			rule = rule.substring(Terminal.ENDS.length());
-		}
-
-		// get wildcard parts
-		final String[] parts = line.split(Regex.SPLIT_RULE.value());
-
-		// build regex
-		String regex = "";
-		for(final String part: parts) {
-			regex += part.isEmpty()? "": Pattern.quote(part);
-			if (rule.length() > ruleIndex + part.length()) {
-				switch (rule.charAt(ruleIndex + part.length())) {
-				case '^':
-					regex += Regex.SEPARATOR.value();
-					ruleIndex += part.length() + 1;
-					break;
-				case '*':
-					regex += Regex.WILDCARD.value();
-					ruleIndex += part.length() + 1;
-					break;
-				}
-			}
+			rule = rule.substring(0, rule.length() - Terminal.ENDS.length());
 		}
 
-		if (regex.isEmpty() && !rule.isEmpty()) {
-			regex = rule
-					.replaceAll("\\" + Terminal.SEPARATOR.value(), Regex.SEPARATOR.value())
-					.replaceAll("\\" + Terminal.WILDCARD.value(), Regex.WILDCARD.value());
-		}
+		String regex = toRegex(rule);
 
 		if (isHttpWildCard) {
 			regex = Regex.HTTP_WILDCARD.value() + regex;
@@ -127,6 +262,75 @@ public class Parser {
 			regex += Regex.WILDCARD.value();
 		}
 
+		return regex;
+	}
+
+	/**
+	 * @return regex matching, from its first char, the part of the URL following the domain of a "||" rule
+	 */
+	public static Pattern buildRestRegex(final String rest) {
+		String rule = rest;
+		final boolean isEnds = rule.endsWith(Terminal.ENDS.value());
+		if (isEnds) {
+			rule = rule.substring(0, rule.length() - Terminal.ENDS.length());
+		}
+
+		String regex = toRegex(rule);
+		if (isEnds) {
+			regex += Regex.ENDS.value();
+		} else if (!regex.endsWith(Regex.WILDCARD.value())) {
+			regex += Regex.WILDCARD.value();
+		}
+
 		return Pattern.compile(regex);
 	}
+
+	private static String toRegex(final String rule) {
+		final StringBuilder regex = new StringBuilder();
+		final StringBuilder literal = new StringBuilder();
+		for(int i=0, n=rule.length(); i<=n; i++) {
+			final char c = i < n? rule.charAt(i): '\0';
+			if (i == n || c == '^' || c == '*') {
+				if (literal.length() > 0) {
+					regex.append(Pattern.quote(literal.toString()));
+					literal.setLength(0);
+				}
+				if (c == '^') {
+					regex.append(Regex.SEPARATOR.value());
+				} else if (c == '*') {
+					regex.append(Regex.WILDCARD.value());
+				}
+			} else {
+				literal.append(c);
+			}
+		}
+
+		return regex.toString();
+	}
+
+	// domain of a "||" rule, only when followed by a delimiter so it can't be the prefix of a longer host
+	private String findDomain(final String effLine) {
+		if (!effLine.startsWith(Terminal.HTTP_WILDCARD.value())) {
+			return null;
+		}
+		final int start = Terminal.HTTP_WILDCARD.length();
+		int end = start;
+		while(end < effLine.length() && Tokenizer.isHostChar(effLine.charAt(end))) {
+			end++;
+		}
+		if (end == start || end == effLine.length()) {
+			return null;
+		}
+		switch(effLine.charAt(end)) {
+		case '^':
+		case '/':
+		case ':':
+		case '?':
+			return effLine.substring(start, end);
+		case '|':
+			return end == effLine.length() - 1? effLine.substring(start, end): null;
+		default:
+			return null;
+		}
+	}
 }
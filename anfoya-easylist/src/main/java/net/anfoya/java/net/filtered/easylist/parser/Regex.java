@@ -5,7 +5,7 @@ import java.util.regex.Pattern;
 public enum Regex {
 	SEPARATOR("[^A-Za-z0-9_%.-]")
 	, WILDCARD(".*")
-	, HTTP_WILDCARD("^https?:\\/\\/")
+	, HTTP_WILDCARD("^https?:\\/\\/([A-Za-z0-9_%.-]*\\.)?")
 	, STARTS("^")
 	, ENDS("$")
 
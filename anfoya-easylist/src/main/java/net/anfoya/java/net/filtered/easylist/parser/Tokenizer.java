@@ -0,0 +1,120 @@
+package net.anfoya.java.net.filtered.easylist.parser;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Splits URLs and rules into tokens, a token being a maximal run of
+ * letters, digits or '%' (lower cased).
+ *
+ * A rule token is a literal run which is delimited on both sides in any URL
+ * the rule can match, so it is guaranteed to be one of the URL tokens.
+ *
+ * Rule literals are the parts between wildcards and separators, all of them
+ * occur in any URL the rule can match.
+ */
+public class Tokenizer {
+
+	public static boolean isTokenChar(final char c) {
+		return c >= 'a' && c <= 'z'
+				|| c >= 'A' && c <= 'Z'
+				|| c >= '0' && c <= '9'
+				|| c == '%';
+	}
+
+	/**
+	 * @return true for the chars of a host name, the others are separators
+	 */
+	public static boolean isHostChar(final char c) {
+		return isTokenChar(c)
+				|| c == '.'
+				|| c == '-'
+				|| c == '_';
+	}
+
+	public Set<String> tokenize(final String url) {
+		final Set<String> tokens = new LinkedHashSet<String>();
+		final int length = url.length();
+		int start = -1;
+		for(int i=0; i<=length; i++) {
+			if (i < length && isTokenChar(url.charAt(i))) {
+				if (start == -1) {
+					start = i;
+				}
+			} else if (start != -1) {
+				tokens.add(url.substring(start, i).toLowerCase());
+				start = -1;
+			}
+		}
+
+		return tokens;
+	}
+
+	/**
+	 * @return the longest token of the rule or null if no literal run is safely delimited
+	 */
+	public String findRuleToken(final String effLine) {
+		String rule = effLine;
+		boolean anchoredStart = false;
+		if (rule.startsWith(Terminal.HTTP_WILDCARD.value())) {
+			rule = rule.substring(Terminal.HTTP_WILDCARD.length());
+			anchoredStart = true;
+		} else if (rule.startsWith(Terminal.STARTS.value())) {
+			rule = rule.substring(Terminal.STARTS.length());
+			anchoredStart = true;
+		}
+		boolean anchoredEnd = false;
+		if (rule.endsWith(Terminal.ENDS.value())) {
+			rule = rule.substring(0, rule.length() - Terminal.ENDS.length());
+			anchoredEnd = true;
+		}
+
+		String token = null;
+		final int length = rule.length();
+		int start = -1;
+		for(int i=0; i<=length; i++) {
+			if (i < length && isTokenChar(rule.charAt(i))) {
+				if (start == -1) {
+					start = i;
+				}
+			} else if (start != -1) {
+				final boolean delimitedBefore = start == 0? anchoredStart: !isWildcard(rule.charAt(start - 1));
+				final boolean delimitedAfter = i == length? anchoredEnd: !isWildcard(rule.charAt(i));
+				if (delimitedBefore && delimitedAfter
+						&& (token == null || i - start > token.length())) {
+					token = rule.substring(start, i).toLowerCase();
+				}
+				start = -1;
+			}
+		}
+
+		return token;
+	}
+
+	public String[] findLiterals(final String effLine) {
+		String rule = effLine;
+		if (rule.startsWith(Terminal.HTTP_WILDCARD.value())) {
+			rule = rule.substring(Terminal.HTTP_WILDCARD.length());
+		} else if (rule.startsWith(Terminal.STARTS.value())) {
+			rule = rule.substring(Terminal.STARTS.length());
+		}
+		if (rule.endsWith(Terminal.ENDS.value())) {
+			rule = rule.substring(0, rule.length() - Terminal.ENDS.length());
+		}
+
+		final List<String> literals = new ArrayList<String>();
+		for(final String part: rule.split(Regex.SPLIT_RULE.value())) {
+			if (!part.isEmpty()) {
+				literals.add(part);
+			}
+		}
+
+		return literals.toArray(new String[literals.size()]);
+	}
+
+	private boolean isWildcard(final char c) {
+		return c == Terminal.WILDCARD.value().charAt(0);
+	}
+}
@@ -0,0 +1,116 @@
+package net.anfoya.java.net.filtered.easylist.proxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * End of a request body found in the bytes relayed as they come, from its
+ * Content-Length or its chunks, so what follows it (another request) is
+ * told apart without buffering the body.
+ */
+final class BodyFramer {
+	private enum State { SIZE, EXTENSION, DATA, DATA_END, TRAILER, DONE }
+
+	private final boolean chunked;
+	private State state;
+	// bytes of the body, or of the current chunk, not scanned yet
+	private long remaining;
+	private int digits;
+	private boolean emptyLine;
+
+	/**
+	 * @param length of the body, ignored when it's sent in chunks
+	 */
+	BodyFramer(final long length, final boolean chunked) {
+		this.chunked = chunked;
+		if (chunked) {
+			state = State.SIZE;
+		} else {
+			remaining = length;
+			state = length == 0? State.DONE: State.DATA;
+		}
+	}
+
+	/**
+	 * @return true once the whole body was scanned
+	 */
+	boolean isComplete() {
+		return state == State.DONE;
+	}
+
+	/**
+	 * scans the bytes from the position of the buffer, which isn't moved
+	 * @return how many of them are part of the body
+	 * @throws IOException if a chunk is malformed
+	 */
+	int scan(final ByteBuffer buffer) throws IOException {
+		int i = buffer.position();
+		final int end = buffer.limit();
+		while(i < end && state != State.DONE) {
+			if (state == State.DATA) {
+				final int n = (int) Math.min(remaining, end - i);
+				i += n;
+				remaining -= n;
+				if (remaining == 0) {
+					state = chunked? State.DATA_END: State.DONE;
+				}
+				continue;
+			}
+			scan(buffer.get(i++));
+		}
+		return i - buffer.position();
+	}
+
+	private void scan(final byte b) throws IOException {
+		switch(state) {
+		case SIZE:
+			final int digit = Character.digit(b, 16);
+			if (digit != -1 && remaining < Long.MAX_VALUE >> 4) {
+				remaining = remaining << 4 | digit;
+				digits++;
+			} else if (digits > 0 && (b == ';' || b == ' ' || b == '\t' || b == '\r')) {
+				state = State.EXTENSION;
+			} else if (digits > 0 && b == '\n') {
+				endSize();
+			} else {
+				throw new IOException("invalid chunk size");
+			}
+			break;
+		case EXTENSION:
+			if (b == '\n') {
+				endSize();
+			}
+			break;
+		case DATA_END:
+			if (b == '\n') {
+				state = State.SIZE;
+				digits = 0;
+			} else if (b != '\r') {
+				throw new IOException("chunk longer than its size");
+			}
+			break;
+		case TRAILER:
+			if (b == '\n') {
+				if (emptyLine) {
+					state = State.DONE;
+				}
+				emptyLine = true;
+			} else if (b != '\r') {
+				emptyLine = false;
+			}
+			break;
+		default:
+			throw new IllegalStateException(state.toString());
+		}
+	}
+
+	// the last chunk (size 0) is followed by the trailers, up to an empty line
+	private void endSize() {
+		if (remaining == 0) {
+			state = State.TRAILER;
+			emptyLine = true;
+		} else {
+			state = State.DATA;
+		}
+	}
+}
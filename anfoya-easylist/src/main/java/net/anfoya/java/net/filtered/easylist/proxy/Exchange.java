@@ -0,0 +1,403 @@
+package net.anfoya.java.net.filtered.easylist.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A client connection of the proxy event loop, with its connection to the
+ * origin server: the request head is read, checked and answered (403 when
+ * blocked) on the loop, then bytes are relayed both ways until the origin
+ * server closes. A side is only read when what was read from it got written
+ * to the other one, so a slow peer holds at most a buffer.
+ *
+ * An exchange carries a single request, only its head is checked: the client
+ * isn't read past the end of the request body and the response head tells it
+ * the connection closes, so a next request comes on another connection.
+ *
+ * A CONNECT request is checked on its host only, once the origin server is
+ * connected the exchange relays the bytes of the tunnel the same way. Relay
+ * buffers are direct ones of the proxy, a channel reads into them and writes
+ * from them without the copy the runtime makes for a heap buffer.
+ *
+ * All methods are called from the loop thread.
+ */
+final class Exchange {
+	private static final Logger LOGGER = LoggerFactory.getLogger(Exchange.class);
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private enum State { HEAD, CONNECTING, RELAY, CLOSED }
+
+	private final Proxy proxy;
+	private final SocketChannel client;
+	private final SelectionKey clientKey;
+	private SocketChannel upstream;
+	private SelectionKey upstreamKey;
+
+	private State state;
+	private long lastActivity;
+	// request head read so far, null until a partial head is read
+	private byte[] head;
+	private int headLength;
+	// CONNECT request, answered once the origin server is connected
+	private boolean tunnel;
+	// end of the request body, null for a tunnel
+	private BodyFramer requestBody;
+	// response head not read yet, it's read in head
+	private boolean responseHead;
+	// bytes read and not written yet, in read mode
+	private ByteBuffer toUpstream;
+	private ByteBuffer toClient;
+	private boolean clientEnded;
+	private boolean upstreamEnded;
+
+	Exchange(final Proxy proxy, final SocketChannel client) throws IOException {
+		this.proxy = proxy;
+		this.client = client;
+		clientKey = client.register(proxy.getSelector(), SelectionKey.OP_READ, this);
+		state = State.HEAD;
+		lastActivity = System.currentTimeMillis();
+		toUpstream = EMPTY;
+		toClient = EMPTY;
+	}
+
+	void handle(final SelectionKey key) throws IOException {
+		lastActivity = System.currentTimeMillis();
+		if (key == upstreamKey && key.isConnectable()) {
+			finishConnect();
+		}
+		if (state != State.CLOSED && key.isReadable()) {
+			if (key == clientKey) {
+				readClient();
+			} else {
+				readUpstream();
+			}
+		}
+		if (state != State.CLOSED && key.isValid() && key.isWritable()) {
+			if (key == clientKey) {
+				writeClient();
+			} else {
+				writeUpstream();
+			}
+		}
+		updateInterests();
+	}
+
+	/**
+	 * @return true if nothing happened on the connection since timeout (ms)
+	 */
+	boolean isIdle(final long now, final long timeout) {
+		return now - lastActivity > timeout;
+	}
+
+	void close() {
+		if (state == State.CLOSED) {
+			return;
+		}
+		state = State.CLOSED;
+		clientKey.cancel();
+		closeQuietly(client);
+		if (upstream != null) {
+			if (upstreamKey != null) {
+				upstreamKey.cancel();
+			}
+			closeQuietly(upstream);
+		}
+		proxy.giveBuffer(toUpstream);
+		proxy.giveBuffer(toClient);
+	}
+
+	private void readClient() throws IOException {
+		if (state == State.HEAD) {
+			readHead();
+			return;
+		}
+		final ByteBuffer read = read(client, toUpstream);
+		if (read == null) {
+			toUpstream = EMPTY;
+			clientEnded = true;
+			upstream.shutdownOutput();
+		} else {
+			if (requestBody != null) {
+				// what follows the body isn't relayed
+				read.limit(read.position() + requestBody.scan(read));
+				clientEnded = requestBody.isComplete();
+			}
+			toUpstream = read;
+			upstream.write(toUpstream);
+		}
+	}
+
+	private void readUpstream() throws IOException {
+		final ByteBuffer read = read(upstream, toClient);
+		if (read == null) {
+			toClient = EMPTY;
+			upstreamEnded = true;
+		} else {
+			toClient = responseHead? readResponseHead(read): read;
+			client.write(toClient);
+		}
+		if (upstreamEnded && !toClient.hasRemaining()) {
+			close();
+		}
+	}
+
+	private void writeClient() throws IOException {
+		client.write(toClient);
+		if (upstreamEnded && !toClient.hasRemaining()) {
+			close();
+		}
+	}
+
+	private void writeUpstream() throws IOException {
+		upstream.write(toUpstream);
+	}
+
+	// reads in the shared buffer of the loop, a copy is kept only when the head is split on several reads
+	private void readHead() throws IOException {
+		final ByteBuffer buffer = proxy.getBuffer();
+		buffer.clear();
+		if (client.read(buffer) == -1) {
+			close();
+			return;
+		}
+		buffer.flip();
+		final byte[] bytes;
+		final int length;
+		if (head == null && buffer.hasArray()) {
+			bytes = buffer.array();
+			length = buffer.limit();
+		} else {
+			if (head == null) {
+				head = new byte[buffer.limit()];
+			} else if (headLength + buffer.limit() > head.length) {
+				head = Arrays.copyOf(head, Math.max(2 * head.length, headLength + buffer.limit()));
+			}
+			buffer.get(head, headLength, buffer.limit());
+			headLength += buffer.limit();
+			bytes = head;
+			length = headLength;
+		}
+
+		final int end = RequestHead.findEnd(bytes, 0, length);
+		if (end == -1) {
+			if (length > RequestHead.MAX_LENGTH) {
+				respond(431, "Request Header Fields Too Large");
+			} else if (head == null) {
+				head = Arrays.copyOf(bytes, length);
+				headLength = length;
+			}
+			return;
+		}
+
+		final RequestHead request = RequestHead.parse(bytes, 0, end - 4);
+		head = null;
+		if (request == null) {
+			respond(400, "Bad Request");
+			return;
+		}
+		tunnel = request.isTunnel();
+		final String url = request.getUrl();
+		if (url == null) {
+			respond(501, "Not Implemented");
+			return;
+		}
+		if (tunnel? proxy.getMatcher().matchesHost(request.getHost()): proxy.getMatcher().matches(url)) {
+			LOGGER.info("blocked {}", tunnel? request.getTarget(): url);
+			respond(403, "Forbidden");
+			return;
+		}
+		final int port = request.getPort();
+		final long contentLength = request.getContentLength();
+		final boolean encoded = request.getHeader("Transfer-Encoding") != null;
+		// the end of the body must be known to leave out what follows
+		if (port < 1 || port > 0xFFFF || !tunnel && (contentLength == -2 || encoded && (!request.isChunked() || contentLength != -1))) {
+			respond(400, "Bad Request");
+			return;
+		}
+
+		// request body (or first bytes of the tunnel) received with the head
+		final byte[] origin;
+		int bodyLength = length - end;
+		if (tunnel) {
+			origin = new byte[0];
+		} else {
+			origin = request.toOrigin(true);
+			requestBody = new BodyFramer(Math.max(contentLength, 0), request.isChunked());
+			bodyLength = requestBody.scan(ByteBuffer.wrap(bytes, end, bodyLength));
+			clientEnded = requestBody.isComplete();
+			responseHead = true;
+		}
+		final ByteBuffer toUpstream = ByteBuffer.allocate(origin.length + bodyLength);
+		toUpstream.put(origin).put(bytes, end, bodyLength).flip();
+		this.toUpstream = toUpstream;
+		state = State.CONNECTING;
+		LOGGER.debug("relaying {}", request);
+		proxy.resolve(this, request.getHost(), port);
+	}
+
+	// copies the bytes read up to the end of the final response head, which is forwarded with "Connection: close"
+	private ByteBuffer readResponseHead(final ByteBuffer read) throws IOException {
+		if (head == null) {
+			head = new byte[Math.max(read.remaining(), 1024)];
+		} else if (headLength + read.remaining() > head.length) {
+			head = Arrays.copyOf(head, Math.max(2 * head.length, headLength + read.remaining()));
+		}
+		final int length = read.remaining();
+		read.get(head, headLength, length);
+		headLength += length;
+		proxy.giveBuffer(read);
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int start = 0;
+		while(responseHead) {
+			final int end = ResponseHead.findEnd(head, start, headLength);
+			if (end == -1) {
+				if (headLength - start > ResponseHead.MAX_LENGTH) {
+					throw new IOException("response head too long");
+				}
+				break;
+			}
+			final ResponseHead response = ResponseHead.parse(head, start, end - 4 - start);
+			if (response == null) {
+				throw new IOException("malformed response head");
+			}
+			// an interim response (100 Continue) is followed by the final one
+			responseHead = response.isInterim();
+			out.write(response.toClient(!responseHead));
+			start = end;
+		}
+		if (responseHead) {
+			System.arraycopy(head, start, head, 0, headLength - start);
+			headLength -= start;
+		} else {
+			out.write(head, start, headLength - start);
+			head = null;
+		}
+		return ByteBuffer.wrap(out.toByteArray());
+	}
+
+	/**
+	 * starts the connection to the origin server, called by the loop once its address is resolved
+	 */
+	void connect(final InetSocketAddress address) {
+		if (state == State.CLOSED) {
+			return;
+		}
+		try {
+			upstream = SocketChannel.open();
+			upstream.configureBlocking(false);
+			if (upstream.connect(address)) {
+				upstreamKey = upstream.register(proxy.getSelector(), 0, this);
+				startRelay();
+			} else {
+				upstreamKey = upstream.register(proxy.getSelector(), SelectionKey.OP_CONNECT, this);
+			}
+		} catch (final IOException e) {
+			LOGGER.debug("connecting to {}", address, e);
+			fail();
+		}
+	}
+
+	/**
+	 * answers a bad gateway, the origin server can't be reached
+	 */
+	void fail() {
+		if (state == State.CLOSED) {
+			return;
+		}
+		if (upstream != null) {
+			if (upstreamKey != null) {
+				upstreamKey.cancel();
+				upstreamKey = null;
+			}
+			closeQuietly(upstream);
+		}
+		try {
+			respond(502, "Bad Gateway");
+			updateInterests();
+		} catch (final IOException e) {
+			close();
+		}
+	}
+
+	private void finishConnect() throws IOException {
+		try {
+			upstream.finishConnect();
+		} catch (final IOException e) {
+			LOGGER.debug("connecting to {}", upstream, e);
+			fail();
+			return;
+		}
+		startRelay();
+	}
+
+	private void startRelay() throws IOException {
+		state = State.RELAY;
+		if (tunnel) {
+			toClient = ByteBuffer.wrap(RequestHead.toEstablished());
+			client.write(toClient);
+		}
+		upstream.write(toUpstream);
+		updateInterests();
+	}
+
+	// local answer, the connection is closed once it's written
+	private void respond(final int status, final String reason) throws IOException {
+		state = State.RELAY;
+		clientEnded = true;
+		upstreamEnded = true;
+		toUpstream = EMPTY;
+		toClient = ByteBuffer.wrap(RequestHead.toResponse(status, reason, true));
+		writeClient();
+	}
+
+	private void updateInterests() {
+		switch(state) {
+		case HEAD:
+			clientKey.interestOps(SelectionKey.OP_READ);
+			break;
+		case CONNECTING:
+			clientKey.interestOps(0);
+			break;
+		case RELAY:
+			clientKey.interestOps((toClient.hasRemaining()? SelectionKey.OP_WRITE: 0)
+					| (clientEnded || toUpstream.hasRemaining()? 0: SelectionKey.OP_READ));
+			if (upstreamKey != null && upstreamKey.isValid()) {
+				upstreamKey.interestOps((toUpstream.hasRemaining()? SelectionKey.OP_WRITE: 0)
+						| (upstreamEnded || toClient.hasRemaining()? 0: SelectionKey.OP_READ));
+			}
+			break;
+		case CLOSED:
+			break;
+		}
+	}
+
+	// reads in a buffer emptied by the writes (a relay buffer of the proxy from the first read), null at the end of the stream
+	private ByteBuffer read(final SocketChannel channel, final ByteBuffer buffer) throws IOException {
+		final ByteBuffer target = buffer.isDirect()? buffer: proxy.takeBuffer();
+		target.clear();
+		if (channel.read(target) == -1) {
+			proxy.giveBuffer(target);
+			return null;
+		}
+		target.flip();
+		return target;
+	}
+
+	private static void closeQuietly(final SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (final IOException e) {
+			LOGGER.debug("closing {}", channel, e);
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package net.anfoya.java.net.filtered.easylist.proxy;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+/**
+ * Messages of a connection, read in a buffer: heads are parsed in place and
+ * bodies are copied as they come, so the end of a message is known without
+ * reading past it and the next one (pipelined or on a kept alive connection)
+ * stays in the buffer. Between messages the buffer can be given up, to wait
+ * for the next one without holding it.
+ */
+final class HttpInput {
+	private final InputStream in;
+	private byte[] buffer;
+	// bytes read and not consumed yet
+	private int start;
+	private int end;
+
+	/**
+	 * @param buffer null to get one with await()
+	 */
+	HttpInput(final InputStream in, final byte[] buffer) {
+		this.in = in;
+		this.buffer = buffer;
+	}
+
+	byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return index of the next byte in the buffer
+	 */
+	int getStart() {
+		return start;
+	}
+
+	/**
+	 * @return true if bytes were read and not consumed
+	 */
+	boolean hasRemaining() {
+		return start < end;
+	}
+
+	/**
+	 * gives the buffer up, the bytes left in it are lost
+	 * @return the buffer, null if there's none
+	 */
+	byte[] release() {
+		final byte[] buffer = this.buffer;
+		this.buffer = null;
+		start = end = 0;
+		return buffer;
+	}
+
+	/**
+	 * waits for the next byte of the stream without a buffer, then reads in one of buffers
+	 * @return false at the end of the stream
+	 */
+	boolean await(final Supplier<byte[]> buffers) throws IOException {
+		final int b = in.read();
+		if (b == -1) {
+			return false;
+		}
+		buffer = buffers.get();
+		buffer[0] = (byte) b;
+		start = 0;
+		end = 1;
+		return true;
+	}
+
+	/**
+	 * reads up to the empty line ending a head, the head starts at getStart()
+	 * @return length of the head, -1 at the end of the stream, 0 if it doesn't fit in the buffer
+	 */
+	int readHead() throws IOException {
+		int from = start;
+		while(true) {
+			final int headEnd = MessageHead.findEnd(buffer, Math.max(start, from - 3), end);
+			if (headEnd != -1) {
+				return headEnd - start;
+			}
+			from = end;
+			if (start == 0 && end == buffer.length) {
+				return 0;
+			}
+			final int offset = start;
+			if (!fill()) {
+				if (start == end) {
+					return -1;
+				}
+				throw new EOFException("head not complete");
+			}
+			from -= offset - start;
+		}
+	}
+
+	/**
+	 * consumes count bytes of the buffer
+	 */
+	void skip(final int count) {
+		start += count;
+	}
+
+	/**
+	 * copies the bytes read and not consumed
+	 */
+	void drain(final OutputStream out) throws IOException {
+		out.write(buffer, start, end - start);
+		start = end;
+	}
+
+	/**
+	 * copies a body of count bytes
+	 */
+	void copy(final OutputStream out, long count) throws IOException {
+		while(count > 0) {
+			if (start == end && !fill()) {
+				throw new EOFException(count + " bytes missing");
+			}
+			final int n = (int) Math.min(count, end - start);
+			out.write(buffer, start, n);
+			start += n;
+			count -= n;
+		}
+	}
+
+	/**
+	 * copies a body up to the end of the stream
+	 */
+	void copyAll(final OutputStream out) throws IOException {
+		while(start < end || fill()) {
+			out.write(buffer, start, end - start);
+			start = end;
+		}
+	}
+
+	/**
+	 * copies a body sent in chunks, with its trailers
+	 */
+	void copyChunked(final OutputStream out) throws IOException {
+		while(true) {
+			final String line = copyLine(out);
+			final int semicolon = line.indexOf(';');
+			final long size;
+			try {
+				size = Long.parseLong((semicolon == -1? line: line.substring(0, semicolon)).trim(), 16);
+			} catch (final NumberFormatException e) {
+				throw new IOException("invalid chunk size: " + line);
+			}
+			if (size == 0) {
+				while(!copyLine(out).isEmpty());
+				return;
+			}
+			if (size < 0) {
+				throw new IOException("invalid chunk size: " + line);
+			}
+			copy(out, size);
+			if (!copyLine(out).isEmpty()) {
+				throw new IOException("chunk longer than its size");
+			}
+		}
+	}
+
+	// copies a line, returned without its end
+	private String copyLine(final OutputStream out) throws IOException {
+		int lf = indexOfLf(start);
+		while(lf == -1) {
+			if (start == 0 && end == buffer.length) {
+				throw new IOException("line too long");
+			}
+			final int searched = end - start;
+			if (!fill()) {
+				throw new EOFException("line not complete");
+			}
+			lf = indexOfLf(start + searched);
+		}
+		final int length = lf > start && buffer[lf-1] == '\r'? lf - 1 - start: lf - start;
+		final String line = new String(buffer, start, length, StandardCharsets.ISO_8859_1);
+		out.write(buffer, start, lf + 1 - start);
+		start = lf + 1;
+		return line;
+	}
+
+	private int indexOfLf(final int from) {
+		for(int i=from; i<end; i++) {
+			if (buffer[i] == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// reads more bytes, after moving the remaining ones to the start of the buffer when it's full
+	private boolean fill() throws IOException {
+		if (start == end) {
+			start = end = 0;
+		} else if (end == buffer.length) {
+			System.arraycopy(buffer, start, buffer, 0, end - start);
+			end -= start;
+			start = 0;
+		}
+		final int n = in.read(buffer, end, buffer.length - end);
+		if (n == -1) {
+			return false;
+		}
+		end += n;
+		return true;
+	}
+}
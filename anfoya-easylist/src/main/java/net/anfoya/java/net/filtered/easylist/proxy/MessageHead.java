@@ -0,0 +1,150 @@
+package net.anfoya.java.net.filtered.easylist.proxy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Start line and headers of an HTTP message, up to the empty line.
+ */
+abstract class MessageHead {
+	static final String CRLF = "\r\n";
+	static final String CHUNKED = "chunked";
+	// hop-by-hop, not forwarded
+	private static final String[] PROXY_HEADERS = { "connection", "proxy-connection", "keep-alive", "proxy-authorization" };
+
+	/**
+	 * longest head accepted, a longer one is answered 431
+	 */
+	static final int MAX_LENGTH = 16 * 1024;
+
+	/**
+	 * @return index following the empty line ending the head, -1 if it isn't complete
+	 */
+	static int findEnd(final byte[] bytes, final int start, final int end) {
+		for(int i=start+3; i<end; i++) {
+			if (bytes[i] == '\n' && bytes[i-1] == '\r' && bytes[i-2] == '\n' && bytes[i-3] == '\r') {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the headers of the lines following the start line, null if one is malformed
+	 */
+	static List<String> parseHeaders(final String[] lines) {
+		final List<String> headers = new ArrayList<String>();
+		for(int i=1; i<lines.length; i++) {
+			if (lines[i].indexOf(':') < 1) {
+				return null;
+			}
+			headers.add(lines[i]);
+		}
+		return headers;
+	}
+
+	private final String version;
+	private final List<String> headers;
+
+	protected MessageHead(final String version, final List<String> headers) {
+		this.version = version;
+		this.headers = headers;
+	}
+
+	String getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return value of the first header of that name, null if there's none
+	 */
+	String getHeader(final String name) {
+		for(final String header: headers) {
+			if (isNamed(header, name)) {
+				return header.substring(name.length() + 1).trim();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if a header of that name lists the token, as "close" in "Connection: close"
+	 */
+	boolean hasToken(final String name, final String token) {
+		for(final String header: headers) {
+			if (isNamed(header, name)) {
+				for(final String value: header.substring(name.length() + 1).split(",")) {
+					if (value.trim().equalsIgnoreCase(token)) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the body is sent in chunks
+	 */
+	boolean isChunked() {
+		final String encoding = getHeader("Transfer-Encoding");
+		return encoding != null && encoding.regionMatches(true, encoding.length() - CHUNKED.length(), CHUNKED, 0, CHUNKED.length());
+	}
+
+	/**
+	 * @return length of the body, -1 if it isn't given, -2 if it's invalid
+	 */
+	long getContentLength() {
+		final String length = getHeader("Content-Length");
+		if (length == null) {
+			return -1;
+		}
+		try {
+			final long value = Long.parseLong(length);
+			return value < 0? -2: value;
+		} catch (final NumberFormatException e) {
+			return -2;
+		}
+	}
+
+	/**
+	 * @return true if the connection can carry another message after this one
+	 */
+	boolean isPersistent() {
+		if (hasToken("Connection", "close") || hasToken("Proxy-Connection", "close")) {
+			return false;
+		}
+		return version.equals("HTTP/1.1")
+				|| hasToken("Connection", "keep-alive") || hasToken("Proxy-Connection", "keep-alive");
+	}
+
+	/**
+	 * appends the headers to forward, without the hop-by-hop ones
+	 * @return true if a header of that name is among them
+	 */
+	protected boolean appendHeaders(final StringBuilder head, final String name) {
+		boolean found = false;
+		for(final String header: headers) {
+			final String headerName = header.substring(0, header.indexOf(':')).trim();
+			if (!isProxyHeader(headerName)) {
+				found |= headerName.equalsIgnoreCase(name);
+				head.append(header).append(CRLF);
+			}
+		}
+		return found;
+	}
+
+	private static boolean isNamed(final String header, final String name) {
+		return header.length() > name.length() && header.charAt(name.length()) == ':'
+				&& header.regionMatches(true, 0, name, 0, name.length());
+	}
+
+	private static boolean isProxyHeader(final String name) {
+		for(final String header: PROXY_HEADERS) {
+			if (header.equalsIgnoreCase(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -1,43 +1,340 @@
-package net.anfoya.java.net.filtered.easylist.proxy;
-
-import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-
-import net.anfoya.java.net.url.filter.Matcher;
-import net.anfoya.java.net.url.filter.RuleSet;
-import net.anfoya.java.util.concurrent.ThreadPool;
-
-public class Proxy implements Runnable {
-
-	private final ServerSocket serverSocket;
-	private final Matcher matcher;
-
-	private volatile boolean running = true;
-
-	public Proxy(int port, RuleSet ruleSet) throws IOException {
-		serverSocket = new ServerSocket(port);
-		matcher = new Matcher(ruleSet);
-		running = true;
-	}
-
-	@Override
-	public void run(){
-		while(running){
-			try {
-				// serverSocket.accpet() Blocks until a connection is made
-				final Socket socket = serverSocket.accept();
-				// Create a new RequestHandler
-				ThreadPool.getDefault().mustRun("proxy", new RequestHandler(socket, matcher));
-			} catch (final IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-
-		}
-	}
-
-	public void stop() {
-		running = false;
-	}
-}
+package net.anfoya.java.net.filtered.easylist.proxy;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.anfoya.java.net.filtered.easylist.Config;
+import net.anfoya.java.net.url.filter.Matcher;
+import net.anfoya.java.net.url.filter.RuleSet;
+
+/**
+ * Filtering proxy, in SELECTOR mode on a single event loop: connections are
+ * non-blocking channels served by one thread, which checks the requests with
+ * the matcher (CPU only, cached) and relays the bytes of those allowed (see
+ * Exchange). Host names are resolved off the loop, then the connection goes
+ * on there.
+ *
+ * In THREAD mode each connection is served by a blocking RequestHandler, on
+ * a virtual thread when the runtime has them. They're looked up by reflection
+ * as the code builds for Java 8, older runtimes get a bounded pool. Client
+ * connections are kept alive for a few seconds and connections to the origin
+ * servers pooled. THREAD is the default mode when the runtime has virtual
+ * threads (see ProxyMode).
+ *
+ * HTTPS goes through CONNECT tunnels, blocked on their host only: what goes
+ * through is encrypted.
+ */
+public class Proxy implements Runnable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(Proxy.class);
+	private static final Config CONFIG = new Config();
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+	private static final int MAX_FREE_BUFFERS = 256;
+	// pending connections, accepted in bursts by the loop
+	private static final int BACKLOG = 1024;
+	private static final int RESOLVER_THREADS = 4;
+	private static final long SELECT_TIMEOUT = 1000;
+	static final int IDLE_TIMEOUT = 60 * 1000;
+	// a kept alive client connection waiting for its next request, it holds a thread in THREAD mode
+	static final int KEEP_ALIVE_TIMEOUT = 5 * 1000;
+
+	private final ProxyMode mode;
+	private final ServerSocketChannel serverChannel;
+	private final Selector selector;
+	private final Matcher matcher;
+	// read buffer of the loop, heap backed so a request head can be parsed in place
+	private final ByteBuffer buffer;
+	// free relay buffers of the exchanges, direct and only used on the loop
+	private final Deque<ByteBuffer> buffers;
+	private final ExecutorService resolver;
+	// tasks run by the loop
+	private final Queue<Runnable> tasks;
+	// request handlers in THREAD mode, with their connections to the origin servers
+	private final ExecutorService handlers;
+	private final UpstreamPool upstreams;
+	// tunnels and their pumps, apart from the handlers so a tunnel doesn't hold a handler thread
+	private final ExecutorService tunnels;
+
+	private volatile boolean running = true;
+
+	public Proxy(final int port, final RuleSet ruleSet) throws IOException {
+		this(port, ruleSet, CONFIG.getProxyMode());
+	}
+
+	public Proxy(final int port, final RuleSet ruleSet, final ProxyMode mode) throws IOException {
+		this.mode = mode;
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port), BACKLOG);
+		matcher = new Matcher(ruleSet);
+		if (mode == ProxyMode.SELECTOR) {
+			serverChannel.configureBlocking(false);
+			selector = Selector.open();
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+			buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			buffers = new ArrayDeque<ByteBuffer>();
+			resolver = Executors.newFixedThreadPool(RESOLVER_THREADS, r -> newDaemon(r, "proxy-resolver"));
+			tasks = new ConcurrentLinkedQueue<Runnable>();
+			handlers = null;
+			upstreams = null;
+			tunnels = null;
+		} else {
+			selector = null;
+			buffer = null;
+			buffers = null;
+			resolver = null;
+			tasks = null;
+			final ExecutorService virtual = newVirtualThreadExecutor();
+			if (virtual != null) {
+				handlers = virtual;
+				tunnels = virtual;
+			} else {
+				final int threads = CONFIG.getProxyThreads();
+				LOGGER.info("no virtual thread in this runtime, requests handled by {} threads", threads);
+				final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS
+						, new LinkedBlockingQueue<Runnable>(), r -> newDaemon(r, "proxy-handler"));
+				pool.allowCoreThreadTimeOut(true);
+				handlers = pool;
+				tunnels = Executors.newCachedThreadPool(r -> newDaemon(r, "proxy-tunnel"));
+			}
+			upstreams = new UpstreamPool(CONFIG.getProxyConnectionsPerHost());
+		}
+		running = true;
+	}
+
+	@Override
+	public void run() {
+		LOGGER.info("proxy listening on port {} ({} mode)", getPort(), mode);
+		if (mode == ProxyMode.THREAD) {
+			runHandlers();
+			return;
+		}
+		long lastSweep = System.currentTimeMillis();
+		while(running) {
+			try {
+				selector.select(SELECT_TIMEOUT);
+			} catch (final IOException e) {
+				LOGGER.error("selecting", e);
+				break;
+			}
+			for(Runnable task; (task = tasks.poll()) != null; ) {
+				task.run();
+			}
+			final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while(keys.hasNext()) {
+				final SelectionKey key = keys.next();
+				keys.remove();
+				if (key.isValid()) {
+					handle(key);
+				}
+			}
+			final long now = System.currentTimeMillis();
+			if (now - lastSweep > SELECT_TIMEOUT) {
+				closeIdle(now);
+				lastSweep = now;
+			}
+		}
+		close();
+	}
+
+	public void stop() {
+		running = false;
+		if (selector != null) {
+			selector.wakeup();
+		} else {
+			// unblocks the accept
+			closeQuietly();
+		}
+	}
+
+	public ProxyMode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return port the proxy listens to
+	 */
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	Selector getSelector() {
+		return selector;
+	}
+
+	Matcher getMatcher() {
+		return matcher;
+	}
+
+	ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * @return a relay buffer, to give back when the exchange is closed
+	 */
+	ByteBuffer takeBuffer() {
+		final ByteBuffer free = buffers.poll();
+		return free == null? ByteBuffer.allocateDirect(BUFFER_SIZE): free;
+	}
+
+	/**
+	 * keeps a relay buffer for another exchange, other buffers are ignored
+	 */
+	void giveBuffer(final ByteBuffer buffer) {
+		if (buffer.isDirect() && buffers.size() < MAX_FREE_BUFFERS) {
+			buffer.clear();
+			buffers.push(buffer);
+		}
+	}
+
+	/**
+	 * resolves the host off the loop, then connects the exchange (or fails it) on the loop
+	 */
+	void resolve(final Exchange exchange, final String host, final int port) {
+		resolver.execute(() -> {
+			try {
+				final InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(host), port);
+				execute(exchange, () -> exchange.connect(address));
+			} catch (final UnknownHostException e) {
+				LOGGER.debug("resolving {}", host, e);
+				execute(exchange, () -> exchange.fail());
+			}
+		});
+	}
+
+	private void runHandlers() {
+		while(running) {
+			try {
+				final SocketChannel client = serverChannel.accept();
+				client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				handlers.execute(new RequestHandler(client.socket(), matcher, upstreams, tunnels));
+			} catch (final AsynchronousCloseException e) {
+				break;
+			} catch (final IOException e) {
+				LOGGER.warn("accepting", e);
+			}
+		}
+		handlers.shutdown();
+		tunnels.shutdown();
+		upstreams.close();
+		closeQuietly();
+		LOGGER.info("proxy stopped");
+	}
+
+	// a task failing closes its exchange only
+	private void execute(final Exchange exchange, final Runnable task) {
+		tasks.add(() -> {
+			try {
+				task.run();
+			} catch (final RuntimeException e) {
+				LOGGER.error("relaying", e);
+				exchange.close();
+			}
+		});
+		selector.wakeup();
+	}
+
+	private void handle(final SelectionKey key) {
+		if (key.isAcceptable()) {
+			accept();
+			return;
+		}
+		final Exchange exchange = (Exchange) key.attachment();
+		try {
+			exchange.handle(key);
+		} catch (final IOException | CancelledKeyException e) {
+			LOGGER.debug("relaying", e);
+			exchange.close();
+		} catch (final RuntimeException e) {
+			// a bug with this exchange, the others go on
+			LOGGER.error("relaying", e);
+			exchange.close();
+		}
+	}
+
+	private void accept() {
+		try {
+			for(SocketChannel client; (client = serverChannel.accept()) != null; ) {
+				client.configureBlocking(false);
+				client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				new Exchange(this, client);
+			}
+		} catch (final IOException | RuntimeException e) {
+			LOGGER.warn("accepting", e);
+		}
+	}
+
+	private void closeIdle(final long now) {
+		for(final SelectionKey key: new ArrayList<SelectionKey>(selector.keys())) {
+			final Object attachment = key.attachment();
+			if (attachment instanceof Exchange && ((Exchange) attachment).isIdle(now, IDLE_TIMEOUT)) {
+				((Exchange) attachment).close();
+			}
+		}
+	}
+
+	private void close() {
+		for(final SelectionKey key: new ArrayList<SelectionKey>(selector.keys())) {
+			if (key.attachment() instanceof Exchange) {
+				((Exchange) key.attachment()).close();
+			}
+		}
+		resolver.shutdown();
+		try {
+			selector.close();
+		} catch (final IOException e) {
+			LOGGER.warn("closing", e);
+		}
+		closeQuietly();
+		LOGGER.info("proxy stopped");
+	}
+
+	private void closeQuietly() {
+		try {
+			serverChannel.close();
+		} catch (final IOException e) {
+			LOGGER.warn("closing", e);
+		}
+	}
+
+	// a virtual thread per task (Java 21), null if the runtime has none
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			final Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (final ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	private static Thread newDaemon(final Runnable runnable, final String name) {
+		final Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+}
@@ -0,0 +1,20 @@
+package net.anfoya.java.net.filtered.easylist.proxy;
+
+public enum ProxyMode {
+	// non-blocking channels, all served by the thread of the event loop
+	SELECTOR,
+	// a blocking RequestHandler per connection, on a virtual thread if the runtime has them (bounded platform pool otherwise)
+	THREAD;
+
+	/**
+	 * @return THREAD when the runtime has virtual threads, SELECTOR (a connection per request) otherwise
+	 */
+	public static ProxyMode getDefault() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return THREAD;
+		} catch (final NoSuchMethodException e) {
+			return SELECTOR;
+		}
+	}
+}
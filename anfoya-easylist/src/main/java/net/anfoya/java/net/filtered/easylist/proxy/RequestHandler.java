@@ -1,125 +1,327 @@
 package net.anfoya.java.net.filtered.easylist.proxy;
 
-import java.awt.image.BufferedImage;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.URL;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
-import javax.imageio.ImageIO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import net.anfoya.java.net.url.filter.Matcher;
 
+/**
+ * Serves a client connection of the proxy in THREAD mode, a request after the
+ * other as long as the client keeps the connection alive (pipelined ones wait
+ * in the input buffer). Each request is checked (403 when blocked) then sent
+ * to the origin server on a pooled connection and the response is relayed
+ * back as bytes, status, headers and chunks untouched.
+ *
+ * A connection waiting for its next request holds no buffer, and is closed
+ * once idle for the keep-alive timeout.
+ *
+ * A CONNECT request is checked on its host only, then the connection becomes
+ * a tunnel to the origin server (see Tunnel), handed over to the tunnel
+ * executor so it doesn't hold the handler thread for its lifetime.
+ */
 public class RequestHandler implements Runnable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(RequestHandler.class);
+
+	private static final int BUFFER_SIZE = RequestHead.MAX_LENGTH;
+	// relay buffers, shared by the handlers as a thread local would make one per virtual thread
+	private static final BlockingQueue<byte[]> BUFFERS = new ArrayBlockingQueue<byte[]>(64);
+	// body of a blocked request
+	private static final OutputStream DISCARD = new OutputStream() {
+		@Override
+		public void write(final int b) {
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) {
+		}
+	};
 
 	private final Socket clientSocket;
-	private final BufferedReader proxyToClientBr;
-	private final BufferedWriter proxyToClientBw;
 	private final Matcher matcher;
+	private final UpstreamPool upstreams;
+	private final Executor tunnels;
+	// the connection belongs to a tunnel, which closes it
+	private boolean tunnelled;
 
-	public RequestHandler(Socket clientSocket, Matcher matcher) throws IOException {
+	RequestHandler(final Socket clientSocket, final Matcher matcher, final UpstreamPool upstreams, final Executor tunnels) throws IOException {
 		this.clientSocket = clientSocket;
-		this.clientSocket.setSoTimeout(2000);
+		this.clientSocket.setSoTimeout(Proxy.IDLE_TIMEOUT);
 		this.matcher = matcher;
-
-		proxyToClientBr = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-		proxyToClientBw = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()));
+		this.upstreams = upstreams;
+		this.tunnels = tunnels;
 	}
 
 	@Override
 	public void run() {
-		String requestString;
+		HttpInput client = null;
 		try {
-			requestString = proxyToClientBr.readLine();
+			client = new HttpInput(clientSocket.getInputStream(), null);
+			handle(client);
 		} catch (final IOException e) {
-			System.out.println("Error reading request from client");
-			return;
+			LOGGER.debug("relaying for {}", clientSocket, e);
+		} finally {
+			final byte[] buffer = client == null? null: client.release();
+			if (buffer != null) {
+				BUFFERS.offer(buffer);
+			}
+			if (!tunnelled) {
+				try {
+					clientSocket.close();
+				} catch (final IOException e) {
+					LOGGER.debug("closing {}", clientSocket, e);
+				}
+			}
 		}
+	}
 
-		String urlString = requestString.substring(requestString.indexOf(' ') + 1);
-		urlString = urlString.substring(0, urlString.indexOf(' '));
-		if (!urlString.substring(0, 4).equals("http")) {
-			final String temp = "http://";
-			urlString = temp + urlString;
-		}
+	private void handle(final HttpInput client) throws IOException {
+		boolean keepAlive = true;
+		for(int timeout = Proxy.IDLE_TIMEOUT; keepAlive; timeout = Proxy.KEEP_ALIVE_TIMEOUT) {
+			if (!client.hasRemaining() && !await(client, timeout)) {
+				return;
+			}
+			final int length = client.readHead();
+			if (length == -1) {
+				return;
+			}
+			if (length == 0) {
+				respond(431, "Request Header Fields Too Large", true);
+				return;
+			}
+			final RequestHead request = RequestHead.parse(client.getBuffer(), client.getStart(), length - 4);
+			client.skip(length);
+			if (request == null) {
+				respond(400, "Bad Request", true);
+				return;
+			}
+			if (request.isTunnel()) {
+				tunnel(client, request);
+				return;
+			}
+			final String url = request.getUrl();
+			if (url == null) {
+				respond(501, "Not Implemented", true);
+				return;
+			}
+			final int port = request.getPort();
+			final long contentLength = request.getContentLength();
+			final boolean encoded = request.getHeader("Transfer-Encoding") != null;
+			// the end of the body must be known to find the next request
+			if (port < 1 || port > 0xFFFF || contentLength == -2 || encoded && (!request.isChunked() || contentLength != -1)) {
+				respond(400, "Bad Request", true);
+				return;
+			}
 
-		if (matcher.matches(urlString)) {
-			System.out.println("Blocked site requested : " + urlString);
-			blockedSiteRequested();
-			return;
+			keepAlive = request.isPersistent();
+			if (matcher.matches(url)) {
+				LOGGER.info("blocked {}", url);
+				copyBody(client, request, DISCARD);
+				respond(403, "Forbidden", !keepAlive);
+				continue;
+			}
+			LOGGER.debug("relaying {}", request);
+			keepAlive = relay(client, request, keepAlive);
 		}
+	}
 
-		System.out.println("HTTP GET for : " + urlString + "\n");
-		handleHttpRequest(urlString);
+	/**
+	 * waits for the first byte of a request without holding a buffer
+	 * @return false if the client closed the connection or left it idle for timeout (ms)
+	 */
+	private boolean await(final HttpInput client, final int timeout) throws IOException {
+		final byte[] buffer = client.release();
+		if (buffer != null) {
+			BUFFERS.offer(buffer);
+		}
+		clientSocket.setSoTimeout(timeout);
+		try {
+			if (!client.await(RequestHandler::takeBuffer)) {
+				return false;
+			}
+		} catch (final SocketTimeoutException e) {
+			LOGGER.debug("idle {}", clientSocket);
+			return false;
+		}
+		clientSocket.setSoTimeout(Proxy.IDLE_TIMEOUT);
+		return true;
 	}
 
-	private void handleHttpRequest(String urlString) {
+	/**
+	 * sends the request to the origin server and relays its response
+	 * @return true if the client connection can take another request
+	 */
+	private boolean relay(final HttpInput client, final RequestHead request, final boolean keepAlive) throws IOException {
+		// a request with a body can't be sent again, so it doesn't go on a connection the origin server may have closed
+		UpstreamPool.Connection upstream = acquire(request, !request.hasBody());
+		if (upstream == null) {
+			return false;
+		}
+		final OutputStream toClient = clientSocket.getOutputStream();
+		final byte[] buffer = takeBuffer();
+		boolean reusable = false;
 		try {
-			final int fileExtensionIndex = urlString.lastIndexOf(".");
-			String fileExtension = urlString.substring(fileExtensionIndex, urlString.length());
-			if (fileExtension.contains("/")) {
-				fileExtension = fileExtension.replace("/", "__");
-				fileExtension = fileExtension.replace('.', '_');
-				fileExtension += ".html";
-			}
-
-			if (fileExtension.contains(".png") || fileExtension.contains(".jpg") || fileExtension.contains(".jpeg")
-					|| fileExtension.contains(".gif")) {
-				final URL remoteURL = new URL(urlString);
-				final BufferedImage image = ImageIO.read(remoteURL);
-				if (image != null) {
-					final String line = "HTTP/1.0 200 OK\n" + "Proxy-agent: ProxyServer/1.0\n" + "\r\n";
-					proxyToClientBw.write(line);
-					proxyToClientBw.flush();
-					ImageIO.write(image, fileExtension.substring(1), clientSocket.getOutputStream());
-				} else {
-					final String error = "HTTP/1.0 404 NOT FOUND\n" + "Proxy-agent: ProxyServer/1.0\n" + "\r\n";
-					proxyToClientBw.write(error);
-					proxyToClientBw.flush();
-					return;
+			HttpInput fromUpstream = new HttpInput(upstream.getSocket().getInputStream(), buffer);
+			int length = send(upstream, client, request, fromUpstream);
+			if (length == -1 && upstream.isReused()) {
+				// closed while idle
+				upstreams.release(upstream, false);
+				upstream = acquire(request, false);
+				if (upstream == null) {
+					return false;
 				}
-			} else {
-				final URL remoteURL = new URL(urlString);
-				final HttpURLConnection proxyToServerCon = (HttpURLConnection) remoteURL.openConnection();
-				proxyToServerCon.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-				proxyToServerCon.setRequestProperty("Content-Language", "en-US");
-				proxyToServerCon.setUseCaches(false);
-				proxyToServerCon.setDoOutput(true);
-				try (final BufferedReader proxyToServerBR = new BufferedReader(
-						new InputStreamReader(proxyToServerCon.getInputStream()))) {
-					String line = "HTTP/1.0 200 OK\n" + "Proxy-agent: ProxyServer/1.0\n" + "\r\n";
-					proxyToClientBw.write(line);
-					while ((line = proxyToServerBR.readLine()) != null) {
-						// Send on data to client
-						proxyToClientBw.write(line);
-					}
-					proxyToClientBw.flush();
+				fromUpstream = new HttpInput(upstream.getSocket().getInputStream(), buffer);
+				length = send(upstream, client, request, fromUpstream);
+			}
+
+			ResponseHead response = null;
+			while(length > 0) {
+				response = ResponseHead.parse(buffer, fromUpstream.getStart(), length - 4);
+				if (response == null || !response.isInterim()) {
+					break;
 				}
+				toClient.write(buffer, fromUpstream.getStart(), length);
+				fromUpstream.skip(length);
+				length = fromUpstream.readHead();
 			}
+			if (length <= 0 || response == null) {
+				LOGGER.debug("no response to {}", request);
+				respond(502, "Bad Gateway", true);
+				return false;
+			}
+			fromUpstream.skip(length);
 
-			if (proxyToClientBw != null) {
-				proxyToClientBw.close();
+			// a body up to the end of the stream can't be followed by another response
+			final boolean hasBody = response.hasBody(request.getMethod());
+			final long contentLength = response.getContentLength();
+			final boolean framed = !hasBody || response.isChunked() || contentLength >= 0;
+			final boolean close = !keepAlive || !framed;
+			toClient.write(response.toClient(close));
+			if (hasBody && response.isChunked()) {
+				fromUpstream.copyChunked(toClient);
+			} else if (hasBody && contentLength >= 0) {
+				fromUpstream.copy(toClient, contentLength);
+			} else if (hasBody) {
+				fromUpstream.copyAll(toClient);
+			}
+			reusable = framed && response.isPersistent() && !fromUpstream.hasRemaining();
+			return !close;
+		} finally {
+			if (upstream != null) {
+				upstreams.release(upstream, reusable);
 			}
+			BUFFERS.offer(buffer);
+		}
+	}
+
+	/**
+	 * opens a tunnel to the origin server unless its host is blocked, the path of what goes through isn't known
+	 */
+	private void tunnel(final HttpInput client, final RequestHead request) throws IOException {
+		final String host = request.getHost();
+		final int port = request.getPort();
+		if (port < 1 || port > 0xFFFF) {
+			respond(400, "Bad Request", true);
+			return;
+		}
+		if (matcher.matchesHost(host)) {
+			LOGGER.info("blocked tunnel to {}", host);
+			respond(403, "Forbidden", true);
+			return;
+		}
+		final Socket upstream = new Socket();
+		try {
+			upstream.connect(new InetSocketAddress(host, port), UpstreamPool.CONNECT_TIMEOUT);
+			upstream.setSoTimeout(Proxy.IDLE_TIMEOUT);
+			upstream.setTcpNoDelay(true);
+		} catch (final IOException e) {
+			LOGGER.debug("connecting to {}", host, e);
+			upstream.close();
+			respond(502, "Bad Gateway", true);
+			return;
+		}
+		LOGGER.debug("tunnel to {}", request.getTarget());
+		clientSocket.getOutputStream().write(RequestHead.toEstablished());
+		// sent by the client before the answer
+		client.drain(upstream.getOutputStream());
+		final Tunnel tunnel = new Tunnel(clientSocket, upstream);
+		final byte[] clientBuffer = client.release();
+		try {
+			tunnels.execute(() -> splice(tunnel, clientBuffer));
+		} catch (final RejectedExecutionException e) {
+			upstream.close();
+			BUFFERS.offer(clientBuffer);
+			throw new IOException("proxy stopped", e);
 		}
+		tunnelled = true;
+	}
 
-		catch (final Exception e) {
-			e.printStackTrace();
+	// on a thread of the tunnel executor, the buffers are given back once both pumps ended
+	private void splice(final Tunnel tunnel, final byte[] clientBuffer) {
+		final byte[] buffer = takeBuffer();
+		try {
+			tunnel.splice(tunnels, clientBuffer, buffer);
+		} catch (final IOException e) {
+			LOGGER.debug("tunnel for {}", clientSocket, e);
+		} finally {
+			BUFFERS.offer(clientBuffer);
+			BUFFERS.offer(buffer);
 		}
 	}
 
-	private void blockedSiteRequested() {
+	/**
+	 * @return a connection to the origin server of the request, null if it can't be reached (answered 502)
+	 */
+	private UpstreamPool.Connection acquire(final RequestHead request, final boolean reuse) throws IOException {
 		try {
-			final BufferedWriter bufferedWriter = new BufferedWriter(
-					new OutputStreamWriter(clientSocket.getOutputStream()));
-			final String line = "HTTP/1.0 403 Access Forbidden \n" + "User-Agent: ProxyServer/1.0\n" + "\r\n";
-			bufferedWriter.write(line);
-			bufferedWriter.flush();
+			return upstreams.acquire(request.getHost(), request.getPort(), reuse);
 		} catch (final IOException e) {
-			e.printStackTrace();
+			LOGGER.debug("connecting to {}", request.getHost(), e);
+			respond(502, "Bad Gateway", true);
+			return null;
+		}
+	}
+
+	/**
+	 * sends the request with its body
+	 * @return length of the response head, -1 if the origin server closed the connection first
+	 */
+	private int send(final UpstreamPool.Connection upstream, final HttpInput client, final RequestHead request, final HttpInput fromUpstream) throws IOException {
+		try {
+			final OutputStream toUpstream = upstream.getSocket().getOutputStream();
+			toUpstream.write(request.toOrigin(false));
+			copyBody(client, request, toUpstream);
+			return fromUpstream.readHead();
+		} catch (final SocketException e) {
+			LOGGER.debug("sending {}", request, e);
+			return -1;
 		}
 	}
+
+	private void respond(final int status, final String reason, final boolean close) throws IOException {
+		clientSocket.getOutputStream().write(RequestHead.toResponse(status, reason, close));
+	}
+
+	private static void copyBody(final HttpInput in, final RequestHead request, final OutputStream out) throws IOException {
+		if (request.isChunked()) {
+			in.copyChunked(out);
+		} else if (request.getContentLength() > 0) {
+			in.copy(out, request.getContentLength());
+		}
+	}
+
+	private static byte[] takeBuffer() {
+		final byte[] buffer = BUFFERS.poll();
+		return buffer == null? new byte[BUFFER_SIZE]: buffer;
+	}
 }
@@ -0,0 +1,163 @@
+package net.anfoya.java.net.filtered.easylist.proxy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Request line and headers of a request to the proxy, as sent by a browser:
+ * "GET http://host/path HTTP/1.1" followed by the headers up to an empty line.
+ */
+final class RequestHead extends MessageHead {
+	private static final String HTTP = "http://";
+	private static final int HTTP_PORT = 80;
+
+	/**
+	 * @return a local answer to the request, with no body and the connection closed after it or not
+	 */
+	static byte[] toResponse(final int status, final String reason, final boolean close) {
+		final String response = "HTTP/1.1 " + status + " " + reason + CRLF
+				+ "Content-Length: 0" + CRLF
+				+ (close? "Connection: close" + CRLF: "")
+				+ CRLF;
+		return response.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @return answer to a CONNECT request, once the tunnel is open
+	 */
+	static byte[] toEstablished() {
+		return ("HTTP/1.1 200 Connection Established" + CRLF + CRLF).getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @return the head or null if it's malformed
+	 */
+	static RequestHead parse(final byte[] bytes, final int offset, final int length) {
+		final String[] lines = new String(bytes, offset, length, StandardCharsets.ISO_8859_1).split(CRLF);
+		final String[] request = lines[0].split(" ");
+		if (request.length != 3 || !request[2].startsWith("HTTP/")) {
+			return null;
+		}
+		final List<String> headers = parseHeaders(lines);
+		return headers == null? null: new RequestHead(request[0], request[1], request[2], headers);
+	}
+
+	private final String method;
+	private final String target;
+
+	private RequestHead(final String method, final String target, final String version, final List<String> headers) {
+		super(version, headers);
+		this.method = method;
+		this.target = target;
+	}
+
+	String getMethod() {
+		return method;
+	}
+
+	String getTarget() {
+		return target;
+	}
+
+	/**
+	 * @return true for a CONNECT request, its target is host:port and only the host is known of what goes through
+	 */
+	boolean isTunnel() {
+		return method.equals("CONNECT");
+	}
+
+	/**
+	 * @return absolute URL of the request, null for another scheme than http
+	 */
+	String getUrl() {
+		if (target.startsWith("/")) {
+			final String host = getHeader("Host");
+			return host == null? null: HTTP + host + target;
+		}
+		if (target.regionMatches(true, 0, HTTP, 0, HTTP.length())) {
+			return target;
+		}
+		return target.contains("://")? null: HTTP + target;
+	}
+
+	/**
+	 * @return host of the URL, null if the request has no URL
+	 */
+	String getHost() {
+		final String authority = getAuthority();
+		if (authority == null) {
+			return null;
+		}
+		final int colon = authority.lastIndexOf(':');
+		return colon == -1 || authority.endsWith("]")? authority: authority.substring(0, colon);
+	}
+
+	/**
+	 * @return port of the URL, -1 if it's not a number
+	 */
+	int getPort() {
+		final String authority = getAuthority();
+		final int colon = authority == null? -1: authority.lastIndexOf(':');
+		if (colon == -1 || authority.endsWith("]")) {
+			return HTTP_PORT;
+		}
+		try {
+			return Integer.parseInt(authority.substring(colon + 1));
+		} catch (final NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return true if a body follows the head
+	 */
+	boolean hasBody() {
+		return isChunked() || getContentLength() > 0;
+	}
+
+	/**
+	 * @return the head to send to the origin server: path only in the request line, no proxy headers and the connection closed after the response or not
+	 */
+	byte[] toOrigin(final boolean close) {
+		final StringBuilder head = new StringBuilder();
+		head.append(method).append(' ').append(getPath()).append(' ').append(getVersion()).append(CRLF);
+		if (!appendHeaders(head, "Host")) {
+			head.append("Host: ").append(getAuthority()).append(CRLF);
+		}
+		if (close) {
+			head.append("Connection: close").append(CRLF);
+		}
+		head.append(CRLF);
+		return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	@Override
+	public String toString() {
+		return method + " " + target + " " + getVersion();
+	}
+
+	private String getAuthority() {
+		final String url = getUrl();
+		if (url == null) {
+			return null;
+		}
+		final int start = HTTP.length();
+		int end = start;
+		while(end < url.length() && "/?#".indexOf(url.charAt(end)) == -1) {
+			end++;
+		}
+		final String authority = url.substring(start, end);
+		final int at = authority.lastIndexOf('@');
+		return at == -1? authority: authority.substring(at + 1);
+	}
+
+	private String getPath() {
+		final String url = getUrl();
+		final int start = url.indexOf('/', HTTP.length());
+		final int query = url.indexOf('?', HTTP.length());
+		if (start == -1 || query != -1 && query < start) {
+			return query == -1? "/": "/" + url.substring(query);
+		}
+		return url.substring(start);
+	}
+}
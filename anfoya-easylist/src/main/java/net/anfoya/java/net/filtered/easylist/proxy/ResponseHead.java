@@ -0,0 +1,73 @@
+package net.anfoya.java.net.filtered.easylist.proxy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Status line and headers of a response from an origin server.
+ */
+final class ResponseHead extends MessageHead {
+
+	/**
+	 * @return the head or null if it's malformed
+	 */
+	static ResponseHead parse(final byte[] bytes, final int offset, final int length) {
+		final String[] lines = new String(bytes, offset, length, StandardCharsets.ISO_8859_1).split(CRLF);
+		final String[] status = lines[0].split(" ", 3);
+		if (status.length < 2 || !status[0].startsWith("HTTP/") || status[1].length() != 3) {
+			return null;
+		}
+		final List<String> headers = parseHeaders(lines);
+		try {
+			return headers == null? null: new ResponseHead(status[0], Integer.parseInt(status[1]), status.length == 3? status[2]: "", headers);
+		} catch (final NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private final int status;
+	private final String reason;
+
+	private ResponseHead(final String version, final int status, final String reason, final List<String> headers) {
+		super(version, headers);
+		this.status = status;
+		this.reason = reason;
+	}
+
+	int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return true for an interim response (1xx), the final one follows
+	 */
+	boolean isInterim() {
+		return status >= 100 && status < 200;
+	}
+
+	/**
+	 * @return true if a body follows the head, in answer to a request of that method
+	 */
+	boolean hasBody(final String method) {
+		return !method.equals("HEAD") && !isInterim() && status != 204 && status != 304;
+	}
+
+	/**
+	 * @return the head to send to the client: no proxy headers and the connection closed after the response or not
+	 */
+	byte[] toClient(final boolean close) {
+		final StringBuilder head = new StringBuilder();
+		head.append(getVersion()).append(' ').append(status).append(' ').append(reason).append(CRLF);
+		appendHeaders(head, "");
+		if (close) {
+			head.append("Connection: close").append(CRLF);
+		}
+		head.append(CRLF);
+		return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	@Override
+	public String toString() {
+		return getVersion() + " " + status + " " + reason;
+	}
+}
@@ -0,0 +1,116 @@
+package net.anfoya.java.net.filtered.easylist.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bytes of a CONNECT tunnel spliced between the client and the origin server
+ * by two one way pumps: from the origin server on a thread of its own, from
+ * the client on the thread calling splice(). A pump ends at the end of its
+ * stream and half closes the other side, the tunnel is closed once both have
+ * ended.
+ *
+ * A side may stay quiet for longer than the idle timeout while the other one
+ * is busy (a download), the tunnel is idle when both are.
+ */
+final class Tunnel {
+	private static final Logger LOGGER = LoggerFactory.getLogger(Tunnel.class);
+
+	private final Socket client;
+	private final Socket upstream;
+	private volatile long lastActivity;
+
+	Tunnel(final Socket client, final Socket upstream) {
+		this.client = client;
+		this.upstream = upstream;
+		lastActivity = System.currentTimeMillis();
+	}
+
+	/**
+	 * splices the tunnel until it's closed, the pump from the origin server running on executor,
+	 * neither buffer is used anymore once it returns
+	 */
+	void splice(final Executor executor, final byte[] clientBuffer, final byte[] upstreamBuffer) throws IOException {
+		final FutureTask<Void> toClient = new FutureTask<Void>(() -> {
+			pump(upstream, client, upstreamBuffer);
+			return null;
+		});
+		try {
+			executor.execute(toClient);
+		} catch (final RejectedExecutionException e) {
+			closeQuietly(upstream);
+			closeQuietly(client);
+			throw new IOException("no thread for the tunnel", e);
+		}
+		try {
+			pump(client, upstream, clientBuffer);
+			await(toClient);
+		} finally {
+			// ends the other pump when this one failed
+			closeQuietly(upstream);
+			closeQuietly(client);
+			await(toClient);
+		}
+	}
+
+	// waits for the pump to end even when interrupted, it may still use its buffer
+	private void await(final FutureTask<Void> pump) {
+		boolean interrupted = false;
+		while(true) {
+			try {
+				pump.get();
+				break;
+			} catch (final ExecutionException e) {
+				LOGGER.debug("tunnel to {}", upstream, e.getCause());
+				break;
+			} catch (final InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void pump(final Socket from, final Socket to, final byte[] buffer) throws IOException {
+		final InputStream in = from.getInputStream();
+		final OutputStream out = to.getOutputStream();
+		while(true) {
+			final int n;
+			try {
+				n = in.read(buffer);
+			} catch (final SocketTimeoutException e) {
+				if (System.currentTimeMillis() - lastActivity < Proxy.IDLE_TIMEOUT) {
+					continue;
+				}
+				throw e;
+			}
+			if (n == -1) {
+				break;
+			}
+			out.write(buffer, 0, n);
+			lastActivity = System.currentTimeMillis();
+		}
+		if (!to.isClosed()) {
+			to.shutdownOutput();
+		}
+	}
+
+	private static void closeQuietly(final Socket socket) {
+		try {
+			socket.close();
+		} catch (final IOException e) {
+			LOGGER.debug("closing {}", socket, e);
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package net.anfoya.java.net.filtered.easylist.proxy;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connections to the origin servers, kept open between requests. At most
+ * maxPerHost connections (in use or idle) go to the same origin, a request
+ * waits for one to be released beyond that. Idle connections are closed
+ * after IDLE_TIMEOUT, before the origin servers drop them.
+ *
+ * A lock and not synchronized, which would pin virtual threads while they wait.
+ */
+final class UpstreamPool {
+	private static final Logger LOGGER = LoggerFactory.getLogger(UpstreamPool.class);
+
+	static final int CONNECT_TIMEOUT = 10 * 1000;
+	private static final long IDLE_TIMEOUT = 30 * 1000;
+	private static final long SWEEP_PERIOD = 1000;
+
+	/**
+	 * a connection to an origin server
+	 */
+	static final class Connection {
+		private final String origin;
+		private final Socket socket;
+		private final boolean reused;
+
+		private Connection(final String origin, final Socket socket, final boolean reused) {
+			this.origin = origin;
+			this.socket = socket;
+			this.reused = reused;
+		}
+
+		Socket getSocket() {
+			return socket;
+		}
+
+		/**
+		 * @return true if the connection served a request before, the origin server may have closed it since
+		 */
+		boolean isReused() {
+			return reused;
+		}
+	}
+
+	// connections of an origin, idle ones most recently used first
+	private static final class Origin {
+		private final Deque<Socket> idle = new ArrayDeque<Socket>();
+		private final Deque<Long> idleSince = new ArrayDeque<Long>();
+		private int active;
+
+		private int size() {
+			return active + idle.size();
+		}
+	}
+
+	private final int maxPerHost;
+	private final Map<String, Origin> origins;
+	private final ReentrantLock lock;
+	private final Condition released;
+	private long lastSweep;
+
+	UpstreamPool(final int maxPerHost) {
+		this.maxPerHost = maxPerHost;
+		origins = new HashMap<String, Origin>();
+		lock = new ReentrantLock();
+		released = lock.newCondition();
+		lastSweep = System.currentTimeMillis();
+	}
+
+	/**
+	 * @param reuse false to get a new connection, as for a request which can't be sent again if the origin server closed an idle one
+	 * @return an idle connection to host:port or a new one
+	 */
+	Connection acquire(final String host, final int port, final boolean reuse) throws IOException {
+		final String key = host + ":" + port;
+		lock.lock();
+		try {
+			sweep(System.currentTimeMillis());
+			long nanos = TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT);
+			while(true) {
+				// looked up again after a wait, it may have been swept
+				Origin origin = origins.get(key);
+				if (origin == null) {
+					origin = new Origin();
+					origins.put(key, origin);
+				}
+				if (reuse && !origin.idle.isEmpty()) {
+					origin.idleSince.removeFirst();
+					origin.active++;
+					return new Connection(key, origin.idle.removeFirst(), true);
+				}
+				if (origin.size() < maxPerHost) {
+					origin.active++;
+					break;
+				}
+				if (!origin.idle.isEmpty()) {
+					// room for a new one
+					origin.idleSince.removeLast();
+					closeQuietly(origin.idle.removeLast());
+					continue;
+				}
+				if (nanos <= 0) {
+					throw new IOException("no connection available to " + key);
+				}
+				nanos = released.awaitNanos(nanos);
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("waiting for a connection to " + key);
+		} finally {
+			lock.unlock();
+		}
+
+		final Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+			socket.setSoTimeout(Proxy.IDLE_TIMEOUT);
+			socket.setTcpNoDelay(true);
+		} catch (final IOException e) {
+			release(new Connection(key, socket, false), false);
+			throw e;
+		}
+		return new Connection(key, socket, false);
+	}
+
+	/**
+	 * gives back a connection, closed unless it's ready for another request
+	 */
+	void release(final Connection connection, final boolean reusable) {
+		if (!reusable) {
+			closeQuietly(connection.socket);
+		}
+		lock.lock();
+		try {
+			// not swept while a connection is active
+			final Origin origin = origins.get(connection.origin);
+			origin.active--;
+			if (reusable) {
+				origin.idle.addFirst(connection.socket);
+				origin.idleSince.addFirst(System.currentTimeMillis());
+			}
+			sweep(System.currentTimeMillis());
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * closes the idle connections
+	 */
+	void close() {
+		lock.lock();
+		try {
+			for(final Origin origin: origins.values()) {
+				for(final Socket socket: origin.idle) {
+					closeQuietly(socket);
+				}
+				origin.idle.clear();
+				origin.idleSince.clear();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// closes connections idle for too long, and forgets the origins left without connection
+	private void sweep(final long now) {
+		if (now - lastSweep < SWEEP_PERIOD) {
+			return;
+		}
+		lastSweep = now;
+		for(final Iterator<Origin> i = origins.values().iterator(); i.hasNext(); ) {
+			final Origin origin = i.next();
+			while(!origin.idleSince.isEmpty() && now - origin.idleSince.getLast() > IDLE_TIMEOUT) {
+				origin.idleSince.removeLast();
+				closeQuietly(origin.idle.removeLast());
+			}
+			if (origin.size() == 0) {
+				i.remove();
+			}
+		}
+	}
+
+	private static void closeQuietly(final Socket socket) {
+		try {
+			socket.close();
+		} catch (final IOException e) {
+			LOGGER.debug("closing {}", socket, e);
+		}
+	}
+}
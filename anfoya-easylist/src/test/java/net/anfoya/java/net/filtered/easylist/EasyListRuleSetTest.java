@@ -1,12 +1,417 @@
 package net.anfoya.java.net.filtered.easylist;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
 import junit.framework.Assert;
 
 import org.junit.Ignore;
 import org.junit.Test;
 
+import net.anfoya.java.cache.LocalCache;
+import net.anfoya.java.net.filtered.easylist.index.IndexType;
+import net.anfoya.java.net.filtered.easylist.index.RuleFile;
+import net.anfoya.java.net.filtered.easylist.index.RuleIndex;
+import net.anfoya.java.net.filtered.easylist.loader.ListUpdate;
+import net.anfoya.java.net.filtered.easylist.model.Engine;
+import net.anfoya.java.net.filtered.easylist.model.Rule;
+import net.anfoya.java.net.filtered.easylist.model.VersionedVerdict;
+import net.anfoya.java.net.filtered.easylist.parser.Parser;
+import net.anfoya.java.net.filtered.easylist.parser.ParserException;
+import net.anfoya.java.net.url.filter.ContentType;
+import net.anfoya.java.net.url.filter.Verdict;
+
 public class EasyListRuleSetTest {
 
+	@Test
+	public void snapshot() throws ParserException {
+		final Parser parser = new Parser();
+		final List<Rule> rules = new ArrayList<Rule>();
+		for(final String line: new String[] { "||ads.example.com^", "/banner/*/img^", "@@||example.com/ads/allowed" }) {
+			rules.add(parser.parse(line));
+		}
+
+		final EasyListRuleSet ruleSet = new EasyListRuleSet(false);
+		final RuleSnapshot empty = ruleSet.getSnapshot();
+		ruleSet.replaceAll(rules);
+		final RuleSnapshot snapshot = ruleSet.getSnapshot();
+		Assert.assertEquals(0, empty.getRuleCount());
+		Assert.assertEquals(3, snapshot.getRuleCount());
+		Assert.assertNull(empty.getExclusionIndex().find("http://ads.example.com/a.js"));
+		Assert.assertNotNull(snapshot.getExclusionIndex().find("http://ads.example.com/a.js"));
+		Assert.assertNotNull(snapshot.getExceptionIndex().find("http://example.com/ads/allowed"));
+
+		// same rules, same version whatever the order
+		Collections.reverse(rules);
+		Assert.assertEquals(snapshot.getVersion(), new RuleSnapshot.Builder(Engine.REGEX).addAll(rules).build().getVersion());
+		Assert.assertFalse(snapshot.getVersion() == empty.getVersion());
+		ruleSet.close();
+	}
+
+	@Test
+	public void migrate() throws IOException {
+		final File dir = Files.createTempDirectory("easylist_migrate").toFile();
+		final RuleFile file = new RuleFile(new File(dir, "exclusions").getPath());
+		final File serialized = new File(file.getPath() + ".ser");
+		// saved by the first version: an exclusion, a rule on a path, an exception and an empty rule (element hiding)
+		try (InputStream in = EasyListRuleSetTest.class.getResourceAsStream("/legacy_rules.ser")) {
+			Files.copy(in, serialized.toPath());
+		}
+		Assert.assertTrue(EasyListRuleSet.migrate(file, IndexType.TOKEN, Engine.REGEX));
+		Assert.assertFalse(serialized.exists());
+		final List<String> lines = new ArrayList<String>();
+		for(final Rule rule: file.load(IndexType.TOKEN, Engine.REGEX).getRules()) {
+			lines.add(rule.getLine());
+		}
+		Assert.assertEquals(Arrays.asList("||ads.example.com^", "/banner/*/img^", "@@||example.com/ads/allowed"), lines);
+		Assert.assertFalse(EasyListRuleSet.migrate(file, IndexType.TOKEN, Engine.REGEX));
+
+		// kept when it can't be read
+		file.delete();
+		Files.write(serialized.toPath(), new byte[] { 1, 2, 3 });
+		Assert.assertFalse(EasyListRuleSet.migrate(file, IndexType.TOKEN, Engine.REGEX));
+		Assert.assertTrue(serialized.exists());
+		Assert.assertFalse(file.exists());
+	}
+
+	@Test
+	public void applyLists() throws ParserException {
+		final Parser parser = new Parser();
+		final RuleSnapshot.Builder builder = new RuleSnapshot.Builder(Engine.REGEX);
+		for(final String line: new String[] { "||a.com^", "||shared.com^", "||b.com^", "||gone.com^", "||h1.com^", "||h2.com^" }) {
+			builder.add(parser.parse(line));
+		}
+		// list A drops a line list B still has, list B reloaded complete without one of its lines
+		final ListUpdate a = new ListUpdate(true, false, Collections.<Rule>emptyList(), Arrays.asList("||shared.com^")
+				, Arrays.asList("! list A", "||a.com^"), null, null, 0, 0);
+		final ListUpdate b = new ListUpdate(true, true, Arrays.asList(parser.parse("||shared.com^"), parser.parse("||new.com^"))
+				, Collections.<String>emptyList(), Arrays.asList("||shared.com^", "||new.com^"), null, null, 0, 0);
+		final List<String> hosts = Arrays.asList("||h1.com^", "||h3.com^");
+
+		// nothing removed while a list is unknown
+		final RuleSnapshot.Builder unknown = new RuleSnapshot.Builder(builder.build());
+		Assert.assertTrue(EasyListRuleSet.apply(unknown, Arrays.asList(a, b, ListUpdate.getNotModified(null, 0)), Arrays.asList(hosts)));
+		Assert.assertEquals(8, unknown.getRuleCount());
+
+		Assert.assertTrue(EasyListRuleSet.apply(builder, Arrays.asList(a, b), Arrays.asList(hosts)));
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("||a.com^", "||shared.com^", "||new.com^", "||h1.com^", "||h3.com^"))
+				, builder.getLines());
+
+		// stored lists not modified
+		Assert.assertFalse(EasyListRuleSet.apply(builder
+				, Arrays.asList(ListUpdate.getNotModified(a.getLines(), 0), ListUpdate.getNotModified(b.getLines(), 0))
+				, Arrays.asList(hosts)));
+	}
+
+	@Test
+	public void revalidate() throws ParserException {
+		final Parser parser = new Parser();
+		final Rule ads = parser.parse("/ads/"), banner = parser.parse("/banner/"), tracker = parser.parse("/tracker/");
+		final Rule okAds = parser.parse("@@/ads/ok/"), okBanner = parser.parse("@@/banner/ok/"), okTracker = parser.parse("@@/tracker/ok/");
+		final RuleSnapshot previous = new RuleSnapshot.Builder(Engine.REGEX).add(ads).add(tracker).add(okAds).add(okTracker).build();
+		final RuleSnapshot next = new RuleSnapshot.Builder(Engine.REGEX).add(banner).add(parser.parse("/tracker/")).add(okBanner).build();
+
+		final LocalCache<String, VersionedVerdict> cache = new LocalCache<String, VersionedVerdict>("easylist_test", 100);
+		cache.put("http://x.com/ads/1", new VersionedVerdict(Verdict.BLOCKED, previous.getVersion()));
+		cache.put("http://x.com/ads/tracker/1", new VersionedVerdict(Verdict.BLOCKED, previous.getVersion()));
+		cache.put("http://x.com/tracker/ok/1", new VersionedVerdict(Verdict.ALLOWED, previous.getVersion()));
+		cache.put("http://x.com/tracker/banner/ok/1", new VersionedVerdict(Verdict.BLOCKED, previous.getVersion()));
+		cache.put("http://x.com/banner/1", new VersionedVerdict(Verdict.NONE, previous.getVersion()));
+		cache.put("http://x.com/banner/ok/1", new VersionedVerdict(Verdict.NONE, previous.getVersion()));
+		cache.put("http://x.com/other", new VersionedVerdict(Verdict.NONE, previous.getVersion()));
+		cache.put("http://x.com/banner/2", new VersionedVerdict(Verdict.NONE, 42));
+
+		Assert.assertEquals(8, EasyListRuleSet.revalidate(cache, previous, next));
+		Assert.assertEquals(Verdict.NONE, cache.peek("http://x.com/ads/1").getVerdict());
+		Assert.assertEquals(Verdict.BLOCKED, cache.peek("http://x.com/ads/tracker/1").getVerdict());
+		Assert.assertEquals(Verdict.BLOCKED, cache.peek("http://x.com/tracker/ok/1").getVerdict());
+		Assert.assertEquals(Verdict.ALLOWED, cache.peek("http://x.com/tracker/banner/ok/1").getVerdict());
+		Assert.assertEquals(Verdict.BLOCKED, cache.peek("http://x.com/banner/1").getVerdict());
+		Assert.assertEquals(Verdict.ALLOWED, cache.peek("http://x.com/banner/ok/1").getVerdict());
+		Assert.assertEquals(Verdict.NONE, cache.peek("http://x.com/other").getVerdict());
+		Assert.assertEquals(Verdict.BLOCKED, cache.peek("http://x.com/banner/2").getVerdict());
+		for(final String url: cache.keySet()) {
+			Assert.assertEquals(next.getVersion(), cache.peek(url).getVersion());
+			Assert.assertEquals(url, EasyListRuleSet.classify(url, next), cache.peek(url).getVerdict());
+		}
+	}
+
+	@Test
+	public void classify() throws ParserException {
+		final Parser parser = new Parser();
+		final EasyListRuleSet ruleSet = new EasyListRuleSet(true);
+		ruleSet.replaceAll(Arrays.asList(parser.parse("/ads/"), parser.parse("@@/ads/ok/"), parser.parse("@@/content/")));
+		Assert.assertEquals(Verdict.BLOCKED, ruleSet.classify("http://classify.com/ads/1"));
+		Assert.assertEquals(Verdict.ALLOWED, ruleSet.classify("http://classify.com/ads/ok/1"));
+		Assert.assertEquals(Verdict.NONE, ruleSet.classify("http://classify.com/content/1"));
+		Assert.assertTrue(ruleSet.matchesException("http://classify.com/content/1"));
+
+		// cached verdict, read without exceptions
+		ruleSet.setWithException(false);
+		Assert.assertEquals(Verdict.BLOCKED, ruleSet.classify("http://classify.com/ads/ok/1"));
+		ruleSet.close();
+	}
+
+	@Test
+	public void classifyContext() throws ParserException {
+		final Parser parser = new Parser();
+		final EasyListRuleSet ruleSet = new EasyListRuleSet(true);
+		ruleSet.replaceAll(Arrays.asList(parser.parse("||cdn.context.com^$third-party"), parser.parse("@@||cdn.context.com/lib/$script")));
+		final String url = "http://cdn.context.com/lib/a.js";
+		Assert.assertEquals(Verdict.BLOCKED, ruleSet.classify(url));
+		Assert.assertEquals(Verdict.NONE, ruleSet.classify(url, "www.context.com", ContentType.SCRIPT));
+		Assert.assertEquals(Verdict.ALLOWED, ruleSet.classify(url, "www.other.com", ContentType.SCRIPT));
+		Assert.assertEquals(Verdict.BLOCKED, ruleSet.classify(url, "www.other.com", ContentType.IMAGE));
+		Assert.assertEquals(Verdict.BLOCKED, ruleSet.classify(url, "www.other.com", null));
+		ruleSet.close();
+	}
+
+	@Test
+	public void classifyHost() throws ParserException {
+		final Parser parser = new Parser();
+		final EasyListRuleSet ruleSet = new EasyListRuleSet(true);
+		ruleSet.replaceAll(Arrays.asList(parser.parse("||ads.host.com^"), parser.parse("||host.com/ads/"), parser.parse("/tracker/")
+				, parser.parse("@@||ok.ads.host.com^")));
+		Assert.assertEquals(Verdict.BLOCKED, ruleSet.classifyHost("ads.host.com"));
+		Assert.assertEquals(Verdict.BLOCKED, ruleSet.classifyHost("CDN.ads.host.com."));
+		Assert.assertEquals(Verdict.ALLOWED, ruleSet.classifyHost("ok.ads.host.com"));
+		// rules on a path don't block the whole host
+		Assert.assertEquals(Verdict.NONE, ruleSet.classifyHost("host.com"));
+		Assert.assertEquals(Verdict.NONE, ruleSet.classifyHost("tracker.com"));
+
+		ruleSet.setWithException(false);
+		Assert.assertEquals(Verdict.BLOCKED, ruleSet.classifyHost("ok.ads.host.com"));
+		ruleSet.setWithException(true);
+
+		// only rules applying to any request of the host decide on it
+		ruleSet.replaceAll(Arrays.asList(parser.parse("||cdn.com^$script,domain=foo.com"), parser.parse("||image.com^$image")
+				, parser.parse("||party.com^$third-party"), parser.parse("||page.com/|"), parser.parse("||path.com^ads")
+				, parser.parse("||any.com/*"), parser.parse("||sep.com^*"), parser.parse("||slash.com/")
+				, parser.parse("@@||ok.any.com^$domain=foo.com")));
+		for(final String host: new String[] { "cdn.com", "image.com", "party.com", "page.com", "path.com" }) {
+			Assert.assertEquals(host, Verdict.NONE, ruleSet.classifyHost(host));
+		}
+		for(final String host: new String[] { "any.com", "sep.com", "www.slash.com" }) {
+			Assert.assertEquals(host, Verdict.BLOCKED, ruleSet.classifyHost(host));
+		}
+		// the host could be allowed on some page
+		Assert.assertEquals(Verdict.ALLOWED, ruleSet.classifyHost("ok.any.com"));
+		ruleSet.close();
+	}
+
+	@Test
+	public void classifyAll() throws ParserException {
+		final Parser parser = new Parser();
+		final EasyListRuleSet ruleSet = new EasyListRuleSet(true);
+		ruleSet.replaceAll(Arrays.asList(parser.parse("/ads/"), parser.parse("@@/ads/ok/")));
+		final List<String> urls = new ArrayList<String>();
+		for(int i=0; i<100; i++) {
+			urls.add("http://batch.com/" + (i % 3 == 0? "ads/": "") + (i % 6 == 0? "ok/": "") + i % 50);
+		}
+
+		BitSet blocked = ruleSet.classifyAll(urls);
+		for(int i=0; i<urls.size(); i++) {
+			Assert.assertEquals(urls.get(i), ruleSet.classify(urls.get(i)).isBlocked(), blocked.get(i));
+		}
+		Assert.assertEquals(17, blocked.cardinality());
+
+		ruleSet.setWithException(false);
+		blocked = ruleSet.classifyAll(urls);
+		Assert.assertEquals(34, blocked.cardinality());
+		ruleSet.close();
+	}
+
+	@Test
+	public void profile() throws IOException, ParserException {
+		final Parser parser = new Parser();
+		final EasyListRuleSet ruleSet = new EasyListRuleSet(true);
+		ruleSet.replaceAll(Arrays.asList(parser.parse("/adprofile/"), parser.parse("/banner/*/profile.gif"), parser.parse("/never/profiled/")));
+		final RuleIndex index = ruleSet.getSnapshot().getExclusionIndex();
+		index.find("http://profile.com/adprofile/0");
+
+		ruleSet.setProfiling(true);
+		try {
+			for(int i=0; i<10; i++) {
+				Assert.assertNotNull(index.find("http://profile.com/adprofile/" + i));
+				Assert.assertNotNull(index.find("http://profile.com/banner/" + i + "/profile.gif"));
+				Assert.assertNull(index.find("http://profile.com/profile.gif/banner/" + i));
+			}
+		} finally {
+			ruleSet.setProfiling(false);
+		}
+
+		final List<Rule> hit = ruleSet.getMostHitRules(5);
+		Assert.assertEquals(2, hit.size());
+		Assert.assertEquals(10, hit.get(0).getStats().getHits());
+		Assert.assertEquals("/banner/*/profile.gif", ruleSet.getMostExpensiveRules(1).get(0).getLine());
+		Assert.assertEquals(20, ruleSet.getMostExpensiveRules(1).get(0).getStats().getChecks());
+
+		final File file = File.createTempFile("easylist_profile", ".txt");
+		try {
+			ruleSet.saveProfile(file);
+			final List<String> lines = Files.readAllLines(file.toPath());
+			Assert.assertEquals(4, lines.size());
+			Assert.assertTrue(lines.get(1), lines.get(1).startsWith("20\t10\t"));
+			Assert.assertEquals("0\t0\t0\texclusion\t/never/profiled/", lines.get(3));
+		} finally {
+			file.delete();
+		}
+		ruleSet.close();
+	}
+
+	@Test
+	public void canonicalize() throws ParserException {
+		Assert.assertEquals("http://www.example.com/A/c?x=/../", UrlCanonicalizer.normalize("HTTP://WWW.Example.com/A/b/../c?x=/../"));
+		Assert.assertEquals("http://example.com/a/", UrlCanonicalizer.normalize("http://example.com/a/./b/.."));
+
+		final Parser parser = new Parser();
+		final List<Rule> exclusions = Arrays.asList(parser.parse("/ads/"), parser.parse("&ord=1"), parser.parse("||track.example.com^"));
+		final UrlCanonicalizer canonicalizer = new UrlCanonicalizer(Collections.<Rule>emptyList(), exclusions, new String[] { "cb", "ord", "ts" });
+		final String key = canonicalizer.getKey("http://x.com/a?cb=123&ord=45&ts=6a&id=7&ts=89");
+		Assert.assertEquals("http://x.com/a?cb= &ord=45&ts=6a&id=7&ts= ", key);
+		Assert.assertEquals(key, canonicalizer.getKey("http://x.com/a?cb=9&ord=45&ts=6a&id=7&ts=1000"));
+		Assert.assertEquals("http://x.com/a?cb=0&ord=45&ts=6a&id=7&ts=0", UrlCanonicalizer.toUrl(key));
+		Assert.assertTrue(canonicalizer.isValid(key));
+		Assert.assertFalse(new UrlCanonicalizer(Collections.<Rule>emptyList(), exclusions, new String[] { "ord" }).isValid(key));
+
+		final String pathKey = canonicalizer.getPathKey("http://track.example.com/p.gif?u=1");
+		Assert.assertEquals(pathKey, canonicalizer.getPathKey("http://track.example.com/p.gif?u=2"));
+		Assert.assertFalse(canonicalizer.isValid(pathKey));
+		Assert.assertNull(new UrlCanonicalizer(Arrays.asList(parser.parse("@@/ok/")), exclusions, new String[0]).getPathKey("http://track.example.com/p.gif?u=1"));
+
+		// a space would pass for a mark
+		Assert.assertNull(canonicalizer.getKey("http://x.com/a?cb= &ord=45"));
+		Assert.assertNull(canonicalizer.getKey("http://x.com/a b?cb=1"));
+		Assert.assertNull(canonicalizer.getPathKey("http://track.example.com/p.gif ?u=1"));
+	}
+
+	@Test
+	public void canonicalizeDifferential() throws IOException, ParserException {
+		final Parser parser = new Parser();
+		final List<Rule> rules = new ArrayList<Rule>();
+		for(final String line: read(null, "/easylist_sample.txt")) {
+			rules.add(parser.parse(line));
+		}
+		// rules which see a volatile value, or anchor on the end of a query
+		for(final String line: new String[] { "&cb=1234", "/adserver.bs?*&ord=", "?_=1|", "/pixel.gif?u=1|" }) {
+			rules.add(parser.parse(line));
+		}
+		final EasyListRuleSet ruleSet = new EasyListRuleSet(true);
+		ruleSet.replaceAll(rules);
+		final RuleSnapshot snapshot = ruleSet.getSnapshot();
+
+		final Random random = new Random(42);
+		final String[] parameters = { "cb", "ord", "_", "ts", "u", "t" };
+		final List<String> urls = new ArrayList<String>(read(null, "/urls.txt"));
+		urls.add("http://track.example.com/pixel.gif?u=1");
+		urls.add("http://track.example.com/pixel.gif?u=12");
+		for(final String url: new ArrayList<String>(urls)) {
+			for(final String parameter: parameters) {
+				for(final String value: new String[] { "1234", "1", String.valueOf(random.nextInt(100000)) }) {
+					urls.add(url + (url.contains("?")? "&": "?") + parameter + "=" + value);
+				}
+			}
+		}
+		// only the values no rule can see are left out
+		final UrlCanonicalizer canonicalizer = snapshot.getCanonicalizer();
+		Assert.assertEquals("http://x.com/?ord= &ts= ", canonicalizer.getKey("http://x.com/?ord=1&ts=2"));
+		Assert.assertEquals("http://x.com/?cb=1&_=2", canonicalizer.getKey("http://x.com/?cb=1&_=2"));
+
+		// each URL and the raw URL a browser would request for it, the oracle never normalizes
+		final Map<String, String> requested = new LinkedHashMap<String, String>();
+		for(final String url: urls) {
+			requested.put(url, url);
+		}
+		for(final String url: read(null, "/urls.txt")) {
+			final int hostStart = url.indexOf("://") + 3;
+			final int hostEnd = url.indexOf('/', hostStart) == -1? url.length(): url.indexOf('/', hostStart);
+			final String origin = url.substring(0, hostEnd);
+			final String path = url.substring(hostEnd);
+			requested.put(origin.toUpperCase() + path, url);
+			requested.put(Character.toUpperCase(origin.charAt(0)) + origin.substring(1, hostStart) + mixCase(origin.substring(hostStart)) + path, url);
+			if (path.startsWith("/")) {
+				requested.put(origin + "/./" + path.substring(1), url);
+				requested.put(origin + "/ads/../" + path.substring(1), url);
+				requested.put(origin.toUpperCase() + "/a/b/../.." + path, url);
+			}
+			// a space isn't keyed, the URL is classified as is
+			requested.put(url + (url.contains("?")? "&": "?") + "cb=1 ", url + (url.contains("?")? "&": "?") + "cb=1 ");
+			requested.put(url + (url.contains("?")? "&": "?") + "ord=2 ?", url + (url.contains("?")? "&": "?") + "ord=2 ?");
+		}
+
+		for(int run=0; run<2; run++) {
+			for(final Map.Entry<String, String> entry: requested.entrySet()) {
+				Assert.assertEquals(entry.getKey(), EasyListRuleSet.classify(entry.getValue(), snapshot), ruleSet.classify(entry.getKey()));
+			}
+		}
+		final List<String> batch = new ArrayList<String>(requested.keySet());
+		final BitSet blocked = ruleSet.classifyAll(batch);
+		for(int i=0; i<batch.size(); i++) {
+			Assert.assertEquals(batch.get(i), EasyListRuleSet.classify(requested.get(batch.get(i)), snapshot).isBlocked(), blocked.get(i));
+		}
+		ruleSet.close();
+	}
+
+	private static String mixCase(final String s) {
+		final StringBuilder mixed = new StringBuilder(s.length());
+		for(int i=0; i<s.length(); i++) {
+			mixed.append(i % 2 == 0? Character.toUpperCase(s.charAt(i)): s.charAt(i));
+		}
+		return mixed.toString();
+	}
+
+	@Test
+	@Ignore
+	public void benchmark() throws IOException, ParserException {
+		final List<Rule> rules = new ArrayList<Rule>();
+		final Parser parser = new Parser();
+		for(final String line: read(System.getProperty("easylist.file"), "/easylist_sample.txt")) {
+			rules.add(parser.parse(line));
+		}
+		final List<String> urls = read(System.getProperty("urls.file"), "/urls.txt");
+		final EasyListRuleSet ruleSet = new EasyListRuleSet(true);
+		ruleSet.replaceAll(rules);
+
+		// bursts of 50 URLs (a page load), queried run to run to get cache misses
+		final int burst = 50;
+		for(int run=0; run<10; run++) {
+			final List<String> runUrls = new ArrayList<String>();
+			for(final String url: urls) {
+				runUrls.add(url + (url.contains("?")? "&": "?") + "run=" + run);
+			}
+			for(final boolean cached: new boolean[] { false, true }) {
+				long start = System.nanoTime();
+				int count = 0;
+				for(final String url: runUrls) {
+					count += ruleSet.classify(url).isBlocked()? 1: 0;
+				}
+				final long single = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				for(int i=0; i<runUrls.size(); i+=burst) {
+					count -= ruleSet.classifyAll(runUrls.subList(i, Math.min(i + burst, runUrls.size()))).cardinality();
+				}
+				System.out.printf("%d urls %s: single %dus, batch %dus (%d difference)%n"
+						, runUrls.size(), cached? "cached": "not cached", single / 1000, (System.nanoTime() - start) / 1000, count);
+			}
+		}
+		ruleSet.close();
+	}
+
 	@Test
 	@Ignore
 	public void filter() {
@@ -16,5 +421,20 @@ public class EasyListRuleSetTest {
 		ruleSet.loadInternet();
 		final boolean match = ruleSet.matchesExclusion(url);
 		Assert.assertTrue(match);
+		ruleSet.close();
+	}
+
+	private static List<String> read(final String filepath, final String defaultResource) throws IOException {
+		final InputStream in = filepath == null
+				? EasyListRuleSetTest.class.getResourceAsStream(defaultResource)
+				: new FileInputStream(filepath);
+		final List<String> lines = new ArrayList<String>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(in))) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				lines.add(line);
+			}
+		}
+		return lines;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,422 @@
+package net.anfoya.java.net.filtered.easylist.index;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import net.anfoya.java.net.filtered.easylist.EasyListRuleSet;
+import net.anfoya.java.net.filtered.easylist.loader.HostsLoader;
+import net.anfoya.java.net.filtered.easylist.model.Engine;
+import net.anfoya.java.net.filtered.easylist.model.RequestContext;
+import net.anfoya.java.net.filtered.easylist.model.Rule;
+import net.anfoya.java.net.filtered.easylist.model.RuleType;
+import net.anfoya.java.net.filtered.easylist.parser.Parser;
+import net.anfoya.java.net.filtered.easylist.parser.ParserException;
+import net.anfoya.java.net.url.filter.ContentType;
+
+public class RuleIndexTest {
+	private static List<Rule> rules;
+	private static List<String> urls;
+
+	@BeforeClass
+	public static void init() throws IOException, ParserException {
+		rules = parse(read(System.getProperty("easylist.file"), "/easylist_sample.txt"));
+		urls = read(System.getProperty("urls.file"), "/urls.txt");
+	}
+
+	@Test
+	public void ruleToken() throws ParserException {
+		final Parser parser = new Parser();
+		Assert.assertEquals("doubleclick", parser.parse("||doubleclick.net^").getToken());
+		Assert.assertEquals("banner", parser.parse("/banner/*/img^").getToken());
+		Assert.assertEquals("type", parser.parse("&ad_type=").getToken());
+		Assert.assertEquals("gif", parser.parse(".gif|").getToken());
+		Assert.assertEquals("adserver", parser.parse("/adserver/*").getToken());
+		Assert.assertNull(parser.parse("/adserver*").getToken());
+		Assert.assertNull(parser.parse("*pagead").getToken());
+	}
+
+	@Test
+	public void literals() throws ParserException {
+		final Parser parser = new Parser();
+		Assert.assertTrue(Arrays.equals(new String[] { "doubleclick.net" }, parser.parse("||doubleclick.net^").getLiterals()));
+		Assert.assertTrue(Arrays.equals(new String[] { "/banner/", "/img" }, parser.parse("/banner/*/img^").getLiterals()));
+		Assert.assertTrue(Arrays.equals(new String[] { ".gif" }, parser.parse(".gif|").getLiterals()));
+		Assert.assertEquals(0, parser.parse("^*^").getLiterals().length);
+	}
+
+	@Test
+	public void packedText() throws ParserException {
+		final Parser parser = new Parser();
+		final Rule rule = parser.parse("@@||Ads.example.com^$script");
+		Assert.assertEquals("@@||Ads.example.com^$script", rule.getLine());
+		Assert.assertEquals("||Ads.example.com^", rule.getEffectiveLine());
+		Assert.assertEquals("Ads.example.com", rule.getDomain());
+		Assert.assertEquals("example", rule.getToken());
+		Assert.assertTrue(rule.applies("http://Ads.example.com/x"));
+
+		// chars over a byte
+		final Rule wide = parser.parse("example.org##.\u0440\u0435\u043a\u043b\u0430\u043c\u0430");
+		Assert.assertEquals(".\u0440\u0435\u043a\u043b\u0430\u043c\u0430", wide.getEffectiveLine());
+		Assert.assertEquals(wide, parser.parse("example.org##.\u0440\u0435\u043a\u043b\u0430\u043c\u0430"));
+		Assert.assertEquals(wide.hashCode(), parser.parse("example.org##.\u0440\u0435\u043a\u043b\u0430\u043c\u0430").hashCode());
+		Assert.assertFalse(wide.equals(parser.parse("example.org##.\u0440\u0435\u043a\u043b\u0430\u043c\u044b")));
+	}
+
+	@Test
+	public void domain() throws ParserException {
+		final Parser parser = new Parser();
+		Assert.assertEquals("doubleclick.net", parser.parse("||doubleclick.net^").getDomain());
+		Assert.assertEquals("ads.yahoo.com", parser.parse("||ads.yahoo.com/ad/*").getDomain());
+		Assert.assertEquals("example.com", parser.parse("||example.com|").getDomain());
+		Assert.assertNull(parser.parse("||example.com").getDomain());
+		Assert.assertNull(parser.parse("||ads.*.example.com^").getDomain());
+		Assert.assertNull(parser.parse("|http://ads.").getDomain());
+	}
+
+	@Test
+	public void hosts() throws MalformedURLException {
+		final EasyListRuleSet ruleSet = new EasyListRuleSet(false);
+		ruleSet.replaceAll(new HostsLoader(getClass().getResource("/hosts_sample.txt")).load());
+		Assert.assertEquals(4, ruleSet.getRuleCount());
+		Assert.assertTrue(ruleSet.matchesExclusion("http://ads.hosts-example.com/a.js"));
+		Assert.assertTrue(ruleSet.matchesExclusion("http://www.ads.hosts-example.com/a.js"));
+		Assert.assertTrue(ruleSet.matchesExclusion("http://metrics.hosts-example.org/collect"));
+		Assert.assertFalse(ruleSet.matchesExclusion("http://hosts-example.com/index.html"));
+		Assert.assertFalse(ruleSet.matchesExclusion("http://localhost/index.html"));
+		ruleSet.close();
+	}
+
+	@Test
+	public void matchesLinearScan() {
+		for(final IndexType type: IndexType.values()) {
+			for(final Engine engine: Engine.values()) {
+				final RuleIndex index = type.build(rules, engine);
+				for(final String url: urls) {
+					Assert.assertEquals(type + " " + engine + " " + url, linearScan(url) != null, index.find(url) != null);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void ruleFile() throws IOException {
+		final RuleFile file = new RuleFile(File.createTempFile("easylist", ".bin").getPath());
+		try {
+			for(final IndexType type: IndexType.values()) {
+				file.save(rules, type, Engine.REGEX);
+				final RuleFile.Content content = file.load(type, Engine.AUTOMATON);
+				Assert.assertEquals(rules.size(), content.getRules().size());
+				for(int i=0; i<rules.size(); i++) {
+					final Rule rule = rules.get(i), loaded = content.getRules().get(i);
+					Assert.assertEquals(rule.getLine(), loaded.getLine());
+					Assert.assertEquals(rule.getEffectiveLine(), loaded.getEffectiveLine());
+					Assert.assertEquals(rule.getRegexSource(), loaded.getRegexSource());
+					Assert.assertEquals(rule.getOptions().getMask(), loaded.getOptions().getMask());
+					Assert.assertEquals(rule.getOptions().getDomainList(), loaded.getOptions().getDomainList());
+					Assert.assertEquals(rule.getToken(), loaded.getToken());
+					Assert.assertEquals(rule.getDomain(), loaded.getDomain());
+					Assert.assertTrue(Arrays.equals(rule.getLiterals(), loaded.getLiterals()));
+				}
+				for(final String url: urls) {
+					Assert.assertEquals(type + " " + url, linearScan(url) != null, content.getIndex().find(url) != null);
+				}
+			}
+		} finally {
+			file.clear();
+		}
+	}
+
+	@Test
+	public void thirdParty() {
+		Assert.assertFalse(RequestContext.of("http://static.ard.de/a.js", "www.ard.de", null).isThirdParty());
+		Assert.assertFalse(RequestContext.of("http://img.orf.at/a.png", "orf.at", null).isThirdParty());
+		Assert.assertTrue(RequestContext.of("http://cnn.de/a.js", "orf.at", null).isThirdParty());
+		Assert.assertTrue(RequestContext.of("http://cnn.de/a.js", "ard.de", null).isThirdParty());
+		Assert.assertFalse(RequestContext.of("http://static.bbc.co.uk/a.js", "www.bbc.co.uk", null).isThirdParty());
+		Assert.assertTrue(RequestContext.of("http://static.itv.co.uk/a.js", "www.bbc.co.uk", null).isThirdParty());
+		Assert.assertTrue(RequestContext.of("http://cdn.abc.com.au/a.js", "www.news.com.au", null).isThirdParty());
+		Assert.assertFalse(RequestContext.of("http://127.0.0.1/a.js", "127.0.0.1", null).isThirdParty());
+	}
+
+	@Test
+	public void options() throws ParserException {
+		final Parser parser = new Parser();
+		final Rule thirdParty = parser.parse("||track.example.com^$third-party");
+		Assert.assertEquals("||track.example.com^", thirdParty.getEffectiveLine());
+		Assert.assertEquals("track.example.com", thirdParty.getDomain());
+		Assert.assertEquals(RuleType.empty, parser.parse("||example.com^$csp=script-src 'none'").getType());
+		Assert.assertEquals(RuleType.empty, parser.parse("@@||example.com^$generichide").getType());
+		Assert.assertEquals(RuleType.empty, parser.parse("$script,domain=example.com").getType());
+		Assert.assertEquals("/ad$/x", parser.parse("/ad$/x").getEffectiveLine());
+
+		final String url = "http://track.example.com/pixel.gif";
+		final RequestContext unknown = RequestContext.UNKNOWN;
+		final RequestContext sameSite = RequestContext.of(url, "www.example.com", ContentType.IMAGE);
+		final RequestContext otherSite = RequestContext.of(url, "news.example.org", ContentType.IMAGE);
+		Assert.assertTrue(thirdParty.applies(url, unknown, Engine.REGEX));
+		Assert.assertFalse(thirdParty.applies(url, sameSite, Engine.REGEX));
+		Assert.assertTrue(thirdParty.applies(url, otherSite, Engine.REGEX));
+
+		final Rule script = parser.parse("/pixel.$script,~third-party");
+		Assert.assertTrue(script.applies(url, unknown, Engine.REGEX));
+		Assert.assertFalse(script.applies(url, sameSite, Engine.REGEX));
+		Assert.assertTrue(script.applies(url, RequestContext.of(url, "example.com", ContentType.SCRIPT), Engine.REGEX));
+
+		final Rule domains = parser.parse("/pixel.gif$domain=example.org|~shop.example.org");
+		Assert.assertTrue(domains.applies(url, unknown, Engine.REGEX));
+		Assert.assertTrue(domains.applies(url, otherSite, Engine.REGEX));
+		Assert.assertFalse(domains.applies(url, sameSite, Engine.REGEX));
+		Assert.assertFalse(domains.applies(url, RequestContext.of(url, "a.shop.example.org", null), Engine.REGEX));
+
+		// an exception doesn't apply when it can't check its options
+		final Rule exception = parser.parse("@@/pixel.gif$image,domain=example.org");
+		Assert.assertFalse(exception.applies(url, unknown, Engine.REGEX));
+		Assert.assertFalse(exception.applies(url, RequestContext.of(url, "example.org", null), Engine.REGEX));
+		Assert.assertTrue(exception.applies(url, otherSite, Engine.REGEX));
+
+		// the context is checked before the index gives up on a rule
+		for(final IndexType type: IndexType.values()) {
+			final RuleIndex index = type.build(Arrays.asList(thirdParty, script, domains), Engine.REGEX);
+			Assert.assertNotNull(index.find(url));
+			Assert.assertNull(type.toString(), index.find(url, sameSite));
+			Assert.assertSame(thirdParty, index.find(url, otherSite));
+		}
+	}
+
+	@Test
+	public void sweep() throws ParserException {
+		final Rule rule = new Parser().parse("/banner/*/img^");
+		final String url = "http://example.com/banner/foo/img?";
+		Assert.assertFalse(rule.sweep());
+		Assert.assertTrue(rule.applies(url));
+		Assert.assertFalse(rule.sweep()); // used since the last sweep
+		Assert.assertTrue(rule.sweep());
+		Assert.assertFalse(rule.sweep());
+		Assert.assertTrue(rule.applies(url)); // compiled again
+
+		// what follows the domain, compiled for the domain trie
+		for(final Engine engine: Engine.values()) {
+			final Rule anchored = new Parser().parse("||ads.example.com/banner/");
+			final DomainTrie trie = new DomainTrie(engine);
+			trie.add(anchored);
+			Assert.assertFalse(anchored.sweep()); // nothing compiled when added
+			Assert.assertEquals(anchored, trie.find("http://ads.example.com/banner/a.gif"));
+			Assert.assertFalse(anchored.sweep());
+			Assert.assertTrue(anchored.sweep());
+			Assert.assertEquals(anchored, trie.find("http://ads.example.com/banner/a.gif"));
+		}
+	}
+
+	@Test
+	public void automatonMatchesRegex() throws ParserException {
+		final List<Rule> rules = new ArrayList<Rule>(RuleIndexTest.rules);
+		final Parser parser = new Parser();
+		for(final String line: new String[] { "||", "|", "*", "^", "a^^", "^ad^", "|http://*/ad", "||ads.*/x|", "||*ad", "ad*|", "||example.com|", "|||" }) {
+			rules.add(parser.parse(line));
+		}
+		final List<String> urls = new ArrayList<String>(RuleIndexTest.urls);
+		for(final String url: new String[] { "", "a", "http://", "https://example.com", "http://ads.example.com/ad", "http://a.b.example.com.", "http://x/a//", "http://x/a/ad/" }) {
+			urls.add(url);
+		}
+
+		for(final Rule rule: rules) {
+			for(final String url: urls) {
+				Assert.assertEquals(rule + " " + url, rule.applies(url, Engine.REGEX), rule.applies(url, Engine.AUTOMATON));
+			}
+		}
+	}
+
+	@Test
+	@Ignore
+	public void benchmark() {
+		long start = System.nanoTime();
+		int count = 0;
+		for(final String url: urls) {
+			count += linearScan(url) == null? 0: 1;
+		}
+		System.out.printf("%d rules, %d urls: linear scan %dms (%d matches)%n"
+				, rules.size(), urls.size(), (System.nanoTime() - start) / 1000000, count);
+
+		// both engines on every rule, without index (a sample of urls, it's slow)
+		final List<String> sample = urls.subList(0, Math.min(200, urls.size()));
+		for(final Engine engine: Engine.values()) {
+			for(int i=0; i<3; i++) {
+				start = System.nanoTime();
+				count = 0;
+				for(final String url: sample) {
+					for(final Rule rule: rules) {
+						count += rule.applies(url, engine)? 1: 0;
+					}
+				}
+				System.out.printf("%s, every rule on every url: %dms (%d matches)%n", engine, (System.nanoTime() - start) / 1000000, count);
+			}
+		}
+
+		for(final IndexType type: IndexType.values()) {
+			for(final Engine engine: Engine.values()) {
+				start = System.nanoTime();
+				final RuleIndex index = type.build(rules, engine);
+				System.out.printf("%s built in %dms%n", index, (System.nanoTime() - start) / 1000000);
+				for(int i=0; i<5; i++) {
+					start = System.nanoTime();
+					count = 0;
+					for(final String url: urls) {
+						count += index.find(url) == null? 0: 1;
+					}
+					System.out.printf("%s %s: %dms (%d matches)%n", type, engine, (System.nanoTime() - start) / 1000000, count);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void optimizer() throws ParserException {
+		final Parser parser = new Parser();
+		final List<Rule> rules = new ArrayList<Rule>();
+		for(final String line: new String[] {
+				"||ads.example.com^", "||sub.ads.example.com/x", "||ads.example.com^$script", "||ads.example.com|"
+				, "/banner/", "*/banner/*", "/banner/top^", "/banner/ad.gif$image", "/promo^", "/promo^" }) {
+			rules.add(parser.parse(line));
+		}
+		Assert.assertEquals(rules.get(8), rules.get(9));
+		Assert.assertTrue(rules.get(5).isLiteral());
+		Assert.assertFalse(rules.get(6).isLiteral());
+
+		final RuleOptimizer optimizer = new RuleOptimizer();
+		final List<Rule> optimized = optimizer.optimize(rules);
+		Assert.assertEquals(2, optimizer.getDuplicateCount());
+		Assert.assertEquals(4, optimizer.getSubsumedCount());
+		Assert.assertEquals(Arrays.asList(rules.get(0), rules.get(3), rules.get(4), rules.get(8)), optimized);
+
+		final RuleIndex index = IndexType.LITERAL.build(rules, Engine.REGEX);
+		Assert.assertEquals(4, index.size());
+		Assert.assertEquals(rules.get(4), index.find("http://www.example.com/banner/top.gif"));
+		Assert.assertEquals(rules.get(0), index.find("http://sub.ads.example.com/x.js"));
+		Assert.assertNull(index.find("http://www.example.com/promotion"));
+	}
+
+	@Test
+	public void bloomFilter() throws ParserException {
+		final List<Rule> exclusions = new ArrayList<Rule>();
+		for(final Rule rule: rules) {
+			if (rule.getType() == RuleType.exclusion) {
+				exclusions.add(rule);
+			}
+		}
+		final BloomFilter filter = new BloomFilter(exclusions, 0.01, Engine.REGEX);
+		final RuleIndex index = IndexType.LITERAL.build(exclusions, Engine.REGEX);
+		int negatives = 0;
+		for(final String url: urls) {
+			for(final String variant: new String[] { url, url.replace("ad", "xy"), url.toUpperCase() }) {
+				if (!filter.mightMatch(variant)) {
+					Assert.assertNull(variant, index.find(variant));
+					negatives++;
+				}
+			}
+		}
+		Assert.assertTrue(negatives > 0);
+
+		final Parser parser = new Parser();
+		final BloomFilter affixes = new BloomFilter(Arrays.asList(parser.parse("|http://promo*"), parser.parse("*banner/"), parser.parse("||ads.example.com^")), 0.01, Engine.REGEX);
+		Assert.assertTrue(affixes.mightMatch("http://promotion.com/"));
+		Assert.assertTrue(affixes.mightMatch("http://www.com/topbanner/"));
+		Assert.assertTrue(affixes.mightMatch("https://x.ads.example.com/"));
+		Assert.assertFalse(affixes.mightMatch("http://www.com/banners/"));
+		Assert.assertFalse(affixes.mightMatch("https://ads.example.co/"));
+
+		final BloomFilter unkeyed = new BloomFilter(Arrays.asList(parser.parse("*a*b")), 0.01, Engine.REGEX);
+		Assert.assertTrue(unkeyed.mightMatch("http://www.com/ab"));
+		Assert.assertFalse(unkeyed.mightMatch("http://www.com/ba"));
+		Assert.assertTrue(new BloomFilter(exclusions, 0, Engine.REGEX).mightMatch("http://www.com/"));
+	}
+
+	@Test
+	public void cosmetic() throws IOException, ParserException {
+		final Parser parser = new Parser();
+		Assert.assertEquals(RuleType.cosmetic, parser.parse("news.example.com##.sponsored").getType());
+		Assert.assertEquals(RuleType.cosmeticException, parser.parse("sport.example.com#@#.ad-banner").getType());
+		Assert.assertEquals(RuleType.empty, parser.parse("example.com##+js(nobab)").getType());
+		Assert.assertEquals(RuleType.empty, parser.parse("example.com#?#div:-abp-has(.ad)").getType());
+		Assert.assertEquals(RuleType.empty, parser.parse("example.com##div:has-text(Sponsored)").getType());
+
+		final List<Rule> cosmetics = new ArrayList<Rule>();
+		for(final String line: read(null, "/easylist_sample.txt")) {
+			final Rule rule = parser.parse(line);
+			if (rule.getType() == RuleType.cosmetic || rule.getType() == RuleType.cosmeticException) {
+				cosmetics.add(rule);
+			}
+		}
+		final CosmeticIndex index = new CosmeticIndex(cosmetics);
+		Assert.assertEquals(12, index.getSize());
+
+		final String other = index.getHidingCss("www.example.org");
+		Assert.assertTrue(other.contains(".ad-banner"));
+		Assert.assertTrue(other.contains("a[href^=\"http://ads.example.com/\"]"));
+		Assert.assertFalse(other.contains(".sponsored"));
+		Assert.assertFalse(other.contains(".outbrain"));
+		Assert.assertSame(other, index.getHidingCss("www.example.org"));
+
+		final String news = index.getHidingCss("News.Example.com");
+		Assert.assertTrue(news.startsWith(other));
+		Assert.assertTrue(news.contains(".sponsored"));
+		Assert.assertTrue(news.contains("div.promo"));
+		Assert.assertTrue(news.contains(".outbrain"));
+		Assert.assertFalse(news.contains("#sidebar-ad"));
+
+		final String sport = index.getHidingCss("sport.example.com");
+		Assert.assertFalse(sport.contains(".ad-banner"));
+		Assert.assertFalse(sport.contains(".outbrain"));
+		Assert.assertTrue(sport.contains(".adsbygoogle"));
+		Assert.assertFalse(index.getHidingCss("partner.example.com").contains(".adsbygoogle"));
+		Assert.assertTrue(index.getHidingCss("shop.example.com").contains("#sidebar-ad"));
+	}
+
+	private Rule linearScan(final String url) {
+		for(final Rule rule: rules) {
+			if (rule.applies(url)) {
+				return rule;
+			}
+		}
+		return null;
+	}
+
+	private static List<Rule> parse(final List<String> lines) throws ParserException {
+		final Parser parser = new Parser();
+		final List<Rule> rules = new ArrayList<Rule>();
+		for(final String line: lines) {
+			final Rule rule = parser.parse(line);
+			if (rule.getType() == RuleType.exclusion) {
+				rules.add(rule);
+			}
+		}
+		return rules;
+	}
+
+	private static List<String> read(final String filepath, final String defaultResource) throws IOException {
+		final InputStream in = filepath == null
+				? RuleIndexTest.class.getResourceAsStream(defaultResource)
+				: new FileInputStream(filepath);
+		final List<String> lines = new ArrayList<String>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(in))) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				lines.add(line);
+			}
+		}
+		return lines;
+	}
+}
@@ -0,0 +1,153 @@
+package net.anfoya.java.net.filtered.easylist.loader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class InternetLoaderTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	// stand-in list server: path -> content, ETag is a hash of the content, gzip when accepted
+	private final Map<String, byte[]> contents = new ConcurrentHashMap<String, byte[]>();
+	private final List<String> requests = new CopyOnWriteArrayList<String>();
+	private HttpServer server;
+
+	@Before
+	public void start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", exchange -> {
+			final String path = exchange.getRequestURI().getPath();
+			final byte[] content = contents.get(path);
+			requests.add(path);
+			if (content == null) {
+				exchange.sendResponseHeaders(404, -1);
+			} else {
+				final String etag = "\"" + Arrays.hashCode(content) + "\"";
+				if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+					exchange.sendResponseHeaders(304, -1);
+				} else {
+					exchange.getResponseHeaders().set("ETag", etag);
+					byte[] body = content;
+					final String encoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+					if (encoding != null && encoding.contains("gzip")) {
+						final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+						try (OutputStream out = new GZIPOutputStream(bytes)) {
+							out.write(content);
+						}
+						body = bytes.toByteArray();
+						exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+					}
+					exchange.sendResponseHeaders(200, body.length);
+					exchange.getResponseBody().write(body);
+				}
+			}
+			exchange.close();
+		});
+		server.start();
+	}
+
+	@After
+	public void stop() {
+		server.stop(0);
+	}
+
+	@Test
+	public void conditional() throws IOException {
+		contents.put("/plain.txt", "/ads/banner\n/tracker.js\n".getBytes(StandardCharsets.UTF_8));
+		final InternetLoader loader = new InternetLoader(url("/plain.txt"), folder.getRoot());
+
+		final ListUpdate first = loader.load(true);
+		Assert.assertTrue(first.isComplete());
+		Assert.assertEquals(2, first.getAddedRules().size());
+		Assert.assertTrue(first.getDownloadedBytes() > 0);
+		loader.save(first);
+
+		final ListUpdate unchanged = loader.load(true);
+		Assert.assertFalse(unchanged.isModified());
+		Assert.assertEquals(0, unchanged.getDownloadedBytes());
+
+		contents.put("/plain.txt", "/tracker.js\n/popup/\n".getBytes(StandardCharsets.UTF_8));
+		final ListUpdate changed = loader.load(true);
+		Assert.assertTrue(changed.isModified());
+		Assert.assertFalse(changed.isComplete());
+		Assert.assertEquals(Arrays.asList("/popup/"), lines(changed));
+		Assert.assertEquals(Arrays.asList("/ads/banner"), changed.getRemovedLines());
+	}
+
+	@Test
+	public void diff() throws IOException {
+		contents.put("/list.txt", read("/lists/list_v1.txt"));
+		final InternetLoader loader = new InternetLoader(url("/list.txt"), folder.getRoot());
+		final ListUpdate first = loader.load(false);
+		Assert.assertEquals(4, first.getAddedRules().size());
+		loader.save(first);
+
+		// no diff published yet, the list isn't downloaded again
+		requests.clear();
+		Assert.assertFalse(loader.load(true).isModified());
+		Assert.assertEquals(Arrays.asList("/diffs/v1.patch"), requests);
+
+		final byte[] patch = read("/lists/v1.patch");
+		contents.put("/diffs/v1.patch", patch);
+		requests.clear();
+		final ListUpdate patched = loader.load(true);
+		Assert.assertEquals(Arrays.asList("/diffs/v1.patch", "/diffs/v2.patch"), requests);
+		Assert.assertEquals(Arrays.asList("/popup/"), lines(patched));
+		Assert.assertTrue(patched.getRemovedLines().contains("/ads/banner"));
+		Assert.assertEquals(Arrays.asList(new String(read("/lists/list_v2.txt"), StandardCharsets.UTF_8).split("\n")), patched.getLines());
+		loader.save(patched);
+
+		Assert.assertFalse(loader.load(true).isModified());
+	}
+
+	@Test(expected=IOException.class)
+	public void invalidPatch() throws IOException {
+		InternetLoader.patch(Arrays.asList("a", "b"), Arrays.asList("d3 1"));
+	}
+
+	private URL url(final String path) throws IOException {
+		return new URL("http://localhost:" + server.getAddress().getPort() + path);
+	}
+
+	private static List<String> lines(final ListUpdate update) {
+		final List<String> lines = new ArrayList<String>();
+		for(final net.anfoya.java.net.filtered.easylist.model.Rule rule: update.getAddedRules()) {
+			lines.add(rule.getLine());
+		}
+		return lines;
+	}
+
+	private static byte[] read(final String resource) throws IOException {
+		try (InputStream in = InternetLoaderTest.class.getResourceAsStream(resource)) {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[4096];
+			int count;
+			while((count = in.read(buffer)) != -1) {
+				bytes.write(buffer, 0, count);
+			}
+			return bytes.toByteArray();
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package net.anfoya.java.net.filtered.easylist.parser;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.Assert;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import net.anfoya.java.net.filtered.easylist.model.Rule;
+
+public class ParallelParserTest {
+
+	@Test
+	public void order() {
+		final char[] tooLong = new char[40 * 1024];
+		Arrays.fill(tooLong, 'a');
+		final List<String> lines = new ArrayList<String>();
+		final List<String> expected = new ArrayList<String>();
+		for(int i=0; i<3 * 2048 + 100; i++) {
+			if (i % 500 == 0) {
+				lines.add("! comment " + i);
+			} else if (i % 2000 == 1) {
+				// unparsable, in several chunks
+				lines.add(new String(tooLong));
+			} else {
+				final String line = "||host" + i + ".example.com^";
+				lines.add(line);
+				expected.add(line);
+			}
+		}
+
+		final ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			final ParallelParser parser = new ParallelParser(pool);
+			parser.addAll(lines);
+			final List<String> parsed = new ArrayList<String>();
+			for(final Rule rule: parser.getRules()) {
+				parsed.add(rule.getLine());
+			}
+			Assert.assertEquals(expected, parsed);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * elapsed time of a list parsed by 1 to N workers (best of 10 runs after a warm up), parse time being summed over
+	 * the workers
+	 */
+	@Test
+	@Ignore
+	public void benchmark() throws IOException {
+		final List<String> lines = read(System.getProperty("easylist.file"), "/easylist_sample.txt");
+		final int processors = Runtime.getRuntime().availableProcessors();
+		System.out.printf("%d lines, %d processors%n", lines.size(), processors);
+		for(final boolean warmUp: new boolean[] { true, false }) {
+			for(final int workers: new int[] { 1, 2, 4, processors }) {
+				final ForkJoinPool pool = new ForkJoinPool(workers);
+				try {
+					long elapsed = Long.MAX_VALUE, parseTime = 0;
+					for(int run=0; run<10; run++) {
+						final long start = System.nanoTime();
+						final ParallelParser parser = new ParallelParser(pool);
+						parser.addAll(lines);
+						parser.getRules();
+						if (System.nanoTime() - start < elapsed) {
+							elapsed = System.nanoTime() - start;
+							parseTime = parser.getParseTime();
+						}
+					}
+					if (!warmUp) {
+						System.out.printf("%d workers: %dms elapsed, %dms parse time%n", workers, elapsed / 1000000, parseTime);
+					}
+				} finally {
+					pool.shutdown();
+				}
+			}
+		}
+	}
+
+	private static List<String> read(final String filepath, final String defaultResource) throws IOException {
+		final InputStream in = filepath == null
+				? ParallelParserTest.class.getResourceAsStream(defaultResource)
+				: new FileInputStream(filepath);
+		final List<String> lines = new ArrayList<String>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(in))) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				lines.add(line);
+			}
+		}
+		return lines;
+	}
+}
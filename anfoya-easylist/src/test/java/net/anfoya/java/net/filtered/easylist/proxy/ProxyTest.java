@@ -0,0 +1,439 @@
+package net.anfoya.java.net.filtered.easylist.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import net.anfoya.java.net.filtered.easylist.EasyListRuleSet;
+import net.anfoya.java.net.filtered.easylist.model.Rule;
+import net.anfoya.java.net.filtered.easylist.parser.Parser;
+import net.anfoya.java.net.filtered.easylist.parser.ParserException;
+
+public class ProxyTest {
+	private static final byte[] BODY = new byte[100 * 1024];
+
+	private static EasyListRuleSet ruleSet;
+	private static Origin origin;
+
+	@BeforeClass
+	public static void init() throws IOException, ParserException {
+		final Parser parser = new Parser();
+		final List<Rule> rules = new ArrayList<Rule>();
+		for(final String line: new String[] { "||ads.example.com^", "/banner/*" }) {
+			rules.add(parser.parse(line));
+		}
+		ruleSet = new EasyListRuleSet(false);
+		ruleSet.replaceAll(rules);
+
+		for(int i=0; i<BODY.length; i++) {
+			BODY[i] = (byte) i;
+		}
+		origin = new Origin();
+	}
+
+	@AfterClass
+	public static void close() throws IOException {
+		origin.close();
+		ruleSet.close();
+	}
+
+	@Test
+	public void relay() throws IOException {
+		for(final ProxyMode mode: ProxyMode.values()) {
+			final Proxy proxy = start(mode);
+			try {
+				byte[] response = request(proxy, "GET http://127.0.0.1:" + origin.getPort() + "/page?x=1 HTTP/1.1\r\n"
+						+ "Host: 127.0.0.1:" + origin.getPort() + "\r\n"
+						+ "Proxy-Connection: close\r\n"
+						+ "\r\n");
+				String head = getHead(response);
+				Assert.assertEquals(head, 200, getStatus(response));
+				Assert.assertTrue(head, head.contains("\r\nX-Origin: test\r\n"));
+				Assert.assertTrue(mode.toString(), Arrays.equals(BODY, Arrays.copyOfRange(response, head.length(), response.length)));
+
+				final String request = origin.getLastRequest();
+				Assert.assertTrue(request, request.startsWith("GET /page?x=1 HTTP/1.1\r\n"));
+				Assert.assertEquals(request, mode == ProxyMode.SELECTOR, request.contains("\r\nConnection: close\r\n"));
+				Assert.assertFalse(request, request.contains("Proxy-Connection"));
+
+				// chunks are relayed as they are
+				response = request(proxy, "GET http://127.0.0.1:" + origin.getPort() + "/chunked HTTP/1.1\r\nConnection: close\r\n\r\n");
+				head = getHead(response);
+				Assert.assertTrue(head, head.contains("\r\nTransfer-Encoding: chunked\r\n"));
+				Assert.assertTrue(mode.toString(), Arrays.equals(toChunks(BODY), Arrays.copyOfRange(response, head.length(), response.length)));
+
+				// request body
+				response = request(proxy, "POST http://127.0.0.1:" + origin.getPort() + "/form HTTP/1.1\r\n"
+						+ "Content-Length: 7\r\n"
+						+ "Connection: close\r\n"
+						+ "\r\n"
+						+ "a=1&b=2");
+				Assert.assertEquals(200, getStatus(response));
+				Assert.assertTrue(origin.getLastRequest(), origin.getLastRequest().endsWith("\r\n\r\na=1&b=2"));
+			} finally {
+				proxy.stop();
+			}
+		}
+	}
+
+	@Test
+	public void blocked() throws IOException {
+		for(final ProxyMode mode: ProxyMode.values()) {
+			final Proxy proxy = start(mode);
+			try {
+				Assert.assertEquals(mode.toString(), 403, getStatus(request(proxy, "GET http://ads.example.com/a.js HTTP/1.1\r\nConnection: close\r\n\r\n")));
+				Assert.assertEquals(mode.toString(), 403, getStatus(request(proxy, "GET http://127.0.0.1:" + origin.getPort() + "/banner/a.gif HTTP/1.1\r\nConnection: close\r\n\r\n")));
+				Assert.assertEquals(mode.toString(), 400, getStatus(request(proxy, "not a request\r\n\r\n")));
+			} finally {
+				proxy.stop();
+			}
+		}
+	}
+
+	@Test
+	public void tunnel() throws IOException {
+		for(final ProxyMode mode: ProxyMode.values()) {
+			final Proxy proxy = start(mode);
+			try {
+				Assert.assertEquals(mode.toString(), 403, getStatus(request(proxy, "CONNECT ads.example.com:443 HTTP/1.1\r\nHost: ads.example.com:443\r\n\r\n")));
+
+				// bytes sent with the CONNECT request go through untouched
+				final byte[] response = request(proxy, "CONNECT 127.0.0.1:" + origin.getPort() + " HTTP/1.1\r\n"
+						+ "Host: 127.0.0.1:" + origin.getPort() + "\r\n"
+						+ "\r\n"
+						+ "GET /page HTTP/1.1\r\nConnection: close\r\n\r\n");
+				final String established = getHead(response);
+				Assert.assertEquals(established, 200, getStatus(response));
+				final byte[] tunnelled = Arrays.copyOfRange(response, established.length(), response.length);
+				final String head = getHead(tunnelled);
+				Assert.assertTrue(head, head.contains("\r\nX-Origin: test\r\n"));
+				Assert.assertTrue(mode.toString(), Arrays.equals(BODY, Arrays.copyOfRange(tunnelled, head.length(), tunnelled.length)));
+				Assert.assertEquals("GET /page HTTP/1.1\r\nConnection: close\r\n\r\n", origin.getLastRequest());
+			} finally {
+				proxy.stop();
+			}
+		}
+	}
+
+	@Test
+	public void singleRequest() throws IOException {
+		final Proxy proxy = start(ProxyMode.SELECTOR);
+		try {
+			// a request pipelined after a body in chunks isn't relayed unchecked
+			final String body = "3\r\na=1\r\n4;x=y\r\n&b=2\r\n0\r\n\r\n";
+			final byte[] response = request(proxy, "POST http://127.0.0.1:" + origin.getPort() + "/form HTTP/1.1\r\n"
+					+ "Transfer-Encoding: chunked\r\n"
+					+ "\r\n"
+					+ body
+					+ "GET http://127.0.0.1:" + origin.getPort() + "/banner/a.gif HTTP/1.1\r\n\r\n");
+			final String head = getHead(response);
+			Assert.assertEquals(head, 200, getStatus(response));
+			Assert.assertTrue(head, head.contains("\r\nConnection: close\r\n"));
+			Assert.assertTrue(Arrays.equals(BODY, Arrays.copyOfRange(response, head.length(), response.length)));
+			Assert.assertTrue(origin.getLastRequest(), origin.getLastRequest().endsWith("\r\n\r\n" + body));
+
+			Assert.assertEquals(400, getStatus(request(proxy, "POST http://127.0.0.1:" + origin.getPort() + "/form HTTP/1.1\r\n"
+					+ "Transfer-Encoding: gzip\r\n\r\n")));
+		} finally {
+			proxy.stop();
+		}
+	}
+
+	@Test
+	public void keepAlive() throws IOException {
+		final Proxy proxy = start(ProxyMode.THREAD);
+		try (Socket socket = new Socket("127.0.0.1", proxy.getPort())) {
+			socket.setSoTimeout(5000);
+			final String page = "GET http://127.0.0.1:" + origin.getPort() + "/page HTTP/1.1\r\n\r\n";
+			final OutputStream out = socket.getOutputStream();
+			final InputStream in = socket.getInputStream();
+			final int connectionCount = origin.getConnectionCount();
+
+			// pipelined, the blocked one answered in turn
+			out.write((page + "GET http://ads.example.com/a.js HTTP/1.1\r\n\r\n" + page).getBytes(StandardCharsets.ISO_8859_1));
+			Assert.assertTrue(Arrays.equals(BODY, readResponse(in, 200)));
+			Assert.assertEquals(0, readResponse(in, 403).length);
+			Assert.assertTrue(Arrays.equals(BODY, readResponse(in, 200)));
+			// chunks up to the last one
+			out.write(("GET http://127.0.0.1:" + origin.getPort() + "/chunked HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+			Assert.assertTrue(Arrays.equals(toChunks(BODY), readResponse(in, 200)));
+			// a single connection to the origin server
+			Assert.assertEquals(connectionCount + 1, origin.getConnectionCount());
+
+			out.write("GET http://ads.example.com/a.js HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			Assert.assertEquals(0, readResponse(in, 403).length);
+			Assert.assertEquals(-1, in.read());
+		} finally {
+			proxy.stop();
+		}
+	}
+
+	/**
+	 * concurrent idle connections held by the proxy, then a blocked request on each of them
+	 */
+	@Test
+	@Ignore
+	public void load() throws IOException, InterruptedException {
+		for(final ProxyMode mode: ProxyMode.values()) {
+			load(mode, Integer.getInteger("proxy.connections", 5000));
+		}
+	}
+
+	private void load(final ProxyMode mode, final int count) throws IOException, InterruptedException {
+		final Proxy proxy = start(mode);
+		final List<Socket> sockets = new ArrayList<Socket>();
+		System.out.println(mode + " mode");
+		try {
+			final long[] connectNanos = new long[count];
+			final long start = System.nanoTime();
+			for(int i=0; i<count; i++) {
+				final long connectStart = System.nanoTime();
+				final Socket socket = new Socket();
+				socket.connect(new InetSocketAddress("127.0.0.1", proxy.getPort()));
+				connectNanos[i] = System.nanoTime() - connectStart;
+				sockets.add(socket);
+			}
+			// let the handlers start
+			Thread.sleep(2000);
+			System.gc();
+			final Runtime runtime = Runtime.getRuntime();
+			System.out.printf("%d connections in %dms (%.0fKB heap, %s resident, %d platform threads)%n", count
+					, (System.nanoTime() - start) / 1000000, (runtime.totalMemory() - runtime.freeMemory()) / 1024.0
+					, getResident(), Thread.activeCount());
+			Arrays.sort(connectNanos);
+			System.out.printf("connect: median %dus, 99%% %dus, max %dus%n", connectNanos[count / 2] / 1000
+					, connectNanos[count * 99 / 100] / 1000, connectNanos[count - 1] / 1000);
+
+			final byte[] request = "GET http://ads.example.com/a.js HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+			final long requested = System.nanoTime();
+			for(final Socket socket: sockets) {
+				socket.getOutputStream().write(request);
+			}
+			int blocked = 0;
+			for(final Socket socket: sockets) {
+				blocked += getStatus(readAll(socket.getInputStream())) == 403? 1: 0;
+			}
+			final long nanos = System.nanoTime() - requested;
+			System.out.printf("%d blocked in %dms (%.0f requests/s)%n", blocked, nanos / 1000000, count * 1e9 / nanos);
+			Assert.assertEquals(count, blocked);
+		} finally {
+			for(final Socket socket: sockets) {
+				socket.close();
+			}
+			proxy.stop();
+		}
+	}
+
+	private static Proxy start(final ProxyMode mode) throws IOException {
+		final Proxy proxy = new Proxy(0, ruleSet, mode);
+		final Thread thread = new Thread(proxy, "proxy");
+		thread.setDaemon(true);
+		thread.start();
+		return proxy;
+	}
+
+	private static byte[] request(final Proxy proxy, final String request) throws IOException {
+		try (Socket socket = new Socket("127.0.0.1", proxy.getPort())) {
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+			return readAll(socket.getInputStream());
+		}
+	}
+
+	private static byte[] readAll(final InputStream in) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[8192];
+		for(int n; (n = in.read(buffer)) != -1; ) {
+			bytes.write(buffer, 0, n);
+		}
+		return bytes.toByteArray();
+	}
+
+	// reads a response framed by its length or in chunks, returns its body
+	private static byte[] readResponse(final InputStream in, final int status) throws IOException {
+		final ByteArrayOutputStream head = new ByteArrayOutputStream();
+		while(!head.toString("ISO-8859-1").endsWith("\r\n\r\n")) {
+			final int c = in.read();
+			Assert.assertTrue(c != -1);
+			head.write(c);
+		}
+		Assert.assertEquals(head.toString("ISO-8859-1"), status, getStatus(head.toByteArray()));
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		if (head.toString("ISO-8859-1").contains("\r\nTransfer-Encoding: chunked\r\n")) {
+			while(!body.toString("ISO-8859-1").endsWith("\r\n0\r\n\r\n")) {
+				body.write(in.read());
+			}
+		} else {
+			final String text = head.toString("ISO-8859-1");
+			final int start = text.indexOf("Content-Length: ") + "Content-Length: ".length();
+			for(int i=Integer.parseInt(text.substring(start, text.indexOf("\r\n", start))); i>0; i--) {
+				body.write(in.read());
+			}
+		}
+		return body.toByteArray();
+	}
+
+	private static int getStatus(final byte[] response) {
+		final String[] status = getHead(response).split(" ", 3);
+		return status.length < 2? -1: Integer.parseInt(status[1]);
+	}
+
+	// resident memory of the process (Linux)
+	private static String getResident() throws IOException {
+		final File status = new File("/proc/self/status");
+		if (status.exists()) {
+			for(final String line: Files.readAllLines(status.toPath())) {
+				if (line.startsWith("VmRSS:")) {
+					return line.substring("VmRSS:".length()).trim();
+				}
+			}
+		}
+		return "?";
+	}
+
+	// status line and headers, with the empty line
+	private static String getHead(final byte[] response) {
+		final String text = new String(response, StandardCharsets.ISO_8859_1);
+		final int end = text.indexOf("\r\n\r\n");
+		return end == -1? text: text.substring(0, end + 4);
+	}
+
+	// BODY in chunks of 1000 bytes
+	private static byte[] toChunks(final byte[] body) {
+		final ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+		for(int i=0; i<body.length; i+=1000) {
+			final int length = Math.min(1000, body.length - i);
+			final byte[] size = (Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+			chunks.write(size, 0, size.length);
+			chunks.write(body, i, length);
+			chunks.write('\r');
+			chunks.write('\n');
+		}
+		final byte[] last = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+		chunks.write(last, 0, last.length);
+		return chunks.toByteArray();
+	}
+
+	/**
+	 * origin server answering BODY to any request (in chunks for /chunked), on kept alive connections
+	 */
+	private static class Origin implements Runnable {
+		private final ServerSocket serverSocket;
+		private final AtomicInteger connectionCount;
+		private volatile String lastRequest;
+
+		public Origin() throws IOException {
+			serverSocket = new ServerSocket(0);
+			connectionCount = new AtomicInteger();
+			final Thread thread = new Thread(this, "origin");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		public int getPort() {
+			return serverSocket.getLocalPort();
+		}
+
+		public String getLastRequest() {
+			return lastRequest;
+		}
+
+		public int getConnectionCount() {
+			return connectionCount.get();
+		}
+
+		public void close() throws IOException {
+			serverSocket.close();
+		}
+
+		@Override
+		public void run() {
+			while(!serverSocket.isClosed()) {
+				try {
+					final Socket socket = serverSocket.accept();
+					socket.setTcpNoDelay(true);
+					connectionCount.incrementAndGet();
+					final Thread thread = new Thread(() -> serve(socket), "origin-connection");
+					thread.setDaemon(true);
+					thread.start();
+				} catch (final IOException e) {
+					// closed
+				}
+			}
+		}
+
+		private void serve(final Socket socket) {
+			try {
+				final InputStream in = socket.getInputStream();
+				final OutputStream out = socket.getOutputStream();
+				boolean close = false;
+				while(!close) {
+					final StringBuilder request = new StringBuilder();
+					while(request.indexOf("\r\n\r\n") == -1) {
+						final int c = in.read();
+						if (c == -1) {
+							return;
+						}
+						request.append((char) c);
+					}
+					final int length = request.indexOf("\r\nContent-Length: ");
+					if (length != -1) {
+						final int start = length + "\r\nContent-Length: ".length();
+						for(int i=Integer.parseInt(request.substring(start, request.indexOf("\r\n", start))); i>0; i--) {
+							request.append((char) in.read());
+						}
+					}
+					if (request.indexOf(" /form ") != -1) {
+						// the body, in chunks or not, with anything relayed after it
+						socket.setSoTimeout(200);
+						try {
+							for(int c; (c = in.read()) != -1; ) {
+								request.append((char) c);
+							}
+						} catch (final SocketTimeoutException e) {
+							// all read
+						}
+						socket.setSoTimeout(0);
+					}
+					lastRequest = request.toString();
+					close = request.indexOf("\r\nConnection: close\r\n") != -1;
+					final String connection = close? "Connection: close\r\n": "";
+					if (request.indexOf(" /chunked ") != -1) {
+						out.write(("HTTP/1.1 200 OK\r\nX-Origin: test\r\nTransfer-Encoding: chunked\r\n" + connection + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+						out.write(toChunks(BODY));
+					} else {
+						out.write(("HTTP/1.1 200 OK\r\nX-Origin: test\r\nContent-Length: " + BODY.length + "\r\n" + connection + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+						out.write(BODY);
+					}
+				}
+			} catch (final IOException e) {
+				// closed
+			} finally {
+				try {
+					socket.close();
+				} catch (final IOException e) {
+					// closed
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,8 @@
+package net.anfoya.java.net.url.filter;
+
+/**
+ * What a request loads, as filter rule options name it.
+ */
+public enum ContentType {
+	OTHER, SCRIPT, IMAGE, STYLESHEET, OBJECT, XMLHTTPREQUEST, SUBDOCUMENT, DOCUMENT, WEBSOCKET, WEBRTC, PING, MEDIA, FONT, POPUP;
+}
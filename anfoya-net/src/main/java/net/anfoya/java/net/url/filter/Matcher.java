@@ -1,5 +1,8 @@
 package net.anfoya.java.net.url.filter;
 
+import java.util.BitSet;
+import java.util.List;
+
 public class Matcher {
 	private final RuleSet ruleSet;
 
@@ -8,15 +11,25 @@ public class Matcher {
 	}
 
 	public boolean matches(final String url) {
-		if (ruleSet.isWithException() && ruleSet.matchesException(url)) {
-			// URL matches an exception rule
-			return false;
-		} else if (ruleSet.matchesExclusion(url)) {
-			// URL matches an exclusion rule
-			return true;
-		} else {
-			// no rule applies
-			return false;
-		}
+		// blocked when an exclusion rule applies and no exception rule does
+		return ruleSet.classify(url).isBlocked();
+	}
+
+	public boolean matches(final String url, final String pageHost, final ContentType contentType) {
+		return ruleSet.classify(url, pageHost, contentType).isBlocked();
+	}
+
+	/**
+	 * @return true if the host is blocked whatever the path, as a tunnel to it (CONNECT) is
+	 */
+	public boolean matchesHost(final String host) {
+		return ruleSet.classifyHost(host).isBlocked();
+	}
+
+	/**
+	 * @return bits of the URLs blocked, for a burst of URLs (page load) evaluated in one call
+	 */
+	public BitSet matches(final List<String> urls) {
+		return ruleSet.classifyAll(urls);
 	}
 }
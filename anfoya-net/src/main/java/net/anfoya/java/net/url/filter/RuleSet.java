@@ -1,5 +1,7 @@
 package net.anfoya.java.net.url.filter;
 
+import java.util.BitSet;
+import java.util.List;
 
 public interface RuleSet {
 	void load();
@@ -7,4 +9,25 @@ public interface RuleSet {
 	boolean isWithException();
 	boolean matchesException(String url);
 	boolean matchesExclusion(String url);
+
+	/**
+	 * @return the verdict of exclusion and exception rules in one go, ALLOWED only when exceptions are used
+	 */
+	Verdict classify(String url);
+
+	/**
+	 * @return the verdict of the rules whose options accept a request from a page of pageHost loading contentType,
+	 * an unknown page host or content type (null) only keeps exceptions out
+	 */
+	Verdict classify(String url, String pageHost, ContentType contentType);
+
+	/**
+	 * @return the verdict of the rules applying to every URL of the host, for a request whose path isn't known (a tunnel)
+	 */
+	Verdict classifyHost(String host);
+
+	/**
+	 * @return bits of the URLs blocked, indexed as urls
+	 */
+	BitSet classifyAll(List<String> urls);
 }
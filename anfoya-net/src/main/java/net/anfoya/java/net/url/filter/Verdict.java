@@ -0,0 +1,17 @@
+package net.anfoya.java.net.url.filter;
+
+/**
+ * Outcome of a URL against a rule set.
+ */
+public enum Verdict {
+	// an exclusion rule applies but so does an exception rule
+	ALLOWED,
+	// an exclusion rule applies
+	BLOCKED,
+	// no exclusion rule applies
+	NONE;
+
+	public boolean isBlocked() {
+		return this == BLOCKED;
+	}
+}
@@ -9,13 +9,19 @@ public class AutoCountElement<E> implements Serializable {
 	private final E value;
 	private final AtomicInteger count;
 	public AutoCountElement(final E value) {
+		this(value, 1);
+	}
+	public AutoCountElement(final E value, final int count) {
 		this.value = value;
-		this.count = new AtomicInteger(1);
+		this.count = new AtomicInteger(count);
 	}
 	public E getValue() {
 		count.incrementAndGet();
 		return value;
 	}
+	public E peekValue() {
+		return value;
+	}
 	public int getCount() {
 		return count.get();
 	}
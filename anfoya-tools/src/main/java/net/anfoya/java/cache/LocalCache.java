@@ -2,8 +2,10 @@ package net.anfoya.java.cache;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -132,6 +134,25 @@ public class LocalCache<K, V> {
 		return e == null? null: e.getValue();
 	}
 
+	/**
+	 * @return the value without counting a hit
+	 */
+	public V peek(final K key) {
+		final AutoCountElement<V> e = map.get(key);
+		return e == null? null: e.peekValue();
+	}
+
+	/**
+	 * replaces the value of a key already cached, keeping its hit count
+	 */
+	public void replace(final K k, final V v) {
+		map.computeIfPresent(k, (key, e) -> new AutoCountElement<V>(v, e.getCount()));
+	}
+
+	public Set<K> keySet() {
+		return Collections.unmodifiableSet(map.keySet());
+	}
+
 	public void clear() {
 		map.clear();
 	}